@@ -0,0 +1,80 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import static com.xebialabs.overcast.OvercastProperties.getOvercastListProperty;
+import static com.xebialabs.overcast.OvercastProperties.getOvercastMapProperty;
+import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
+
+/**
+ * Property lookups as done by {@link com.xebialabs.overcast.host.CloudHostFactory} for every host label. The
+ * {@code overcast.conf} of the benchmarks is copied to a file first because the benchmarks run from a jar.
+ */
+@State(Scope.Benchmark)
+public class OvercastPropertiesBenchmark {
+    private Path conf;
+
+    @Setup
+    public void setup() throws IOException {
+        conf = Files.createTempFile("overcast-benchmark", ".conf");
+        try (InputStream in = OvercastPropertiesBenchmark.class.getResourceAsStream("/" + PropertiesLoader.OVERCAST_CONF_FILE)) {
+            Files.copy(in, conf, StandardCopyOption.REPLACE_EXISTING);
+        }
+        System.setProperty(PropertiesLoader.OVERCAST_CONF_FILE_PROPERTY, conf.toString());
+        OvercastProperties.reloadOvercastProperties();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.clearProperty(PropertiesLoader.OVERCAST_CONF_FILE_PROPERTY);
+        OvercastProperties.reloadOvercastProperties();
+        Files.deleteIfExists(conf);
+    }
+
+    @Benchmark
+    public String existingProperty() {
+        return getOvercastProperty("benchmarkHost.baseDomain");
+    }
+
+    @Benchmark
+    public String missingPropertyWithDefault() {
+        return getOvercastProperty("benchmarkHost.libvirtStartTimeout", "30");
+    }
+
+    @Benchmark
+    public List<String> listProperty() {
+        return getOvercastListProperty("benchmarkHost.provision.cmd");
+    }
+
+    @Benchmark
+    public Map<String, String> mapProperty() {
+        return getOvercastMapProperty("benchmarkHost.fsMapping.data");
+    }
+}
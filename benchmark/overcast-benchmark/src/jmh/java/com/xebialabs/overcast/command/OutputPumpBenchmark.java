@@ -0,0 +1,75 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.command;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Pumping the output of a chatty command, such as a provisioning run, to the console and the capture buffer.
+ */
+@State(Scope.Benchmark)
+public class OutputPumpBenchmark {
+
+    @Param({"65536", "4194304"})
+    public int outputBytes;
+
+    @Param({"1048576"})
+    public int captureLimit;
+
+    private byte[] output;
+    private PrintStream console;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder(outputBytes + 128);
+        int line = 0;
+        while (sb.length() < outputBytes) {
+            sb.append("Notice: /Stage[main]/Overcast::Package[package-").append(line++).append("]/ensure: created\n");
+        }
+        output = sb.substring(0, outputBytes).getBytes(StandardCharsets.UTF_8);
+        console = new PrintStream(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public String pump() {
+        return run(Collections.emptyList());
+    }
+
+    @Benchmark
+    public String pumpWithLineListener(Blackhole blackhole) {
+        Consumer<String> listener = blackhole::consume;
+        return run(Collections.singletonList(listener));
+    }
+
+    private String run(List<Consumer<String>> listeners) {
+        OutputPump pump = new OutputPump(new ByteArrayInputStream(output), console, captureLimit, listeners);
+        pump.run();
+        return pump.getCaptured();
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.jdom2.Document;
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.xebialabs.overcast.support.libvirt.jdom.DiskXml;
+import com.xebialabs.overcast.support.libvirt.jdom.InterfaceXml;
+
+/**
+ * Parsing and inspection of domain XML, as done for every domain that is cloned or looked up.
+ */
+@State(Scope.Benchmark)
+public class DomainXmlBenchmark {
+
+    @Param({"simple-domain", "large-domain"})
+    public String fixture;
+
+    @Param({"2"})
+    public int storagePools;
+
+    @Param({"50"})
+    public int volumesPerPool;
+
+    private String xml;
+    private Document document;
+    private Connect libvirt;
+
+    @Setup
+    public void setup() throws LibvirtException {
+        xml = Fixtures.domainXml(fixture);
+        document = JDomUtil.stringToDocument(xml);
+        libvirt = Fixtures.mockStorage(document, storagePools, volumesPerPool);
+    }
+
+    @Benchmark
+    public Document stringToDocument() {
+        return JDomUtil.stringToDocument(xml);
+    }
+
+    @Benchmark
+    public String documentToString() throws IOException {
+        return JDomUtil.documentToString(document);
+    }
+
+    @Benchmark
+    public Metadata metadataFromXml() {
+        return Metadata.fromXml(document);
+    }
+
+    @Benchmark
+    public Map<String, String> getMacs() {
+        return InterfaceXml.getMacs(document);
+    }
+
+    @Benchmark
+    public List<Disk> getDisks() {
+        return DiskXml.getDisks(libvirt, document);
+    }
+}
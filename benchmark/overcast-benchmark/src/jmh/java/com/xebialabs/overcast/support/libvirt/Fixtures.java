@@ -0,0 +1,119 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jdom2.Attribute;
+import org.jdom2.Document;
+import org.jdom2.filter.Filters;
+import org.jdom2.xpath.XPathExpression;
+import org.jdom2.xpath.XPathFactory;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.libvirt.StoragePool;
+import org.libvirt.StorageVol;
+import org.mockito.Mockito;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Domain XML fixtures and mocked libvirt objects shared by the benchmarks.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static String domainXml(String fixture) {
+        String resource = "/libvirt-xml/" + fixture + ".xml";
+        try (InputStream in = Fixtures.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalArgumentException("No fixture " + resource);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            in.transferTo(out);
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A connection with storage pools full of unrelated volumes, with the volumes of the disks of the domain in the
+     * last pool so a lookup has to go through all of them.
+     */
+    static Connect mockStorage(Document domainXml, int pools, int volumesPerPool) throws LibvirtException {
+        Connect libvirt = Mockito.mock(Connect.class);
+        List<String> diskFiles = diskFiles(domainXml);
+
+        String[] poolNames = new String[pools];
+        for (int p = 0; p < pools; p++) {
+            poolNames[p] = "pool-" + p;
+            List<String> paths = new ArrayList<>();
+            for (int v = 0; v < volumesPerPool; v++) {
+                paths.add(String.format("/var/lib/libvirt/%s/volume-%03d.qcow2", poolNames[p], v));
+            }
+            if (p == pools - 1) {
+                paths.addAll(diskFiles);
+            }
+            StoragePool pool = mockPool(paths);
+            when(libvirt.storagePoolLookupByName(poolNames[p])).thenReturn(pool);
+        }
+        when(libvirt.listStoragePools()).thenReturn(poolNames);
+        return libvirt;
+    }
+
+    private static StoragePool mockPool(List<String> paths) throws LibvirtException {
+        StoragePool pool = Mockito.mock(StoragePool.class);
+        String[] names = new String[paths.size()];
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            names[i] = path.substring(path.lastIndexOf('/') + 1);
+            StorageVol vol = Mockito.mock(StorageVol.class);
+            when(vol.getName()).thenReturn(names[i]);
+            when(vol.getPath()).thenReturn(path);
+            when(pool.storageVolLookupByName(names[i])).thenReturn(vol);
+        }
+        when(pool.listVolumes()).thenReturn(names);
+        return pool;
+    }
+
+    private static List<String> diskFiles(Document domainXml) {
+        XPathExpression<Attribute> files = XPathFactory.instance().compile("/domain/devices/disk[@device='disk']/source/@file", Filters.attribute());
+        List<String> paths = new ArrayList<>();
+        for (Attribute file : files.evaluate(domainXml)) {
+            paths.add(file.getValue());
+        }
+        return paths;
+    }
+
+    /** A defined domain with the given name and XML. */
+    static Domain mockDomain(String name, String uuid, String xml) throws LibvirtException {
+        Domain domain = Mockito.mock(Domain.class);
+        when(domain.getName()).thenReturn(name);
+        when(domain.getUUIDString()).thenReturn(uuid);
+        when(domain.getXMLDesc(0)).thenReturn(xml);
+        return domain;
+    }
+}
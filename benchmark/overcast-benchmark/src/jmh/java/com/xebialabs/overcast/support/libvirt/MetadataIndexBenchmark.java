@@ -0,0 +1,97 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.UUID;
+
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Lookups of cached and running domains through the {@link MetadataIndex} of a mocked connection with many domains.
+ * Every fourth domain is a provisioned domain, the others are clones.
+ */
+@State(Scope.Benchmark)
+public class MetadataIndexBenchmark {
+    private static final String PARENT = "large-base";
+    private static final String PROVISIONED_WITH = "/usr/bin/puppet apply --modulepath=/etc/puppet/modules /etc/puppet/manifests/site.pp";
+
+    @Param({"10", "100"})
+    public int domains;
+
+    private Connect libvirt;
+    private String checksum;
+
+    @Setup(Level.Trial)
+    public void setup() throws LibvirtException {
+        String template = Fixtures.domainXml("large-domain");
+        libvirt = Mockito.mock(Connect.class);
+
+        String[] names = new String[domains];
+        int[] ids = new int[domains];
+        for (int i = 0; i < domains; i++) {
+            names[i] = String.format("large-base-%04d", i);
+            ids[i] = i + 1;
+            String xml = template.replace("<name>large-domain</name>", "<name>" + names[i] + "</name>");
+            if (i % 4 == 0) {
+                xml = xml.replace("4f6bd3c2e3a1b5d8", "checksum-" + i);
+            } else {
+                xml = xml.replaceAll("(?s)<provisioned_with>.*</provisioned_checksum>", "");
+            }
+            Domain domain = Fixtures.mockDomain(names[i], UUID.randomUUID().toString(), xml);
+            when(libvirt.domainLookupByName(names[i])).thenReturn(domain);
+            when(libvirt.domainLookupByID(ids[i])).thenReturn(domain);
+        }
+        when(libvirt.listDefinedDomains()).thenReturn(names);
+        when(libvirt.listDomains()).thenReturn(ids);
+
+        // the last provisioned domain, so a lookup by checksum can not stop early
+        checksum = "checksum-" + ((domains - 1) / 4 * 4);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        MetadataIndex.release(libvirt);
+        DomainStateWatcher.release(libvirt);
+    }
+
+    @Benchmark
+    public Domain findProvisionedDomain() throws LibvirtException {
+        return MetadataIndex.forConnection(libvirt).findProvisionedDomain(PARENT, PROVISIONED_WITH, checksum);
+    }
+
+    @Benchmark
+    public Domain findProvisionedDomainWithEmptyIndex() throws LibvirtException {
+        MetadataIndex.release(libvirt);
+        return MetadataIndex.forConnection(libvirt).findProvisionedDomain(PARENT, PROVISIONED_WITH, checksum);
+    }
+
+    @Benchmark
+    public int findRunningClones() throws LibvirtException {
+        return MetadataIndex.forConnection(libvirt).findRunningClones(PARENT).size();
+    }
+}
@@ -65,6 +65,10 @@ public class OvercastProperties {
         return result;
     }
 
+    /** Get set of top level property names, which includes the host labels. */
+    public static Set<String> getOvercastRootPropertyNames() {
+        return new HashSet<>(getOvercastConfig().root().keySet());
+    }
 
     public static String getOvercastProperty(String key) {
         return getOvercastProperty(key, null);
@@ -15,17 +15,34 @@
  */
 package com.xebialabs.overcast.command;
 
-import java.io.*;
-import org.apache.commons.io.input.TeeInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.xebialabs.overcast.util.DaemonThreadFactory;
+
 public class CommandProcessor {
 
     public static Logger logger = LoggerFactory.getLogger(CommandProcessor.class);
 
+    public static final int DEFAULT_CAPTURE_LIMIT = 8 * 1024 * 1024;
+
+    private static final ExecutorService outputPumps = Executors.newCachedThreadPool(new DaemonThreadFactory("overcast-command-output"));
+
     private String execDir = ".";
 
+    private int captureLimit = DEFAULT_CAPTURE_LIMIT;
+    private final List<Consumer<String>> outputListeners = new ArrayList<>();
+    private final List<Consumer<String>> errorListeners = new ArrayList<>();
+
     private CommandProcessor(final String execDir) {
         this.execDir = execDir;
     }
@@ -40,6 +57,33 @@ public class CommandProcessor {
         return new CommandProcessor();
     }
 
+    /**
+     * Only keep the last <code>bytes</code> bytes of stdout and stderr in the {@link CommandResponse}.
+     */
+    public CommandProcessor withCaptureLimit(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Capture limit must be > 0");
+        }
+        this.captureLimit = bytes;
+        return this;
+    }
+
+    /**
+     * Receive every line written to stdout while commands run.
+     */
+    public CommandProcessor withOutputListener(Consumer<String> listener) {
+        outputListeners.add(listener);
+        return this;
+    }
+
+    /**
+     * Receive every line written to stderr while commands run.
+     */
+    public CommandProcessor withErrorListener(Consumer<String> listener) {
+        errorListeners.add(listener);
+        return this;
+    }
+
     public CommandResponse run(final Command command) {
 
         logger.debug("Executing command {}", command);
@@ -47,20 +91,23 @@ public class CommandProcessor {
         try {
             Process p = new ProcessBuilder(command.asList()).directory(new File(execDir)).start();
 
-            // We do this small trick to have stdout and stderr of the process on the console and
-            // at the same time capture them to strings.
-            ByteArrayOutputStream errors = new ByteArrayOutputStream();
-            ByteArrayOutputStream messages = new ByteArrayOutputStream();
+            // Show stdout and stderr of the process on the console and at the same time capture the tail of them.
+            OutputPump errors = new OutputPump(p.getErrorStream(), System.err, captureLimit, errorListeners);
+            OutputPump messages = new OutputPump(p.getInputStream(), System.out, captureLimit, outputListeners);
 
-            Thread t1 = showProcessOutput(new TeeInputStream(p.getErrorStream(), errors), System.err);
-            Thread t2 = showProcessOutput(new TeeInputStream(p.getInputStream(), messages), System.out);
+            Future<?> f1 = outputPumps.submit(errors);
+            Future<?> f2 = outputPumps.submit(messages);
 
             int code = p.waitFor();
 
-            t1.join();
-            t2.join();
+            f1.get();
+            f2.get();
+
+            if (errors.getDroppedBytes() > 0 || messages.getDroppedBytes() > 0) {
+                logger.debug("Output of {} exceeded {} bytes, only the last part has been kept", command, captureLimit);
+            }
 
-            CommandResponse response = new CommandResponse(code, errors.toString(), messages.toString());
+            CommandResponse response = new CommandResponse(code, errors.getCaptured(), messages.getCaptured());
 
             if (!response.isSuccessful()) {
                 throw new NonZeroCodeException(command, response);
@@ -71,25 +118,8 @@ public class CommandProcessor {
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Cannot execute " + command.toString(), e);
-        } catch (IOException e) {
+        } catch (IOException | ExecutionException e) {
             throw new RuntimeException("Cannot execute " + command.toString(), e);
         }
     }
-
-    private Thread showProcessOutput(final InputStream from, final PrintStream to) {
-        Thread t = new Thread(() -> {
-            try {
-                for (; ; ) {
-                    int c = from.read();
-                    if (c == -1)
-                        break;
-                    to.write((char) c);
-                }
-            } catch (IOException ignore) {
-            }
-        });
-        t.start();
-        return t;
-    }
-
 }
@@ -0,0 +1,162 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.command;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Copies the output of a process to the console in chunks while keeping the last <code>captureLimit</code> bytes of
+ * it and passing complete lines to listeners. Lines are split on bytes, so multi-byte UTF-8 characters are never cut
+ * in half.
+ */
+class OutputPump implements Runnable {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final InputStream from;
+    private final PrintStream to;
+    private final List<Consumer<String>> lineListeners;
+    private final TailBuffer captured;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    OutputPump(InputStream from, PrintStream to, int captureLimit, List<Consumer<String>> lineListeners) {
+        this.from = from;
+        this.to = to;
+        this.lineListeners = lineListeners;
+        this.captured = new TailBuffer(captureLimit);
+    }
+
+    @Override
+    public void run() {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try {
+            int n;
+            while ((n = from.read(chunk)) != -1) {
+                to.write(chunk, 0, n);
+                to.flush();
+                captured.append(chunk, 0, n);
+                if (!lineListeners.isEmpty()) {
+                    splitLines(chunk, n);
+                }
+            }
+        } catch (IOException ignore) {
+        }
+        if (line.size() > 0) {
+            fireLine();
+        }
+    }
+
+    private void splitLines(byte[] chunk, int n) {
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            if (chunk[i] == '\n') {
+                line.write(chunk, start, i - start);
+                fireLine();
+                start = i + 1;
+            }
+        }
+        line.write(chunk, start, n - start);
+    }
+
+    private void fireLine() {
+        String s = new String(line.toByteArray(), UTF_8);
+        line.reset();
+        if (s.endsWith("\r")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        for (Consumer<String> listener : lineListeners) {
+            listener.accept(s);
+        }
+    }
+
+    String getCaptured() {
+        return captured.toString();
+    }
+
+    long getDroppedBytes() {
+        return captured.dropped;
+    }
+
+    /**
+     * Keeps the last <code>limit</code> bytes appended to it. The backing array grows as needed up to the limit after
+     * which it is used as a ring.
+     */
+    static class TailBuffer {
+        private final int limit;
+        private byte[] buf;
+        private int start;
+        private int size;
+        private long dropped;
+
+        TailBuffer(int limit) {
+            this.limit = limit;
+            this.buf = new byte[Math.min(limit, 1024)];
+        }
+
+        void append(byte[] b, int off, int len) {
+            if (len >= limit) {
+                dropped += size + len - limit;
+                System.arraycopy(b, off + len - limit, ensureCapacity(limit), 0, limit);
+                start = 0;
+                size = limit;
+                return;
+            }
+            int overflow = size + len - limit;
+            if (overflow > 0) {
+                start = (start + overflow) % limit;
+                size -= overflow;
+                dropped += overflow;
+            }
+            byte[] target = ensureCapacity(size + len);
+            int end = (start + size) % target.length;
+            int first = Math.min(len, target.length - end);
+            System.arraycopy(b, off, target, end, first);
+            System.arraycopy(b, off + first, target, 0, len - first);
+            size += len;
+        }
+
+        private byte[] ensureCapacity(int capacity) {
+            if (capacity > buf.length) {
+                // contents only wrap around once the array has reached the limit, growing keeps them in place
+                buf = Arrays.copyOf(buf, Math.min(limit, Math.max(capacity, buf.length * 2)));
+            }
+            return buf;
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[size];
+            int first = Math.min(size, buf.length - start);
+            System.arraycopy(buf, start, bytes, 0, first);
+            System.arraycopy(buf, 0, bytes, first, size - first);
+            int skip = 0;
+            if (dropped > 0) {
+                // do not start in the middle of a multi-byte character
+                while (skip < bytes.length && (bytes[skip] & 0xC0) == 0x80) {
+                    skip++;
+                }
+            }
+            return new String(bytes, skip, bytes.length - skip, UTF_8);
+        }
+    }
+}
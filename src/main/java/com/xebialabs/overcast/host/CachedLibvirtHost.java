@@ -18,11 +18,18 @@ package com.xebialabs.overcast.host;
 import java.net.ConnectException;
 import java.net.NoRouteToHostException;
 import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.jdom2.Document;
 import org.libvirt.Connect;
 import org.libvirt.Domain;
 import org.libvirt.LibvirtException;
@@ -37,9 +44,12 @@ import com.xebialabs.overcast.support.libvirt.DomainWrapper;
 import com.xebialabs.overcast.support.libvirt.Filesystem;
 import com.xebialabs.overcast.support.libvirt.IpLookupStrategy;
 import com.xebialabs.overcast.support.libvirt.LibvirtRuntimeException;
-import com.xebialabs.overcast.support.libvirt.LibvirtUtil;
 import com.xebialabs.overcast.support.libvirt.LoggingOutputHandler;
-import com.xebialabs.overcast.support.libvirt.Metadata;
+import com.xebialabs.overcast.support.libvirt.MetadataIndex;
+import com.xebialabs.overcast.support.libvirt.ProvisioningLease;
+import com.xebialabs.overcast.util.Backoff;
+import com.xebialabs.overcast.util.RetryCommand;
+import com.xebialabs.overcast.util.RetryException;
 import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.OverthereConnection;
 import com.xebialabs.overthere.OverthereExecutionOutputHandler;
@@ -64,6 +74,16 @@ public class CachedLibvirtHost extends LibvirtHost {
     public static final String CACHE_EXPIRATION_CMD = ".provision.expirationTag.cmd";
     public static final String CACHE_EXPIRATION_URL = ".provision.expirationTag.url";
     public static final String PROVISIONED_BOOT_DELAY = ".provision.bootDelay";
+    public static final String PROVISION_LEASE_TIMEOUT = ".provision.leaseTimeout";
+    public static final String PROVISION_LEASE_TIMEOUT_DEFAULT = "60";
+    public static final String PROVISION_WAIT_TIMEOUT = ".provision.waitTimeout";
+    public static final String PROVISION_WAIT_TIMEOUT_DEFAULT = "3600";
+
+    /** Maximum number of seconds between checks whether another process has finished provisioning. */
+    static final int PROVISION_WAIT_POLL_SECONDS = 5;
+
+    /** Lookups of a cached domain in progress by the hosts of this process, completed with the name of the domain. */
+    private static final Map<List<Object>, CompletableFuture<String>> cachedDomainLookups = new ConcurrentHashMap<>();
 
     private final String provisionCmd;
     private final String provisionUrl;
@@ -76,6 +96,8 @@ public class CachedLibvirtHost extends LibvirtHost {
     private String provisionedCloneIp;
     private final int provisionedbootDelay;
     private final int provisionStartTimeout;
+    private int leaseTimeout = Integer.parseInt(PROVISION_LEASE_TIMEOUT_DEFAULT);
+    private int waitTimeout = Integer.parseInt(PROVISION_WAIT_TIMEOUT_DEFAULT);
 
     CachedLibvirtHost(String hostLabel, Connect libvirt,
         String baseDomainName, IpLookupStrategy ipLookupStrategy, String networkName,
@@ -102,25 +124,25 @@ public class CachedLibvirtHost extends LibvirtHost {
         return arg;
     }
 
+    /**
+     * Configure the lease that makes sure only one process provisions a cached domain at a time.
+     *
+     * @param leaseTimeout seconds after which the lease of a process that died expires
+     * @param waitTimeout maximum number of seconds to wait for another process to provision the domain
+     */
+    void setProvisioningLease(int leaseTimeout, int waitTimeout) {
+        checkArgument(leaseTimeout > 0, "leaseTimeout must be positive");
+        this.leaseTimeout = leaseTimeout;
+        this.waitTimeout = waitTimeout;
+    }
+
     @Override
     public void setup() {
-        DomainWrapper cachedDomain = findFirstCachedDomain();
-        if (cachedDomain == null) {
-            logger.info("No cached domain, creating a new cached domain");
-
-            // create a clone to provision
-            super.setup();
-            String ip = super.getHostName();
-
-            provisionDomain(ip, copySpec, provisionStartTimeout);
-
-            // shut down the provisioned domain so it can be cloned again
-            DomainWrapper clone = super.getClone();
-            clone.acpiShutdown();
-
-            clone.updateMetadata(getBaseDomainName(), provisionCmd, getExpirationTag(), new Date());
-            provisionedClone = createProvisionedClone();
-        } else {
+        ensureConnection();
+        provisionedClone = null;
+        DomainWrapper cachedDomain = findOrProvisionCachedDomain();
+        // when this host provisioned the cached domain it already created its clone
+        if (provisionedClone == null) {
             String baseName = super.getBaseDomainName();
             String cloneName = baseName + "-" + UUID.randomUUID().toString();
 
@@ -130,76 +152,197 @@ public class CachedLibvirtHost extends LibvirtHost {
 
         provisionedCloneIp = waitUntilRunningAndGetIP(provisionedClone);
 
-        bootDelay(provisionedbootDelay);
+        waitUntilReady(provisionedClone, provisionedCloneIp, provisionedbootDelay);
+    }
+
+    /**
+     * Find the cached domain, provisioning it when there is none. Hosts of this process with the same cache key that
+     * set up at the same time share one lookup, so the expiration tag is determined once and only one of them
+     * provisions.
+     */
+    DomainWrapper findOrProvisionCachedDomain() {
+        List<Object> key = Arrays.asList(getConnectionKey(), getBaseDomainName(), provisionCmd, cacheExpirationCmd, cacheExpirationUrl);
+        CompletableFuture<String> lookup = new CompletableFuture<>();
+        CompletableFuture<String> inProgress = cachedDomainLookups.putIfAbsent(key, lookup);
+        if (inProgress != null) {
+            logger.info("Waiting for the cached domain of '{}' that is looked up by another host", getBaseDomainName());
+            try {
+                return lookupCachedDomain(awaitLookup(inProgress));
+            } catch (CompletionException e) {
+                throw new RuntimeException(String.format("Unable to get a cached domain for '%s'", getBaseDomainName()), e.getCause());
+            }
+        }
+
+        try {
+            String expirationTag = getExpirationTag();
+            DomainWrapper cachedDomain = findFirstCachedDomain(expirationTag);
+            if (cachedDomain == null) {
+                cachedDomain = provisionOrAwaitCachedDomain(expirationTag);
+            }
+            lookup.complete(cachedDomain.getName());
+            return cachedDomain;
+        } catch (RuntimeException e) {
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            cachedDomainLookups.remove(key, lookup);
+        }
+    }
+
+    /** Wait for the lookup of another host, returning the name of the cached domain it found. */
+    String awaitLookup(CompletableFuture<String> inProgress) {
+        return inProgress.join();
+    }
+
+    protected DomainWrapper lookupCachedDomain(String name) {
+        try {
+            return DomainWrapper.newWrapper(libvirt.domainLookupByName(name));
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException(String.format("Unable to look up cached domain '%s'", name), e);
+        }
+    }
+
+    /**
+     * Provision a new cached domain while holding the {@link ProvisioningLease}, or wait for the process holding it
+     * to finish provisioning. A lease left behind by a process that died is taken over once it has expired.
+     */
+    private DomainWrapper provisionOrAwaitCachedDomain(String expirationTag) {
+        String leaseName = ProvisioningLease.leaseName(getBaseDomainName(), provisionCmd, expirationTag);
+        String domainType = getBaseDomain().getDomainXml().getRootElement().getAttributeValue("type");
+        AtomicBoolean waiting = new AtomicBoolean();
+        try {
+            return new RetryCommand<DomainWrapper>()
+                .withTimeout(Duration.ofSeconds(waitTimeout))
+                .withBackoff(Backoff.exponential(Duration.ofMillis(500), Duration.ofSeconds(PROVISION_WAIT_POLL_SECONDS)))
+                // provisioning failures are not retried, only waiting for the lease is
+                .retryIf(e -> false)
+                .until(Objects::nonNull)
+                .run(() -> {
+                    DomainWrapper cachedDomain = provisionUnderLease(leaseName, domainType, expirationTag);
+                    if (cachedDomain == null && waiting.compareAndSet(false, true)) {
+                        logger.info("Waiting for another process to provision a cached domain for '{}' (lease '{}')", getBaseDomainName(), leaseName);
+                    }
+                    return cachedDomain;
+                });
+        } catch (RetryException e) {
+            throw new RuntimeException(String.format("No cached domain for '%s' provisioned by another process within %d seconds", getBaseDomainName(), waitTimeout), e);
+        }
+    }
+
+    /**
+     * @return the cached domain or <code>null</code> when another process holds the lease.
+     */
+    private DomainWrapper provisionUnderLease(String leaseName, String domainType, String expirationTag) {
+        // also removes the lease of a holder that died, so the next attempt can take over
+        try (ProvisioningLease lease = ProvisioningLease.tryAcquire(libvirt, leaseName, domainType, leaseTimeout * 1000L)) {
+            if (lease == null) {
+                return null;
+            }
+            // another process may have finished provisioning since we last looked
+            MetadataIndex.invalidateAll(libvirt);
+            DomainWrapper cachedDomain = findFirstCachedDomain(expirationTag);
+            if (cachedDomain != null) {
+                return cachedDomain;
+            }
+            return provisionCachedDomain(expirationTag);
+        }
+    }
+
+    /**
+     * Provision a clone of the base domain and create the clone of this host from it.
+     *
+     * @return the provisioned domain, which is the new cached domain.
+     */
+    protected DomainWrapper provisionCachedDomain(String expirationTag) {
+        logger.info("No cached domain, creating a new cached domain");
+
+        // create a clone to provision
+        super.setup();
+        String ip = super.getHostName();
+
+        provisionDomain(ip, copySpec, provisionStartTimeout);
+
+        // shut down the provisioned domain so it can be cloned again
+        DomainWrapper clone = super.getClone();
+        clone.acpiShutdown();
+
+        clone.updateMetadata(getBaseDomainName(), provisionCmd, expirationTag, new Date());
+        provisionedClone = createProvisionedClone();
+        return clone;
+    }
+
+    @Override
+    protected void waitUntilBooted(DomainWrapper clone, String ip) {
+        // the probes are for the provisioned system, provisioning itself retries until the clone can be reached
+        bootDelay(getBootDelay());
     }
 
     protected void provisionDomain(String ip, List<String> copySpec, int startTimeout) {
-        OverthereConnection remote = null;
-        int seconds = startTimeout;
         String baseDomainName = this.getBaseDomainName();
         try {
             // SSH connections will fail in getRemoteConnection
             // CIFS in the actual provisioning call
-            while (seconds >= 0) {
-                try {
-                    remote = getRemoteConnection(ip);
-                    copyFiles(remote, copySpec);
-                    provisionHost(remote, ip);
-                    return;
-                } catch (RuntimeIOException e) {
-                    Throwable cause = e.getCause();
-                    while (cause != null && !(cause instanceof ConnectException || cause instanceof NoRouteToHostException)) {
-                        cause = cause.getCause();
-                    }
-                    if (!(cause instanceof ConnectException || cause instanceof NoRouteToHostException)) {
+            new RetryCommand<Void>()
+                .withTimeout(Duration.ofSeconds(startTimeout))
+                .withBackoff(Backoff.exponential(Duration.ofMillis(250), Duration.ofSeconds(1)))
+                .retryIf(CachedLibvirtHost::isConnectFailure)
+                .run(() -> {
+                    try (OverthereConnection remote = getRemoteConnection(ip)) {
+                        copyFiles(remote, copySpec);
+                        provisionHost(remote, ip);
+                    } catch (RuntimeIOException e) {
+                        if (isConnectFailure(e)) {
+                            logger.debug("Could not connect to '{}' at '{}' for provisioning, retrying", baseDomainName, ip);
+                        }
                         throw e;
                     }
-                    logger.debug("Could not connect to '{}' at '{}' for provisioning, retrying", baseDomainName, ip);
-                }
-                sleep(1);
-                seconds--;
-            }
+                    return null;
+                });
+        } catch (RetryException e) {
+            // timed out => clean up
+            super.getClone().destroyWithDisks();
+            throw new RuntimeException(String.format("Could not start provisioning clone from '%s' within %d seconds", baseDomainName, startTimeout));
         } catch (RuntimeException e) {
             logger.error("Failed to provision '{}' cleaning up", baseDomainName);
             super.getClone().destroyWithDisks();
             throw e;
-        } finally {
-            if (remote != null) {
-                remote.close();
-            }
         }
-        // timed out => clean up
-        super.getClone().destroyWithDisks();
-        throw new RuntimeException(String.format("Could not start provisioning clone from '%s' within %d seconds", baseDomainName, startTimeout));
+    }
+
+    private static boolean isConnectFailure(Throwable e) {
+        if (!(e instanceof RuntimeIOException)) {
+            return false;
+        }
+        Throwable cause = e.getCause();
+        while (cause != null && !(cause instanceof ConnectException || cause instanceof NoRouteToHostException)) {
+            cause = cause.getCause();
+        }
+        return cause != null;
     }
 
     protected DomainWrapper findFirstCachedDomain() {
+        return findFirstCachedDomain(getExpirationTag());
+    }
+
+    protected DomainWrapper findFirstCachedDomain(String checkSum) {
         final String baseDomainName = super.getBaseDomainName();
-        final String checkSum = getExpirationTag();
         logger.debug("Looking for a cached domain '{}' with checksum '{}'", baseDomainName, checkSum);
         try {
-            List<Domain> domains = LibvirtUtil.getDefinedDomains(libvirt);
-            for (Domain domain : domains) {
-                String domainName = domain.getName();
-                Document doc = LibvirtUtil.loadDomainXml(domain);
-                Metadata md = Metadata.fromXml(doc);
-                if (md == null || !md.isProvisioned()) {
-                    continue;
-                }
-                logger.debug("Found domain '{}' with metadata {}", domainName, md);
-                if (!md.getParentDomain().equals(baseDomainName)) {
-                    continue;
-                }
-                if (!md.getProvisionedWith().equals(provisionCmd)) {
-                    continue;
-                }
-                if (!md.getProvisionedChecksum().equals(checkSum)) {
-                    logger.debug("Domain '{}' is stale (checksum={})", domainName, md.getProvisionedChecksum());
-                    deleteStaleDomain(new DomainWrapper(domain, doc));
-                    continue;
+            MetadataIndex index = MetadataIndex.forConnection(libvirt);
+            for (String staleDomainName : index.findStaleDomains(baseDomainName, provisionCmd, checkSum)) {
+                logger.debug("Domain '{}' is stale", staleDomainName);
+                try {
+                    deleteStaleDomain(DomainWrapper.newWrapper(libvirt.domainLookupByName(staleDomainName)));
+                } catch (LibvirtException | LibvirtRuntimeException e) {
+                    // it may be that another job deleted the domain before us...
+                    logger.debug("Ignoring exception while looking up stale domain", e);
                 }
-                logger.debug("Found domain '{}' found for '{}'", domainName, baseDomainName);
-                return new DomainWrapper(domain, doc);
+            }
+
+            Domain domain = index.findProvisionedDomain(baseDomainName, provisionCmd, checkSum);
+            if (domain != null) {
+                logger.debug("Found domain '{}' found for '{}'", domain.getName(), baseDomainName);
+                return DomainWrapper.newWrapper(domain);
             }
             logger.debug("No cached domain found for '{}' with checksum '{}'", baseDomainName, checkSum);
             return null;
@@ -219,23 +362,15 @@ public class CachedLibvirtHost extends LibvirtHost {
                 // it may be that another job deleted the domain before us...
                 logger.debug("Ignoring exception while cleaning stale domain", e);
             }
+            MetadataIndex.invalidate(libvirt, staleDomainName);
         }
     }
 
     protected static boolean isDomainSafeToDelete(Connect libvirt, String staleDomainName) throws LibvirtException {
-        List<Domain> domains = LibvirtUtil.getRunningDomains(libvirt);
-
-        for (Domain domain : domains) {
-            Document doc = LibvirtUtil.loadDomainXml(domain);
-            Metadata md = Metadata.fromXml(doc);
-            if (md == null || md.isProvisioned()) {
-                continue;
-            }
-
-            if (md.getParentDomain().equals(staleDomainName)) {
-                logger.info("Not deleting stale domain '{}' still used by '{}'", staleDomainName, domain.getName());
-                return false;
-            }
+        List<String> clones = MetadataIndex.forConnection(libvirt).findRunningClones(staleDomainName);
+        if (!clones.isEmpty()) {
+            logger.info("Not deleting stale domain '{}' still used by '{}'", staleDomainName, clones.get(0));
+            return false;
         }
         return true;
     }
@@ -252,9 +387,13 @@ public class CachedLibvirtHost extends LibvirtHost {
 
     @Override
     public void teardown() {
-        if (provisionedClone != null) {
-            provisionedClone.destroyWithDisks();
-            provisionedClone = null;
+        try {
+            if (provisionedClone != null) {
+                provisionedClone.destroyWithDisks();
+                provisionedClone = null;
+            }
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -25,9 +25,13 @@ import com.xebialabs.overcast.support.vagrant.VagrantDriver;
 import com.xebialabs.overcast.support.vagrant.VagrantState;
 import com.xebialabs.overcast.support.virtualbox.VirtualboxDriver;
 import com.xebialabs.overcast.support.virtualbox.VirtualboxState;
+import com.xebialabs.overcast.util.Backoff;
+import com.xebialabs.overcast.util.RetryCommand;
+import com.xebialabs.overcast.util.RetryException;
 import com.xebialabs.overthere.*;
 import com.xebialabs.overthere.spi.OverthereConnectionBuilder;
 
+import java.time.Duration;
 import java.util.Map;
 
 class CachedVagrantCloudHost extends VagrantCloudHost {
@@ -85,23 +89,19 @@ class CachedVagrantCloudHost extends VagrantCloudHost {
             virtualboxDriver.loadLatestSnapshot(vagrantVm);
             logger.info("Waiting for the VM to become accessible...");
 
-            boolean connected = false;
-            int currentAttempt = 1;
-
-            while(!connected && currentAttempt < CONNECTION_ATTEMPTS) {
-                try(OverthereConnection c = connectionBuilder.connect()) {
-                    c.execute(CmdLine.build("hostname"));
-                    connected = true;
-                } catch (RuntimeIOException re) {
-                    currentAttempt++;
-                    logger.info(re.getMessage());
-                    logger.info("Proceeding with attempt {}", currentAttempt);
-                    try {
-                        Thread.sleep(CONNECTION_RETRY_DELAY);
-                    } catch (InterruptedException se) {
-                        throw new RuntimeException(se);
-                    }
-                }
+            try {
+                new RetryCommand<Void>()
+                    .withMaxAttempts(CONNECTION_ATTEMPTS - 1)
+                    .withBackoff(Backoff.exponential(Duration.ofMillis(250), Duration.ofMillis(CONNECTION_RETRY_DELAY)))
+                    .retryOn(RuntimeIOException.class)
+                    .run(() -> {
+                        try (OverthereConnection c = connectionBuilder.connect()) {
+                            c.execute(CmdLine.build("hostname"));
+                        }
+                        return null;
+                    });
+            } catch (RetryException e) {
+                logger.warn("VM '{}' did not become accessible: {}", vagrantVm, e.getMessage());
             }
 
         } else {
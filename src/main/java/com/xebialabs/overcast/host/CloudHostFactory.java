@@ -18,13 +18,20 @@ package com.xebialabs.overcast.host;
 import com.xebialabs.overcast.OvercastProperties;
 import com.xebialabs.overcast.command.Command;
 import com.xebialabs.overcast.command.CommandProcessor;
+import com.xebialabs.overcast.readiness.Readiness;
 import com.xebialabs.overcast.support.docker.Config;
+import com.xebialabs.overcast.support.docker.ContainerReadiness;
+import com.xebialabs.overcast.support.docker.DockerClientRegistry;
+import com.xebialabs.overcast.support.docker.DockerContainerPool;
+import com.xebialabs.overcast.support.docker.ImagePrefetcher;
 import com.xebialabs.overcast.support.libvirt.Filesystem;
 import com.xebialabs.overcast.support.libvirt.Filesystem.AccessMode;
 import com.xebialabs.overcast.support.libvirt.IpLookupStrategy;
-import com.xebialabs.overcast.support.libvirt.LibvirtUtil;
+import com.xebialabs.overcast.support.libvirt.LibvirtConnectionPool;
+import com.xebialabs.overcast.support.ssh.SshSessionConfig;
 import com.xebialabs.overcast.support.vagrant.VagrantDriver;
 import com.xebialabs.overcast.support.virtualbox.VirtualboxDriver;
+import com.xebialabs.overcast.util.WarmPool;
 import com.xebialabs.overthere.ConnectionOptions;
 import com.xebialabs.overthere.OperatingSystemFamily;
 import com.xebialabs.overthere.cifs.CifsConnectionBuilder;
@@ -37,10 +44,13 @@ import org.libvirt.Connect;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.file.Paths;
 import java.util.*;
 
 import static com.xebialabs.overcast.OvercastProperties.*;
+import static com.xebialabs.overcast.Preconditions.checkArgument;
 import static com.xebialabs.overcast.Strings.isNullOrEmpty;
 import static com.xebialabs.overcast.command.CommandProcessor.atCurrentDir;
 import static com.xebialabs.overcast.command.CommandProcessor.atLocation;
@@ -56,6 +66,14 @@ public class CloudHostFactory {
     public static final String TUNNEL_PORTS_PROPERTY_SUFFIX = ".tunnel.ports";
     public static final String TUNNEL_SETUP_TIMEOUT = ".tunnel.setupTimeout";
     public static final String TUNNEL_DEFAULT_SETUP_TIMEOUT = "0";
+    public static final String TUNNEL_HOST_PROPERTY_SUFFIX = ".tunnel.host";
+    public static final String TUNNEL_SSH_PORT_PROPERTY_SUFFIX = ".tunnel.sshPort";
+    public static final String TUNNEL_PRIVATE_KEY_PROPERTY_SUFFIX = ".tunnel.privateKey.file";
+    public static final String TUNNEL_PASSPHRASE_PROPERTY_SUFFIX = ".tunnel.privateKey" + OvercastProperties.PASSWORD_PROPERTY_SUFFIX;
+    public static final String TUNNEL_CIPHERS_PROPERTY_SUFFIX = ".tunnel.ciphers";
+    public static final String TUNNEL_COMPRESSION_PROPERTY_SUFFIX = ".tunnel.compression";
+    public static final String TUNNEL_KEEPALIVE_INTERVAL_PROPERTY_SUFFIX = ".tunnel.keepAliveInterval";
+    public static final String TUNNEL_EPHEMERAL_PORTS_PROPERTY_SUFFIX = ".tunnel.ephemeralPorts";
 
     private static final String VMWARE_AUTH_HASHED_CREDENTIALS = ".vmwareAuthHashCredentials";
 
@@ -73,6 +91,12 @@ public class CloudHostFactory {
 
     public static Logger logger = LoggerFactory.getLogger(CloudHostFactory.class);
 
+    private static final Map<String, WarmPool<LibvirtHost.PooledClone>> libvirtWarmPools = new HashMap<>();
+
+    private static final Map<String, DockerContainerPool> dockerPools = new HashMap<>();
+
+    private static boolean dockerImagesPrefetched;
+
     public static CloudHost getCloudHostWithNoTeardown(String hostLabel) {
         return getCloudHost(hostLabel, true);
     }
@@ -82,6 +106,7 @@ public class CloudHostFactory {
     }
 
     private static CloudHost getCloudHost(String hostLabel, boolean disableEc2) {
+        prefetchDockerImages();
         CloudHost host = createCloudHost(hostLabel, disableEc2);
         return wrapCloudHost(hostLabel, host);
     }
@@ -125,6 +150,28 @@ public class CloudHostFactory {
         throw new IllegalStateException("No valid configuration has been specified for host label " + label);
     }
 
+    /** Start pulling the images of all configured docker hosts, so they are there by the time they are set up. */
+    private static synchronized void prefetchDockerImages() {
+        if (dockerImagesPrefetched) {
+            return;
+        }
+        dockerImagesPrefetched = true;
+        for (String label : getOvercastRootPropertyNames()) {
+            String image = getOvercastProperty(label + Config.DOCKER_IMAGE_SUFFIX);
+            if (image == null || !getOvercastBooleanProperty(label + Config.DOCKER_PREFETCH_SUFFIX, true)) {
+                continue;
+            }
+            String dockerHostName = getOvercastProperty(label + Config.DOCKER_HOST_SUFFIX);
+            String certificates = getOvercastProperty(label + Config.DOCKER_CERTIFICATES_SUFFIX);
+            try {
+                URI uri = dockerHostName == null ? null : new URI(dockerHostName);
+                ImagePrefetcher.forDaemon(uri, isNullOrEmpty(certificates) ? null : Paths.get(certificates)).prefetch(image);
+            } catch (URISyntaxException | RuntimeException e) {
+                logger.warn("Not prefetching image '{}' for host label '{}'", image, label, e);
+            }
+        }
+    }
+
     private static CloudHost createDockerHost(String label, String image) {
         String dockerHostName = getOvercastProperty(label + Config.DOCKER_HOST_SUFFIX);
         String certificates = getOvercastProperty(label + Config.DOCKER_CERTIFICATES_SUFFIX);
@@ -141,15 +188,51 @@ public class CloudHostFactory {
         dockerHost.setExposedPorts(new HashSet<>(getOvercastListProperty(label + Config.DOCKER_EXPOSED_PORTS_SUFFIX)));
         dockerHost.setLinks(getOvercastListProperty(label + Config.DOCKER_LINKS_SUFFIX));
         dockerHost.setPortBindings(new HashSet<>(getOvercastListProperty(label + Config.DOCKER_PORT_BINDINGS_SUFFIX)));
+        dockerHost.setContainerReadiness(ContainerReadiness.fromProperties(label));
+        dockerHost.setReadiness(Readiness.fromProperties(label, ContainerReadiness.READINESS_TIMEOUT_DEFAULT));
+
+        if (getOvercastBooleanProperty(label + Config.DOCKER_WARM_POOL_ENABLED_SUFFIX)) {
+            checkArgument(dockerHost.hasNoPortBindings(), "Host label '%s' can not combine portBindings with a warm pool", label);
+            checkArgument(dockerHost.getName() == null, "Host label '%s' can not combine a container name with a warm pool", label);
+            dockerHost.setPool(getDockerPool(label, dockerHost));
+        }
 
         return dockerHost;
     }
 
+    /** Get the container pool for a label, creating and starting it the first time from the first host of the label. */
+    private static synchronized DockerContainerPool getDockerPool(String label, DockerHost host) {
+        DockerContainerPool pool = dockerPools.get(label);
+        if (pool == null) {
+            DockerContainerPool.Mode mode = DockerContainerPool.Mode.valueOf(getOvercastProperty(label + Config.DOCKER_WARM_POOL_MODE_SUFFIX, Config.DOCKER_WARM_POOL_MODE_DEFAULT));
+            int snapshotDelay = Integer.parseInt(getOvercastProperty(label + Config.DOCKER_WARM_POOL_SNAPSHOT_DELAY_SUFFIX, Config.DOCKER_WARM_POOL_SNAPSHOT_DELAY_DEFAULT));
+            int lowWatermark = Integer.parseInt(getOvercastProperty(label + Config.DOCKER_WARM_POOL_LOW_WATERMARK_SUFFIX, Config.DOCKER_WARM_POOL_LOW_WATERMARK_DEFAULT));
+            int highWatermark = Integer.parseInt(getOvercastProperty(label + Config.DOCKER_WARM_POOL_HIGH_WATERMARK_SUFFIX, Config.DOCKER_WARM_POOL_HIGH_WATERMARK_DEFAULT));
+            long maxAgeSeconds = Long.parseLong(getOvercastProperty(label + Config.DOCKER_WARM_POOL_MAX_AGE_SUFFIX, Config.DOCKER_WARM_POOL_MAX_AGE_DEFAULT));
+
+            logger.info("Starting {} container pool for {} (lowWatermark={}, highWatermark={}, maxAge={}s)", mode, label, lowWatermark, highWatermark, maxAgeSeconds);
+            pool = host.getDockerDriver().createPool(label, mode, snapshotDelay, lowWatermark, highWatermark, maxAgeSeconds * 1000);
+            // the pool needs the shared docker client to remove its containers
+            DockerClientRegistry.runBeforeClose(pool::close);
+            pool.start();
+            dockerPools.put(label, pool);
+        }
+        return pool;
+    }
+
     private static CloudHost createLibvirtHost(String label, String kvmBaseDomain) {
         String libvirtURL = getOvercastProperty(label + LIBVIRT_URL_PROPERTY_SUFFIX, LIBVIRT_URL_DEFAULT);
 
-        Connect libvirt = LibvirtUtil.getConnection(libvirtURL, false);
+        Connect libvirt = LibvirtConnectionPool.acquire(libvirtURL);
+        try {
+            return createLibvirtHost(label, kvmBaseDomain, libvirtURL, libvirt);
+        } catch (RuntimeException e) {
+            LibvirtConnectionPool.release(libvirtURL);
+            throw e;
+        }
+    }
 
+    private static LibvirtHost createLibvirtHost(String label, String kvmBaseDomain, String libvirtURL, Connect libvirt) {
         int startTimeout = Integer.parseInt(getOvercastProperty(label + LIBVIRT_START_TIMEOUT_PROPERTY_SUFFIX, LIBVIRT_START_TIMEOUT_DEFAULT));
         int bootDelay = Integer.parseInt(getOvercastProperty(label + LIBVIRT_BOOT_DELAY_PROPERTY_SUFFIX, LIBVIRT_BOOT_DELAY_DEFAULT));
         String networkName = getOvercastProperty(label + LIBVIRT_NETWORK_DEVICE_ID_PROPERTY_SUFFIX);
@@ -165,7 +248,14 @@ public class CloudHostFactory {
         String provisionCmd = getOvercastProperty(label + PROVISION_CMD);
 
         if (provisionCmd == null) {
-            return new LibvirtHost(libvirt, kvmBaseDomain, ipLookupStrategy, networkName, startTimeout, bootDelay, fsMappings);
+            LibvirtHost host = new LibvirtHost(libvirt, kvmBaseDomain, ipLookupStrategy, networkName, startTimeout, bootDelay, fsMappings);
+            host.usePooledConnection(libvirtURL);
+            host.setTransientClones(getOvercastBooleanProperty(label + LIBVIRT_TRANSIENT_SUFFIX));
+            host.setReadiness(Readiness.fromProperties(label, LIBVIRT_BOOT_SECONDS_DEFAULT));
+            if (getOvercastBooleanProperty(label + LIBVIRT_WARM_POOL_ENABLED_SUFFIX)) {
+                host.setWarmPool(getLibvirtWarmPool(label, libvirtURL, host));
+            }
+            return host;
         } else {
             String provisionUrl = getRequiredOvercastProperty(label + PROVISION_URL);
             String cacheExpirationUrl = getOvercastProperty(label + CACHE_EXPIRATION_URL);
@@ -175,11 +265,38 @@ public class CloudHostFactory {
             List<String> copySpec = getOvercastListProperty(label + COPY_SPEC, Collections.emptyList());
             CommandProcessor cmdProcessor = atCurrentDir();
 
-            return new CachedLibvirtHost(label, libvirt, kvmBaseDomain, ipLookupStrategy, networkName, provisionUrl, provisionCmd, cacheExpirationUrl,
+            CachedLibvirtHost host = new CachedLibvirtHost(label, libvirt, kvmBaseDomain, ipLookupStrategy, networkName, provisionUrl, provisionCmd, cacheExpirationUrl,
                     cacheExpirationCmd, cmdProcessor, startTimeout, bootDelay, provisionStartTimeout, provisionedBootDelay, fsMappings, copySpec);
+            host.usePooledConnection(libvirtURL);
+            host.setReadiness(Readiness.fromProperties(label, LIBVIRT_BOOT_SECONDS_DEFAULT));
+            host.setProvisioningLease(Integer.parseInt(getOvercastProperty(label + PROVISION_LEASE_TIMEOUT, PROVISION_LEASE_TIMEOUT_DEFAULT)),
+                    Integer.parseInt(getOvercastProperty(label + PROVISION_WAIT_TIMEOUT, PROVISION_WAIT_TIMEOUT_DEFAULT)));
+            return host;
         }
     }
 
+    /**
+     * Get the warm pool for a label, creating and starting it the first time with the settings of the first host
+     * created for the label. The pool keeps its own reference to the libvirt connection so it stays open when that
+     * host is torn down, and creates the clones on that connection.
+     */
+    private static synchronized WarmPool<LibvirtHost.PooledClone> getLibvirtWarmPool(String label, String libvirtURL, LibvirtHost host) {
+        WarmPool<LibvirtHost.PooledClone> pool = libvirtWarmPools.get(label);
+        if (pool == null) {
+            LibvirtConnectionPool.acquire(libvirtURL);
+            int lowWatermark = Integer.parseInt(getOvercastProperty(label + LIBVIRT_WARM_POOL_LOW_WATERMARK_SUFFIX, LIBVIRT_WARM_POOL_LOW_WATERMARK_DEFAULT));
+            int highWatermark = Integer.parseInt(getOvercastProperty(label + LIBVIRT_WARM_POOL_HIGH_WATERMARK_SUFFIX, LIBVIRT_WARM_POOL_HIGH_WATERMARK_DEFAULT));
+            long maxAgeSeconds = Long.parseLong(getOvercastProperty(label + LIBVIRT_WARM_POOL_MAX_AGE_SUFFIX, LIBVIRT_WARM_POOL_MAX_AGE_DEFAULT));
+
+            logger.info("Starting warm pool for {} (lowWatermark={}, highWatermark={}, maxAge={}s)", label, lowWatermark, highWatermark, maxAgeSeconds);
+            pool = host.createWarmPool(label, libvirtURL, lowWatermark, highWatermark, maxAgeSeconds * 1000);
+            Runtime.getRuntime().addShutdownHook(new Thread(pool::close, "overcast-pool-shutdown-" + label));
+            pool.start();
+            libvirtWarmPools.put(label, pool);
+        }
+        return pool;
+    }
+
     private static Filesystem createFilesystem(String target, String path) {
         String source = getRequiredOvercastProperty(path + ".hostPath");
         AccessMode accessMode = AccessMode.valueOf(getOvercastProperty(path + ".accessMode", AccessMode.PASSTHROUGH.toString()));
@@ -282,10 +399,23 @@ public class CloudHostFactory {
 
         logger.info("Starting SSH tunnels for {}", label);
 
-        String tunnelPassword = getRequiredOvercastProperty(label + TUNNEL_PASSWORD_PROPERTY_SUFFIX);
+        String privateKey = getOvercastProperty(label + TUNNEL_PRIVATE_KEY_PROPERTY_SUFFIX);
+        String tunnelPassword = privateKey == null ? getRequiredOvercastProperty(label + TUNNEL_PASSWORD_PROPERTY_SUFFIX) : getOvercastProperty(label + TUNNEL_PASSWORD_PROPERTY_SUFFIX);
         String ports = getRequiredOvercastProperty(label + TUNNEL_PORTS_PROPERTY_SUFFIX);
         int timeout = Integer.parseInt(getOvercastProperty(label + TUNNEL_SETUP_TIMEOUT, TUNNEL_DEFAULT_SETUP_TIMEOUT));
         Map<Integer, Integer> portForwardMap = parsePortsProperty(ports);
-        return new TunneledCloudHost(actualHost, tunnelUsername, tunnelPassword, portForwardMap, timeout);
+        if (getOvercastBooleanProperty(label + TUNNEL_EPHEMERAL_PORTS_PROPERTY_SUFFIX)) {
+            portForwardMap.replaceAll((remotePort, localPort) -> TunneledCloudHost.EPHEMERAL_PORT);
+        }
+        TunneledCloudHost host = new TunneledCloudHost(actualHost, tunnelUsername, tunnelPassword, portForwardMap, timeout);
+        host.setTunnelHost(getOvercastProperty(label + TUNNEL_HOST_PROPERTY_SUFFIX));
+        host.setSshPort(Integer.parseInt(getOvercastProperty(label + TUNNEL_SSH_PORT_PROPERTY_SUFFIX, Integer.toString(SshSessionConfig.DEFAULT_PORT))));
+        host.setPrivateKeyFile(privateKey);
+        host.setPassphrase(getOvercastProperty(label + TUNNEL_PASSPHRASE_PROPERTY_SUFFIX));
+        host.setCiphers(getOvercastListProperty(label + TUNNEL_CIPHERS_PROPERTY_SUFFIX));
+        host.setCompression(getOvercastBooleanProperty(label + TUNNEL_COMPRESSION_PROPERTY_SUFFIX));
+        host.setKeepAliveInterval(Integer.parseInt(getOvercastProperty(label + TUNNEL_KEEPALIVE_INTERVAL_PROPERTY_SUFFIX,
+            Integer.toString(SshSessionConfig.DEFAULT_KEEPALIVE_INTERVAL_SECONDS))));
+        return host;
     }
 }
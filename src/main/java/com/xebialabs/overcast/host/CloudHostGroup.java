@@ -0,0 +1,264 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.host;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overcast.util.DaemonThreadFactory;
+
+import static com.xebialabs.overcast.Preconditions.checkArgument;
+import static com.xebialabs.overcast.Preconditions.checkState;
+
+/**
+ * A set of hosts that are set up and torn down together.
+ * <p>Hosts are set up concurrently, a host is only set up after the hosts it depends on are up. The number of hosts
+ * being set up at the same time can be limited globally and per backend (<code>libvirt</code>, <code>docker</code>,
+ * <code>vagrant</code>, <code>vmware</code>, <code>virtualbox</code>, <code>ec2</code> or <code>existing</code>).
+ * When a host fails to set up no new hosts are started, the failed host and the hosts that were set up are torn down
+ * again.
+ * <p>Teardown happens in parallel as well, a host is torn down after the hosts that depend on it.
+ */
+public class CloudHostGroup {
+    private static final Logger logger = LoggerFactory.getLogger(CloudHostGroup.class);
+
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    private final Function<String, CloudHost> hostCreator;
+    private final Map<String, Set<String>> dependencies = new LinkedHashMap<>();
+    private final Map<String, Integer> backendConcurrency = new HashMap<>();
+    private int concurrency = DEFAULT_CONCURRENCY;
+
+    private final Map<String, CloudHost> hosts = new ConcurrentHashMap<>();
+
+    CloudHostGroup(Function<String, CloudHost> hostCreator) {
+        this.hostCreator = hostCreator;
+    }
+
+    public static CloudHostGroup aGroup(String... labels) {
+        return new CloudHostGroup(CloudHostFactory::getCloudHost).withHosts(labels);
+    }
+
+    public CloudHostGroup withHosts(String... labels) {
+        for (String label : labels) {
+            dependencies.computeIfAbsent(label, l -> new LinkedHashSet<>());
+        }
+        return this;
+    }
+
+    /**
+     * Only set up the host with <code>label</code> after the host with label <code>dependsOn</code> is up.
+     */
+    public CloudHostGroup withDependency(String label, String dependsOn) {
+        withHosts(label, dependsOn);
+        dependencies.get(label).add(dependsOn);
+        return this;
+    }
+
+    /** Maximum number of hosts that are set up or torn down at the same time. */
+    public CloudHostGroup withConcurrency(int concurrency) {
+        checkArgument(concurrency > 0, "concurrency must be > 0");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /** Maximum number of hosts of one backend that are set up at the same time. */
+    public CloudHostGroup withBackendConcurrency(String backend, int concurrency) {
+        checkArgument(concurrency > 0, "concurrency must be > 0");
+        backendConcurrency.put(backend, concurrency);
+        return this;
+    }
+
+    public CloudHost getHost(String label) {
+        CloudHost host = hosts.get(label);
+        checkArgument(host != null, "Host '%s' has not been set up", label);
+        return host;
+    }
+
+    public void setup() {
+        checkState(hosts.isEmpty(), "Hosts have already been set up");
+        List<String> order = setupOrder();
+
+        Map<String, Semaphore> backendPermits = new ConcurrentHashMap<>();
+        Map<String, CompletableFuture<Void>> setups = new HashMap<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("overcast-setup"));
+        try {
+            for (String label : order) {
+                CompletableFuture<?>[] dependsOn = dependencies.get(label).stream().map(setups::get).toArray(CompletableFuture[]::new);
+                setups.put(label, CompletableFuture.allOf(dependsOn).thenRunAsync(() -> {
+                    if (!failures.isEmpty()) {
+                        throw new CompletionException(new IllegalStateException("Not setting up '" + label + "', another host failed"));
+                    }
+                    CloudHost host = null;
+                    try {
+                        host = hostCreator.apply(label);
+                        Semaphore permits = backendPermits.computeIfAbsent(backendOf(host),
+                            b -> new Semaphore(backendConcurrency.getOrDefault(b, concurrency)));
+                        permits.acquireUninterruptibly();
+                        try {
+                            logger.info("Setting up host '{}'", label);
+                            host.setup();
+                            hosts.put(label, host);
+                        } finally {
+                            permits.release();
+                        }
+                    } catch (RuntimeException e) {
+                        logger.error("Failed to set up host '{}'", label, e);
+                        if (host != null) {
+                            // a host can fail halfway, only it knows what it started
+                            try {
+                                host.teardown();
+                            } catch (RuntimeException t) {
+                                e.addSuppressed(t);
+                            }
+                        }
+                        failures.add(e);
+                        throw e;
+                    }
+                }, executor));
+            }
+            for (CompletableFuture<Void> f : setups.values()) {
+                try {
+                    f.join();
+                } catch (CompletionException ignored) {
+                    // collected in failures
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        if (!failures.isEmpty()) {
+            logger.info("Tearing down {} hosts that were set up", hosts.size());
+            RuntimeException failure = new RuntimeException("Failed to set up hosts", failures.get(0));
+            try {
+                teardown();
+            } catch (RuntimeException e) {
+                failure.addSuppressed(e);
+            }
+            throw failure;
+        }
+    }
+
+    public void teardown() {
+        Map<String, Set<String>> dependents = new HashMap<>();
+        for (Map.Entry<String, Set<String>> e : dependencies.entrySet()) {
+            for (String dependency : e.getValue()) {
+                dependents.computeIfAbsent(dependency, l -> new HashSet<>()).add(e.getKey());
+            }
+        }
+
+        List<String> order = setupOrder();
+        Collections.reverse(order);
+
+        Map<String, CompletableFuture<Void>> teardowns = new HashMap<>();
+        List<RuntimeException> failures = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("overcast-teardown"));
+        try {
+            for (String label : order) {
+                CompletableFuture<?>[] after = dependents.getOrDefault(label, Collections.emptySet()).stream().map(teardowns::get)
+                    .toArray(CompletableFuture[]::new);
+                // a failing teardown must not keep the hosts it depends on alive
+                teardowns.put(label, CompletableFuture.allOf(after).handleAsync((ignored, t) -> {
+                    CloudHost host = hosts.remove(label);
+                    if (host != null) {
+                        try {
+                            logger.info("Tearing down host '{}'", label);
+                            host.teardown();
+                        } catch (RuntimeException e) {
+                            logger.error("Failed to tear down host '{}'", label, e);
+                            failures.add(e);
+                        }
+                    }
+                    return null;
+                }, executor));
+            }
+            CompletableFuture.allOf(teardowns.values().toArray(new CompletableFuture[0])).join();
+        } finally {
+            executor.shutdown();
+        }
+
+        if (!failures.isEmpty()) {
+            RuntimeException failure = new RuntimeException("Failed to tear down hosts", failures.get(0));
+            for (int i = 1; i < failures.size(); i++) {
+                failure.addSuppressed(failures.get(i));
+            }
+            throw failure;
+        }
+    }
+
+    /** Labels ordered so that every label comes after the labels it depends on. */
+    private List<String> setupOrder() {
+        List<String> order = new ArrayList<>();
+        Set<String> visiting = new HashSet<>();
+        for (String label : dependencies.keySet()) {
+            visit(label, visiting, order);
+        }
+        return order;
+    }
+
+    private void visit(String label, Set<String> visiting, List<String> order) {
+        if (order.contains(label)) {
+            return;
+        }
+        checkArgument(visiting.add(label), "Cyclic dependency involving host '%s'", label);
+        for (String dependency : dependencies.get(label)) {
+            visit(dependency, visiting, order);
+        }
+        visiting.remove(label);
+        order.add(label);
+    }
+
+    static String backendOf(CloudHost host) {
+        if (host instanceof TunneledCloudHost) {
+            host = ((TunneledCloudHost) host).getActualHost();
+        }
+        if (host instanceof LibvirtHost) {
+            return "libvirt";
+        } else if (host instanceof DockerHost) {
+            return "docker";
+        } else if (host instanceof VagrantCloudHost) {
+            return "vagrant";
+        } else if (host instanceof VMWareHost) {
+            return "vmware";
+        } else if (host instanceof VirtualboxHost) {
+            return "virtualbox";
+        } else if (host instanceof Ec2CloudHost) {
+            return "ec2";
+        } else if (host instanceof ExistingCloudHost) {
+            return "existing";
+        }
+        return host.getClass().getSimpleName();
+    }
+}
@@ -23,6 +23,9 @@ import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.xebialabs.overcast.readiness.Readiness;
+import com.xebialabs.overcast.support.docker.ContainerReadiness;
+import com.xebialabs.overcast.support.docker.DockerContainerPool;
 import com.xebialabs.overcast.support.docker.DockerDriver;
 
 public class DockerHost implements CloudHost {
@@ -44,6 +47,11 @@ public class DockerHost implements CloudHost {
     private Set<String> portBindings;
     private List<String> links;
 
+    private DockerContainerPool pool;
+
+    private ContainerReadiness containerReadiness;
+    private Readiness readiness;
+
     public DockerHost(String image, String dockerHostName, Path certificatesPath) {
         try {
             this.image = image;
@@ -69,11 +77,50 @@ public class DockerHost implements CloudHost {
 
     @Override
     public void setup() {
-        dockerDriver.runContainer();
+        if (!checkoutFromPool()) {
+            dockerDriver.runContainer();
+        }
+        waitUntilReady();
+    }
+
+    private boolean checkoutFromPool() {
+        if (pool == null) {
+            return false;
+        }
+        String containerId = pool.checkout();
+        if (containerId == null) {
+            return false;
+        }
+        logger.info("Using container {} from pool", containerId);
+        dockerDriver.useContainer(containerId);
+        return true;
+    }
+
+    private void waitUntilReady() {
+        try {
+            if (containerReadiness != null) {
+                dockerDriver.awaitReady(containerReadiness);
+            }
+            if (readiness != null) {
+                readiness.await(getHostName(), this::getPort);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Container {} did not become ready, tearing down. ({})", dockerDriver.getContainerId(), e.getMessage());
+            teardown();
+            throw e;
+        }
     }
 
     @Override
     public void teardown() {
+        if (pool != null) {
+            String containerId = dockerDriver.getContainerId();
+            // there is nothing to recycle when the container could not be created
+            if (containerId != null) {
+                pool.recycle(containerId);
+            }
+            return;
+        }
         dockerDriver.killAndRemoveContainer();
     }
 
@@ -179,6 +226,30 @@ public class DockerHost implements CloudHost {
         this.portBindings = portBindings;
     }
 
+    public DockerContainerPool getPool() {
+        return pool;
+    }
+
+    public void setPool(final DockerContainerPool pool) {
+        this.pool = pool;
+    }
+
+    public ContainerReadiness getContainerReadiness() {
+        return containerReadiness;
+    }
+
+    public void setContainerReadiness(final ContainerReadiness containerReadiness) {
+        this.containerReadiness = containerReadiness;
+    }
+
+    public Readiness getReadiness() {
+        return readiness;
+    }
+
+    public void setReadiness(final Readiness readiness) {
+        this.readiness = readiness;
+    }
+
     public boolean hasNoPortBindings() {
         return portBindings == null || portBindings.isEmpty();
     }
@@ -15,14 +15,20 @@
  */
 package com.xebialabs.overcast.host;
 
+import java.time.Duration;
 import java.util.Collections;
 import java.util.Date;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.*;
 
+import com.xebialabs.overcast.readiness.Readiness;
+import com.xebialabs.overcast.util.Backoff;
+import com.xebialabs.overcast.util.RetryCommand;
+
 import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
 import static com.xebialabs.overcast.OvercastProperties.getRequiredOvercastProperty;
 import static java.util.Arrays.asList;
@@ -40,6 +46,8 @@ class Ec2CloudHost implements CloudHost {
     public static final String AWS_ENDPOINT_PROPERTY = "aws.endpoint";
     public static final String AWS_SECRET_KEY_PROPERTY = "aws.secretKey";
 
+    private static final String INSTANCE_NOT_FOUND = "InvalidInstanceID.NotFound";
+
     private final String hostLabel;
     private final String amiId;
     private final String awsEndpointURL;
@@ -50,6 +58,7 @@ class Ec2CloudHost implements CloudHost {
     private final String amiSecurityGroup;
     private final String amiKeyName;
     private final int amiBootSeconds;
+    private final Readiness readiness;
 
     private final AmazonEC2Client ec2;
     private String instanceId;
@@ -68,6 +77,7 @@ class Ec2CloudHost implements CloudHost {
         this.amiSecurityGroup = getRequiredOvercastProperty(hostLabel + AMI_SECURITY_GROUP_PROPERTY_SUFFIX);
         this.amiKeyName = getRequiredOvercastProperty(hostLabel + AMI_KEY_NAME_PROPERTY_SUFFIX);
         this.amiBootSeconds = Integer.parseInt(getRequiredOvercastProperty(hostLabel + AMI_BOOT_SECONDS_PROPERTY_SUFFIX));
+        this.readiness = Readiness.fromProperties(hostLabel, Integer.toString(amiBootSeconds));
 
         ec2 = new AmazonEC2Client(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
         ec2.setEndpoint(awsEndpointURL);
@@ -169,23 +179,30 @@ class Ec2CloudHost implements CloudHost {
     }
 
     public String waitUntilRunningAndGetPublicDnsName() {
-        // Give Amazon some time to settle before we ask it for information
-        sleep(5);
-
-        for (; ; ) {
-            DescribeInstancesRequest describe = new DescribeInstancesRequest().withInstanceIds(Collections.singletonList(instanceId));
-            Instance instance = ec2.describeInstances(describe).getReservations().get(0).getInstances().get(0);
-            if (instance.getState().getName().equals("running")) {
-                return instance.getPublicDnsName();
-            }
-
-            logger.info("Instance {} is still {}. Waiting...", instanceId, instance.getState().getName());
-            sleep(1);
-        }
-
+        Instance instance = new RetryCommand<Instance>()
+            .withBackoff(Backoff.exponential(Duration.ofMillis(500), Duration.ofSeconds(5)))
+            // Amazon may not know about the instance yet right after it has been started
+            .retryIf(e -> e instanceof AmazonServiceException && INSTANCE_NOT_FOUND.equals(((AmazonServiceException) e).getErrorCode()))
+            .until(i -> {
+                if (i.getState().getName().equals("running")) {
+                    return true;
+                }
+                logger.info("Instance {} is still {}. Waiting...", instanceId, i.getState().getName());
+                return false;
+            })
+            .run(() -> {
+                DescribeInstancesRequest describe = new DescribeInstancesRequest().withInstanceIds(Collections.singletonList(instanceId));
+                return ec2.describeInstances(describe).getReservations().get(0).getInstances().get(0);
+            });
+        return instance.getPublicDnsName();
     }
 
     protected void waitForAmiBoot() {
+        if (readiness != null) {
+            logger.info("Waiting at most {} seconds for the image to become ready", readiness.getTimeoutSeconds());
+            readiness.await(publicDnsAddress, port -> port);
+            return;
+        }
         logger.info("Waiting {} seconds for the image to finish booting", amiBootSeconds);
         sleep(amiBootSeconds);
     }
@@ -24,11 +24,14 @@ import org.libvirt.LibvirtException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.xebialabs.overcast.readiness.Readiness;
 import com.xebialabs.overcast.support.libvirt.DomainWrapper;
 import com.xebialabs.overcast.support.libvirt.Filesystem;
 import com.xebialabs.overcast.support.libvirt.IpLookupStrategy;
+import com.xebialabs.overcast.support.libvirt.LibvirtConnectionPool;
 import com.xebialabs.overcast.support.libvirt.SshIpLookupStrategy;
 import com.xebialabs.overcast.support.libvirt.StaticIpLookupStrategy;
+import com.xebialabs.overcast.util.WarmPool;
 
 import static com.xebialabs.overcast.OvercastProperties.getRequiredOvercastProperty;
 
@@ -47,6 +50,15 @@ class LibvirtHost implements CloudHost {
     public static final String LIBVIRT_NETWORK_DEVICE_ID_PROPERTY_SUFFIX = ".network";
     public static final String LIBVIRT_IP_LOOKUP_STRATEGY_PROPERTY_SUFFIX = ".ipLookupStrategy";
     public static final String LIBVIRT_FS_MAPPING_SUFFIX = ".fsMapping";
+    public static final String LIBVIRT_TRANSIENT_SUFFIX = ".transient";
+
+    public static final String LIBVIRT_WARM_POOL_ENABLED_SUFFIX = ".warmPool.enabled";
+    public static final String LIBVIRT_WARM_POOL_LOW_WATERMARK_SUFFIX = ".warmPool.lowWatermark";
+    public static final String LIBVIRT_WARM_POOL_LOW_WATERMARK_DEFAULT = "1";
+    public static final String LIBVIRT_WARM_POOL_HIGH_WATERMARK_SUFFIX = ".warmPool.highWatermark";
+    public static final String LIBVIRT_WARM_POOL_HIGH_WATERMARK_DEFAULT = "2";
+    public static final String LIBVIRT_WARM_POOL_MAX_AGE_SUFFIX = ".warmPool.maxAge";
+    public static final String LIBVIRT_WARM_POOL_MAX_AGE_DEFAULT = "1800";
 
     public static final String LIBVIRT_URL_DEFAULT = "qemu:///system";
     public static final String LIBVIRT_BOOT_SECONDS_DEFAULT = "60";
@@ -57,15 +69,36 @@ class LibvirtHost implements CloudHost {
     private final String networkName;
 
     protected Connect libvirt;
-    private final DomainWrapper baseDomain;
+    private DomainWrapper baseDomain;
     private final String baseDomainName;
 
+    // set when libvirt is a connection from the LibvirtConnectionPool
+    private String libvirtURL;
+    private boolean connectionHeld;
+
     private DomainWrapper clone;
     private String hostIp;
     private final IpLookupStrategy ipLookupStrategy;
 
     private final List<Filesystem> filesystemMappings;
 
+    private WarmPool<PooledClone> warmPool;
+
+    private Readiness readiness;
+
+    private boolean transientClones;
+
+    /** A clone that is running and has a known IP. */
+    static class PooledClone {
+        private final DomainWrapper clone;
+        private final String ip;
+
+        PooledClone(DomainWrapper clone, String ip) {
+            this.clone = clone;
+            this.ip = ip;
+        }
+    }
+
     public LibvirtHost(Connect libvirt, String baseDomainName, IpLookupStrategy ipLookupStrategy, String networkName, int startTimeout, int bootDelay, List<Filesystem> filesystemMappings) {
         this.libvirt = libvirt;
         this.baseDomainName = baseDomainName;
@@ -74,9 +107,12 @@ class LibvirtHost implements CloudHost {
         this.networkName = networkName;
         this.ipLookupStrategy = ipLookupStrategy;
         this.filesystemMappings = filesystemMappings;
+        this.baseDomain = lookupBaseDomain(libvirt, baseDomainName);
+    }
 
+    private static DomainWrapper lookupBaseDomain(Connect libvirt, String baseDomainName) {
         try {
-            this.baseDomain = DomainWrapper.newWrapper(libvirt.domainLookupByName(baseDomainName));
+            return DomainWrapper.newWrapper(libvirt.domainLookupByName(baseDomainName));
         } catch (LibvirtException e) {
             throw new RuntimeException(e);
         }
@@ -100,19 +136,121 @@ class LibvirtHost implements CloudHost {
 
     @Override
     public void setup() {
+        ensureConnection();
         if (baseDomain.getState() != DomainState.VIR_DOMAIN_SHUTOFF) {
             throw new IllegalStateException(String.format("baseDomain '%s' must be shut off before it can be cloned.", baseDomainName));
         }
+        if (warmPool != null) {
+            PooledClone pooled = checkoutRunningClone();
+            if (pooled != null) {
+                logger.info("Using clone '{}' from warm pool '{}'", pooled.clone.getName(), warmPool.getName());
+                clone = pooled.clone;
+                hostIp = pooled.ip;
+                return;
+            }
+        }
         clone = createClone();
         hostIp = waitUntilRunningAndGetIP(clone);
-        bootDelay(bootDelay);
+        waitUntilBooted(clone, hostIp);
+    }
+
+    /** Check out a pooled clone, discarding clones that crashed or were shut down while they were idle. */
+    private PooledClone checkoutRunningClone() {
+        PooledClone pooled;
+        while ((pooled = warmPool.checkout()) != null) {
+            DomainState state;
+            try {
+                state = pooled.clone.getState();
+            } catch (RuntimeException e) {
+                logger.debug("Unable to get state of pooled clone '{}'", pooled.clone.getName(), e);
+                state = null;
+            }
+            if (state == DomainState.VIR_DOMAIN_RUNNING) {
+                return pooled;
+            }
+            logger.warn("Pooled clone '{}' is no longer running (state={}), discarding it", pooled.clone.getName(), state);
+            warmPool.discard(pooled);
+        }
+        return null;
+    }
+
+    /**
+     * Use the connection to libvirtURL acquired from the {@link LibvirtConnectionPool} that this host was created
+     * with. It is released on {@link #teardown()} and acquired again on the next {@link #setup()}.
+     */
+    void usePooledConnection(String libvirtURL) {
+        this.libvirtURL = libvirtURL;
+        this.connectionHeld = true;
+    }
+
+    /** Make sure a pooled connection is held and alive, switching to a new connection when it was replaced. */
+    protected synchronized void ensureConnection() {
+        if (libvirtURL == null) {
+            return;
+        }
+        Connect current = connectionHeld ? LibvirtConnectionPool.revalidate(libvirtURL) : LibvirtConnectionPool.acquire(libvirtURL);
+        connectionHeld = true;
+        if (current != libvirt) {
+            libvirt = current;
+            baseDomain = lookupBaseDomain(libvirt, baseDomainName);
+        }
+    }
+
+    protected synchronized void releaseConnection() {
+        if (libvirtURL != null && connectionHeld) {
+            connectionHeld = false;
+            LibvirtConnectionPool.release(libvirtURL);
+        }
+    }
+
+    /** Create the clones as transient domains. Clones that are to be used as base domain must not be transient. */
+    void setTransientClones(boolean transientClones) {
+        this.transientClones = transientClones;
+    }
+
+    void setReadiness(Readiness readiness) {
+        this.readiness = readiness;
+    }
+
+    void setWarmPool(WarmPool<PooledClone> warmPool) {
+        this.warmPool = warmPool;
+    }
+
+    /**
+     * Create a pool of running clones of the base domain of this host. The pool creates clones exactly like
+     * {@link #setup()} does, so a clone handed out by the pool is indistinguishable from a freshly created one.
+     * <p>The pool must hold its own reference to the pooled connection to libvirtURL. Every clone is created from the
+     * base domain looked up on the current connection, so the pool follows a reconnect instead of using the connection
+     * of this host, which may be torn down.
+     */
+    WarmPool<PooledClone> createWarmPool(String name, String libvirtURL, int lowWatermark, int highWatermark, long maxAgeMillis) {
+        return new WarmPool<>(name, new WarmPool.Factory<PooledClone>() {
+            @Override
+            public PooledClone create() {
+                DomainWrapper base = lookupBaseDomain(LibvirtConnectionPool.revalidate(libvirtURL), baseDomainName);
+                DomainWrapper pooled = createClone(base);
+                String ip = waitUntilRunningAndGetIP(pooled);
+                waitUntilBooted(pooled, ip);
+                return new PooledClone(pooled, ip);
+            }
+
+            @Override
+            public void destroy(PooledClone item) {
+                logger.info("Destroying pooled clone '{}'", item.clone.getName());
+                item.clone.destroyWithDisks();
+            }
+        }, lowWatermark, highWatermark, maxAgeMillis);
     }
 
     @Override
     public void teardown() {
-        if (clone != null) {
-            clone.destroyWithDisks();
-            clone = null;
+        try {
+            if (clone != null) {
+                clone.destroyWithDisks();
+                clone = null;
+            }
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -134,24 +272,35 @@ class LibvirtHost implements CloudHost {
         return baseDomainName;
     }
 
+    /** Identifies the hypervisor, hosts with the same key share a connection. */
+    protected Object getConnectionKey() {
+        return libvirtURL != null ? libvirtURL : libvirt;
+    }
+
+    protected DomainWrapper getBaseDomain() {
+        return baseDomain;
+    }
+
+    protected int getBootDelay() {
+        return bootDelay;
+    }
+
     protected DomainWrapper createClone() {
-        String baseName = baseDomain.getName();
+        return createClone(baseDomain);
+    }
+
+    private DomainWrapper createClone(DomainWrapper base) {
+        String baseName = base.getName();
         String cloneName = baseName + "-" + UUID.randomUUID().toString();
         logger.info("Creating clone '{}' from base domain '{}'", cloneName, baseName);
-        return baseDomain.cloneWithBackingStore(cloneName, filesystemMappings);
+        return base.cloneWithBackingStore(cloneName, filesystemMappings, transientClones);
     }
 
     protected String waitUntilRunningAndGetIP(DomainWrapper clone) {
         String name = clone.getName();
         try {
-            int seconds = startTimeout;
-            DomainState state = DomainState.VIR_DOMAIN_NOSTATE;
-            while (state != DomainState.VIR_DOMAIN_RUNNING && seconds >= 0) {
-                state = clone.getState();
-                logger.debug("Waiting {}s for clone '{}' to become running ({})", seconds, name, state);
-                sleep(1);
-                seconds--;
-            }
+            logger.debug("Waiting {}s for clone '{}' to become running", startTimeout, name);
+            DomainState state = clone.waitForState(DomainState.VIR_DOMAIN_RUNNING, startTimeout);
             if (state != DomainState.VIR_DOMAIN_RUNNING) {
                 String msg = String.format("Clone '%s' not running after %d seconds (state=%s)", name, startTimeout, state);
                 throw new RuntimeException(msg);
@@ -169,6 +318,30 @@ class LibvirtHost implements CloudHost {
         }
     }
 
+    /**
+     * Wait for a freshly started clone of the base domain.
+     */
+    protected void waitUntilBooted(DomainWrapper clone, String ip) {
+        waitUntilReady(clone, ip, bootDelay);
+    }
+
+    /**
+     * Wait until the readiness probes pass or, when none are configured, for a fixed delay.
+     */
+    protected void waitUntilReady(DomainWrapper clone, String ip, int delaySeconds) {
+        if (readiness == null) {
+            bootDelay(delaySeconds);
+            return;
+        }
+        try {
+            readiness.await(ip, port -> port);
+        } catch (RuntimeException e) {
+            logger.error("Clone '{}' did not become ready, destroying. ({})", clone.getName(), e.getMessage());
+            clone.destroyWithDisks();
+            throw e;
+        }
+    }
+
     protected void bootDelay(int delaySeconds) {
         logger.info("Waiting {} seconds for VM to boot up", delaySeconds);
         sleep(delaySeconds);
@@ -19,77 +19,51 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.NoRouteToHostException;
-import java.net.ServerSocket;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.connection.channel.direct.LocalPortForwarder;
-import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.xebialabs.overcast.support.ssh.ForwardingEngine;
+import com.xebialabs.overcast.support.ssh.SshSessionConfig;
+import com.xebialabs.overcast.support.ssh.SshSessionRegistry;
+import com.xebialabs.overcast.support.ssh.Tunnel;
+import com.xebialabs.overcast.util.Backoff;
+import com.xebialabs.overcast.util.RetryCommand;
+import com.xebialabs.overcast.util.RetryException;
+
 import static com.xebialabs.overcast.Preconditions.checkArgument;
 
 class TunneledCloudHost implements CloudHost {
     private static final Logger logger = LoggerFactory.getLogger(TunneledCloudHost.class);
 
+    /** Local port that lets the operating system pick a free port, so several test runs can tunnel on one machine. */
+    static final int EPHEMERAL_PORT = 0;
+
     private final CloudHost actualHost;
     private final String username;
     private final String password;
     private final int setupTimeout;
     private final Map<Integer, Integer> portForwardMap;
+    // the local ports actually bound, which differ from portForwardMap for ephemeral ports
+    private final Map<Integer, Integer> localPorts = new ConcurrentHashMap<>();
 
-    private SSHClient client;
-    private final List<PortForwarder> portForwarders;
-
-    private static class PortForwarder {
-        private final Thread thread;
-        private final ServerSocket socket;
-
-        private PortForwarder(Thread thread, ServerSocket socket) {
-            this.thread = thread;
-            this.socket = socket;
-        }
-
-        public String getName() {
-            return thread.getName();
-        }
-
-        public static PortForwarder create(SSHClient client, String remoteHostName, String localHost, int localPort, String remoteHost, int remotePort)
-            throws IOException {
-            final LocalPortForwarder.Parameters params = new LocalPortForwarder.Parameters(localHost, localPort, remoteHost, remotePort);
-
-            ServerSocket ss = new ServerSocket();
-            ss.setReuseAddress(true);
-            ss.bind(new InetSocketAddress(localHost, localPort));
+    private String tunnelHost;
+    private int sshPort = SshSessionConfig.DEFAULT_PORT;
+    private String privateKeyFile;
+    private String passphrase;
+    private List<String> ciphers = new ArrayList<>();
+    private boolean compression;
+    private int keepAliveInterval = SshSessionConfig.DEFAULT_KEEPALIVE_INTERVAL_SECONDS;
 
-            final LocalPortForwarder forwarder = client.newLocalPortForwarder(params, ss);
-            Thread forwarderThread = new Thread(() -> {
-                try {
-                    forwarder.listen();
-                } catch (IOException ignore) {
-                }
-            }, "SSH port forwarder thread from local port " + localPort + " to " + remoteHostName + ":" + remotePort);
-            forwarderThread.setDaemon(true);
-
-            logger.info("Starting {}", forwarderThread.getName());
-            forwarderThread.start();
-
-            return new PortForwarder(forwarderThread, ss);
-        }
-
-        public void close() {
-            try {
-                thread.interrupt();
-                socket.close();
-            } catch (IOException e) {
-                logger.debug("Ignoring exception while closing forwarding socket.", e);
-            }
-        }
-    }
+    private SshSessionConfig session;
+    private final List<Tunnel> tunnels;
 
     TunneledCloudHost(CloudHost actualHost, String username, String password, Map<Integer, Integer> portForwardMap, int setupTimeout) {
         checkArgument(setupTimeout >= 0, "setupTimeout must be >= 0");
@@ -97,62 +71,110 @@ class TunneledCloudHost implements CloudHost {
         this.username = username;
         this.password = password;
         this.portForwardMap = portForwardMap;
+        this.localPorts.putAll(portForwardMap);
         this.setupTimeout = setupTimeout;
-        this.portForwarders = new ArrayList<>();
+        this.tunnels = new ArrayList<>();
     }
 
     @Override
     public void setup() {
         actualHost.setup();
 
-        client = new SSHClient();
-        client.addHostKeyVerifier(new PromiscuousVerifier());
+        // through a jump box the ports are forwarded to the actual host, otherwise to the SSH server itself
+        String sshHost = tunnelHost != null ? tunnelHost : actualHost.getHostName();
+        String targetHost = tunnelHost != null ? actualHost.getHostName() : "localhost";
+        SshSessionConfig config = createSessionConfig(sshHost);
         try {
-            int i = setupTimeout;
-
-            while (i >= 0) {
-                try {
-                    client.connect(actualHost.getHostName(), 22);
-                    client.authPassword(username, password);
-                    break;
-                } catch (IOException e) {
-                    if (!(e instanceof ConnectException || e instanceof NoRouteToHostException)) {
-                        throw e;
-                    }
-                    logger.debug("Could not connect to '{}' to set up tunnels, retrying for {} seconds", actualHost.getHostName(), i);
-                    sleep(1);
-                    i--;
-                }
-            }
+            new RetryCommand<SSHClient>()
+                .withTimeout(Duration.ofSeconds(setupTimeout))
+                .withBackoff(Backoff.exponential(Duration.ofMillis(100), Duration.ofSeconds(1)))
+                .retryOn(ConnectException.class, NoRouteToHostException.class)
+                .call(() -> SshSessionRegistry.acquire(config));
+            session = config;
+            logger.info("Forwarding {} ports of {} through SSH session {}", portForwardMap.size(), actualHost.getHostName(), config);
             for (Map.Entry<Integer, Integer> forwardedPort : portForwardMap.entrySet()) {
                 int remotePort = forwardedPort.getKey();
                 int localPort = forwardedPort.getValue();
 
-                PortForwarder forwarder = PortForwarder.create(client, actualHost.getHostName(), "localhost", localPort, "localhost", remotePort);
-                portForwarders.add(forwarder);
+                String name = "SSH tunnel from local port " + (localPort == EPHEMERAL_PORT ? "(ephemeral)" : localPort) + " to " + actualHost.getHostName() + ":" + remotePort;
+                Tunnel tunnel = ForwardingEngine.shared().open(name, () -> SshSessionRegistry.current(config), new InetSocketAddress("localhost", localPort), targetHost, remotePort);
+                tunnels.add(tunnel);
+                localPorts.put(remotePort, tunnel.getLocalPort());
+                if (localPort == EPHEMERAL_PORT) {
+                    logger.info("Forwarding local port {} to {}:{}", tunnel.getLocalPort(), actualHost.getHostName(), remotePort);
+                }
             }
-        } catch (IOException exc) {
+        } catch (IOException | RetryException exc) {
             throw new RuntimeException("Cannot set up tunnels to " + actualHost.getHostName(), exc);
         }
     }
 
+    private SshSessionConfig createSessionConfig(String sshHost) {
+        SshSessionConfig config = new SshSessionConfig(sshHost, sshPort, username);
+        config.setPassword(password);
+        config.setPrivateKeyFile(privateKeyFile);
+        config.setPassphrase(passphrase);
+        config.setCiphers(ciphers);
+        config.setCompression(compression);
+        config.setKeepAliveIntervalSeconds(keepAliveInterval);
+        return config;
+    }
+
     @Override
     public void teardown() {
-        for (PortForwarder pf : portForwarders) {
-            logger.info("Stopping portforwarder {}", pf.getName());
-            pf.close();
+        for (Tunnel tunnel : tunnels) {
+            tunnel.close();
         }
+        tunnels.clear();
 
         try {
-            logger.info("Disconnecting client {}", client);
-            client.disconnect();
-        } catch (IOException ignored) {
-            //
+            if (session != null) {
+                SshSessionRegistry.release(session);
+                session = null;
+            }
         } finally {
             actualHost.teardown();
         }
     }
 
+    /** Connect to this SSH server and forward the ports to the actual host from there, instead of to the actual host. */
+    void setTunnelHost(String tunnelHost) {
+        this.tunnelHost = tunnelHost;
+    }
+
+    void setSshPort(int sshPort) {
+        this.sshPort = sshPort;
+    }
+
+    void setPrivateKeyFile(String privateKeyFile) {
+        this.privateKeyFile = privateKeyFile;
+    }
+
+    void setPassphrase(String passphrase) {
+        this.passphrase = passphrase;
+    }
+
+    void setCiphers(List<String> ciphers) {
+        this.ciphers = ciphers;
+    }
+
+    void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    void setKeepAliveInterval(int keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    /** The tunnels that are open, with their traffic statistics. */
+    List<Tunnel> getTunnels() {
+        return tunnels;
+    }
+
+    CloudHost getActualHost() {
+        return actualHost;
+    }
+
     @Override
     public String getHostName() {
         return "localhost";
@@ -160,15 +182,7 @@ class TunneledCloudHost implements CloudHost {
 
     @Override
     public int getPort(int port) {
-        checkArgument(portForwardMap.containsKey(port), "Port %d is not tunneled", port);
-        return portForwardMap.get(port);
-    }
-
-    protected static void sleep(final int seconds) {
-        try {
-            Thread.sleep(seconds * 1000);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
+        checkArgument(localPorts.containsKey(port), "Port %d is not tunneled", port);
+        return localPorts.get(port);
     }
 }
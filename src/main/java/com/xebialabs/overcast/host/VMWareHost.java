@@ -15,14 +15,15 @@
  */
 package com.xebialabs.overcast.host;
 
-import com.xebialabs.overcast.support.vmware.VMWareVM;
 import com.xebialabs.overcast.support.vmware.VmWareApiClient;
+import com.xebialabs.overcast.support.vmware.VmWareSession;
+import com.xebialabs.overcast.support.vmware.VmWareSessionRegistry;
 import com.xebialabs.overcast.util.RetryCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 public class VMWareHost implements CloudHost {
@@ -54,7 +55,7 @@ public class VMWareHost implements CloudHost {
 
     private final String apiHost;
 
-    private final String sessionId;
+    private final VmWareSession session;
 
     private final String vmBaseImage;
 
@@ -73,23 +74,32 @@ public class VMWareHost implements CloudHost {
         this.apiHost = apiHost;
         this.vmBaseImage = vmBaseImage;
         this.maxRetries = maxRetries;
-        this.client = new VmWareApiClient(apiHost, instanceClone, ignoreBadCertificate, securityAlgorithm, connectionTimeout);
-        this.sessionId = this.client.createSession(authHash);
+        this.session = VmWareSessionRegistry.getSession(apiHost, authHash, instanceClone, ignoreBadCertificate, securityAlgorithm, connectionTimeout);
+        this.client = session.getClient();
     }
 
     @Override
     public void setup() {
-        List<VMWareVM> vms = client.listVMs(sessionId);
-        vms.stream()
-                .filter(vm -> vm.getName().equals(vmBaseImage))
-                .findFirst()
-                .ifPresent(vm -> {
-                    this.vmId = client.cloneVm(sessionId, vmBaseImage, vm.getId());
-
-                    Map<String, Object> identity = new RetryCommand<Map<String, Object>>(maxRetries)
-                            .run(() -> client.getGuestIdentity(sessionId, vmId));
+        VmWareApiClient.await(setupAsync());
+    }
 
-                    ipAddress = (String) identity.get("ip_address");
+    /**
+     * Clones the base image without blocking the calling thread, so several hosts can be cloned concurrently.
+     */
+    public CompletableFuture<Void> setupAsync() {
+        return session.call(sessionId -> client.findVmByNameAsync(sessionId, vmBaseImage))
+                .thenCompose(vm -> {
+                    if (!vm.isPresent()) {
+                        logger.warn("VM base image [{}] not found", vmBaseImage);
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return session.call(sessionId -> client.cloneVmAsync(sessionId, vmBaseImage, vm.get().getId()))
+                            .thenCompose(id -> {
+                                this.vmId = id;
+                                return new RetryCommand<Map<String, Object>>(maxRetries)
+                                        .runAsync(() -> session.call(sessionId -> client.getGuestIdentityAsync(sessionId, id)));
+                            })
+                            .thenAccept(identity -> ipAddress = (String) identity.get("ip_address"));
                 });
     }
 
@@ -99,14 +109,14 @@ public class VMWareHost implements CloudHost {
             logger.info("Nothing to tear down, VM [{}] wasn't created.", vmBaseImage);
             return;
         }
-        boolean isOn = client.isPowerVmOn(sessionId, vmId);
+        boolean isOn = VmWareApiClient.await(session.call(sessionId -> client.isPowerVmOnAsync(sessionId, vmId)));
         logger.info("VM [{}] power is {}", vmBaseImage, isOn);
         if (isOn) {
-            client.stopPowerVm(sessionId, vmId);
+            VmWareApiClient.await(session.call(sessionId -> client.stopPowerVmAsync(sessionId, vmId)));
             logger.info("About to stop power for VM [{}]", vmBaseImage);
         }
         logger.info("About to delete VM [{}]", vmId);
-        client.deleteVm(sessionId, vmId);
+        VmWareApiClient.await(session.call(sessionId -> client.deleteVmAsync(sessionId, vmId)));
     }
 
     @Override
@@ -124,7 +134,7 @@ public class VMWareHost implements CloudHost {
     }
 
     public String getSessionId() {
-        return sessionId;
+        return session.getSessionId();
     }
 
     public String getVmBaseImage() {
@@ -0,0 +1,53 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.readiness;
+
+import java.text.MessageFormat;
+import java.util.function.IntUnaryOperator;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+
+import static com.xebialabs.overcast.OverthereUtil.overthereConnectionFromURI;
+import static com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler.capturingHandler;
+
+/**
+ * Ready when a command run through Overthere exits with 0. <code>{0}</code> in the connection URL and in the command
+ * is replaced by the host name.
+ */
+public class CommandProbe implements ReadinessProbe {
+    private final String url;
+    private final String command;
+
+    public CommandProbe(String url, String command) {
+        this.url = url;
+        this.command = command;
+    }
+
+    @Override
+    public boolean isReady(String hostName, IntUnaryOperator ports) {
+        try (OverthereConnection connection = overthereConnectionFromURI(MessageFormat.format(url, hostName))) {
+            CmdLine cmdLine = new CmdLine();
+            cmdLine.addRaw(MessageFormat.format(command, hostName));
+            return connection.execute(capturingHandler(), capturingHandler(), cmdLine) == 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "command '" + command + "'";
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.readiness;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Ready when a GET of a URL returns 200. <code>{0}</code> in the URL is replaced by the host name and the port of the
+ * URL is translated like any other port of the host.
+ */
+public class HttpProbe implements ReadinessProbe {
+    private static final HttpClient httpClient = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofMillis(TcpPortProbe.CONNECT_TIMEOUT_MILLIS))
+        .build();
+
+    private final String url;
+
+    public HttpProbe(String url) {
+        this.url = url;
+    }
+
+    @Override
+    public boolean isReady(String hostName, IntUnaryOperator ports) throws Exception {
+        URI uri = URI.create(MessageFormat.format(url, hostName));
+        int port = uri.getPort() != -1 ? uri.getPort() : "https".equals(uri.getScheme()) ? 443 : 80;
+        URI target = new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), ports.applyAsInt(port), uri.getPath(), uri.getQuery(), uri.getFragment());
+
+        HttpRequest request = HttpRequest.newBuilder(target)
+            .GET()
+            .timeout(Duration.ofSeconds(10))
+            .build();
+        return httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+    }
+
+    @Override
+    public String toString() {
+        return "HTTP 200 from " + url;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.readiness;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overcast.util.Backoff;
+import com.xebialabs.overcast.util.RetryCommand;
+import com.xebialabs.overcast.util.RetryException;
+
+import static com.xebialabs.overcast.OvercastProperties.getOvercastListProperty;
+import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
+
+/**
+ * Waits until all probes configured for a host report it is ready.
+ * <p>Probes are polled quickly at first and less often the longer the host takes. A probe that succeeded once is not
+ * polled again.
+ */
+public class Readiness {
+    private static final Logger logger = LoggerFactory.getLogger(Readiness.class);
+
+    public static final String READINESS_TCP_PORTS_SUFFIX = ".readiness.tcpPorts";
+    public static final String READINESS_SSH_PORT_SUFFIX = ".readiness.sshPort";
+    public static final String READINESS_HTTP_URL_SUFFIX = ".readiness.httpUrl";
+    public static final String READINESS_COMMAND_SUFFIX = ".readiness.command";
+    public static final String READINESS_COMMAND_URL_SUFFIX = ".readiness.commandUrl";
+    public static final String READINESS_TIMEOUT_SUFFIX = ".readiness.timeout";
+
+    private final List<ReadinessProbe> probes;
+    private final int timeoutSeconds;
+
+    public Readiness(List<ReadinessProbe> probes, int timeoutSeconds) {
+        this.probes = probes;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * @return the readiness configured for a host label or <code>null</code> when no probes are configured.
+     */
+    public static Readiness fromProperties(String label, String defaultTimeoutSeconds) {
+        List<ReadinessProbe> probes = new ArrayList<>();
+        for (String port : getOvercastListProperty(label + READINESS_TCP_PORTS_SUFFIX, new ArrayList<>())) {
+            probes.add(new TcpPortProbe(Integer.parseInt(port.trim())));
+        }
+        String sshPort = getOvercastProperty(label + READINESS_SSH_PORT_SUFFIX);
+        if (sshPort != null) {
+            probes.add(new SshBannerProbe(Integer.parseInt(sshPort)));
+        }
+        String httpUrl = getOvercastProperty(label + READINESS_HTTP_URL_SUFFIX);
+        if (httpUrl != null) {
+            probes.add(new HttpProbe(httpUrl));
+        }
+        String command = getOvercastProperty(label + READINESS_COMMAND_SUFFIX);
+        if (command != null) {
+            String commandUrl = getOvercastProperty(label + READINESS_COMMAND_URL_SUFFIX);
+            if (commandUrl == null) {
+                throw new IllegalArgumentException(label + READINESS_COMMAND_URL_SUFFIX + " is required with " + label + READINESS_COMMAND_SUFFIX);
+            }
+            probes.add(new CommandProbe(commandUrl, command));
+        }
+        if (probes.isEmpty()) {
+            return null;
+        }
+        int timeout = Integer.parseInt(getOvercastProperty(label + READINESS_TIMEOUT_SUFFIX, defaultTimeoutSeconds));
+        return new Readiness(probes, timeout);
+    }
+
+    public List<ReadinessProbe> getProbes() {
+        return probes;
+    }
+
+    public int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    /**
+     * Blocks until all probes report the host is ready.
+     *
+     * @throws IllegalStateException when the host is not ready within the timeout.
+     */
+    public void await(String hostName, IntUnaryOperator ports) {
+        List<ReadinessProbe> pending = new ArrayList<>(probes);
+        long start = System.currentTimeMillis();
+        try {
+            new RetryCommand<Boolean>()
+                .withTimeout(Duration.ofSeconds(timeoutSeconds))
+                .withBackoff(Backoff.exponential(Duration.ofMillis(100), Duration.ofSeconds(2)))
+                .until(ready -> ready)
+                .run(() -> {
+                    pending.removeIf(probe -> isReady(probe, hostName, ports));
+                    return pending.isEmpty();
+                });
+        } catch (RetryException e) {
+            throw new IllegalStateException(String.format("Host '%s' not ready within %d seconds, waiting for %s", hostName, timeoutSeconds, pending));
+        }
+        logger.info("Host '{}' ready after {} ms", hostName, System.currentTimeMillis() - start);
+    }
+
+    private static boolean isReady(ReadinessProbe probe, String hostName, IntUnaryOperator ports) {
+        try {
+            return probe.isReady(hostName, ports);
+        } catch (Exception e) {
+            logger.debug("{} of '{}' not ready: {}", probe, hostName, e.toString());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.readiness;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Checks whether a host is ready to be used.
+ */
+public interface ReadinessProbe {
+
+    /**
+     * @param hostName the name or IP address of the host.
+     * @param ports translates a port on the host to the port to connect to, see
+     *              {@link com.xebialabs.overcast.host.CloudHost#getPort(int)}.
+     * @return <code>true</code> when the host is ready. Exceptions are treated as not ready.
+     */
+    boolean isReady(String hostName, IntUnaryOperator ports) throws Exception;
+}
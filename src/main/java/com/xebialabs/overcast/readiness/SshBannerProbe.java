@@ -0,0 +1,71 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.readiness;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Ready when the SSH server sends its identification string. A port that accepts connections is not enough, sshd
+ * may still be starting up or the connection may be accepted by a forwarder.
+ */
+public class SshBannerProbe implements ReadinessProbe {
+    // RFC 4253 allows the server to send other lines before the identification string
+    private static final int MAX_LINES = 10;
+    private static final int MAX_LINE_LENGTH = 255;
+
+    private final int port;
+
+    public SshBannerProbe(int port) {
+        this.port = port;
+    }
+
+    @Override
+    public boolean isReady(String hostName, IntUnaryOperator ports) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(hostName, ports.applyAsInt(port)), TcpPortProbe.CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(TcpPortProbe.CONNECT_TIMEOUT_MILLIS);
+            InputStream in = socket.getInputStream();
+            for (int i = 0; i < MAX_LINES; i++) {
+                String line = readLine(in);
+                if (line == null) {
+                    return false;
+                }
+                if (line.startsWith("SSH-")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n' && line.length() < MAX_LINE_LENGTH) {
+            line.append((char) c);
+        }
+        return c == -1 && line.length() == 0 ? null : line.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "SSH banner on port " + port;
+    }
+}
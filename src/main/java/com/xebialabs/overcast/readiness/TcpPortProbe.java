@@ -0,0 +1,47 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.readiness;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Ready when a TCP connection to a port can be made.
+ */
+public class TcpPortProbe implements ReadinessProbe {
+    static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    private final int port;
+
+    public TcpPortProbe(int port) {
+        this.port = port;
+    }
+
+    @Override
+    public boolean isReady(String hostName, IntUnaryOperator ports) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(hostName, ports.applyAsInt(port)), CONNECT_TIMEOUT_MILLIS);
+            return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TCP port " + port;
+    }
+}
@@ -30,4 +30,17 @@ public class Config {
 
     public static final String DOCKER_EXPOSE_ALL_PORTS_SUFFIX = ".exposeAllPorts";
     public static final String DOCKER_TTY_SUFFIX = ".tty";
+    public static final String DOCKER_PREFETCH_SUFFIX = ".prefetch";
+
+    public static final String DOCKER_WARM_POOL_ENABLED_SUFFIX = ".warmPool.enabled";
+    public static final String DOCKER_WARM_POOL_MODE_SUFFIX = ".warmPool.mode";
+    public static final String DOCKER_WARM_POOL_MODE_DEFAULT = "PAUSE";
+    public static final String DOCKER_WARM_POOL_SNAPSHOT_DELAY_SUFFIX = ".warmPool.snapshotDelay";
+    public static final String DOCKER_WARM_POOL_SNAPSHOT_DELAY_DEFAULT = "0";
+    public static final String DOCKER_WARM_POOL_LOW_WATERMARK_SUFFIX = ".warmPool.lowWatermark";
+    public static final String DOCKER_WARM_POOL_LOW_WATERMARK_DEFAULT = "1";
+    public static final String DOCKER_WARM_POOL_HIGH_WATERMARK_SUFFIX = ".warmPool.highWatermark";
+    public static final String DOCKER_WARM_POOL_HIGH_WATERMARK_DEFAULT = "2";
+    public static final String DOCKER_WARM_POOL_MAX_AGE_SUFFIX = ".warmPool.maxAge";
+    public static final String DOCKER_WARM_POOL_MAX_AGE_DEFAULT = "1800";
 }
@@ -0,0 +1,229 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.docker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.DockerClient.EventsParam;
+import com.spotify.docker.client.DockerClient.LogsParam;
+import com.spotify.docker.client.EventStream;
+import com.spotify.docker.client.LogStream;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.messages.ContainerState;
+import com.spotify.docker.client.messages.Event;
+
+import com.xebialabs.overcast.readiness.Readiness;
+import com.xebialabs.overcast.util.DaemonThreadFactory;
+
+import static com.xebialabs.overcast.OvercastProperties.getOvercastBooleanProperty;
+import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
+
+/**
+ * Waits until a container reports it is ready, either through the HEALTHCHECK of its image or by writing a line
+ * matching a pattern to its log.
+ * <p>The wait follows the event and log streams of the Docker daemon instead of polling, so it ends as soon as the
+ * container is ready. The streams are closed when the timeout expires. A stream that stays quiet for longer than the
+ * read timeout of the client is opened again.
+ */
+public class ContainerReadiness {
+    private static final Logger logger = LoggerFactory.getLogger(ContainerReadiness.class);
+
+    public static final String READINESS_HEALTH_CHECK_SUFFIX = ".readiness.healthCheck";
+    public static final String READINESS_LOG_PATTERN_SUFFIX = ".readiness.logPattern";
+    public static final String READINESS_TIMEOUT_DEFAULT = "60";
+
+    private static final String HEALTHY = "healthy";
+    private static final String HEALTHY_EVENT = "health_status: healthy";
+    private static final String DIE_EVENT = "die";
+
+    private static final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("overcast-docker-readiness"));
+
+    private final boolean healthCheck;
+    private final Pattern logPattern;
+    private final int timeoutSeconds;
+
+    public ContainerReadiness(boolean healthCheck, Pattern logPattern, int timeoutSeconds) {
+        this.healthCheck = healthCheck;
+        this.logPattern = logPattern;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * @return the readiness configured for a host label or <code>null</code> when no conditions are configured.
+     */
+    public static ContainerReadiness fromProperties(String label) {
+        boolean healthCheck = getOvercastBooleanProperty(label + READINESS_HEALTH_CHECK_SUFFIX);
+        String logPattern = getOvercastProperty(label + READINESS_LOG_PATTERN_SUFFIX);
+        if (!healthCheck && logPattern == null) {
+            return null;
+        }
+        int timeout = Integer.parseInt(getOvercastProperty(label + Readiness.READINESS_TIMEOUT_SUFFIX, READINESS_TIMEOUT_DEFAULT));
+        return new ContainerReadiness(healthCheck, logPattern == null ? null : Pattern.compile(logPattern), timeout);
+    }
+
+    public int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    /**
+     * Blocks until the container is ready.
+     *
+     * @throws IllegalStateException when the container stops or is not ready within the timeout.
+     */
+    public void await(DockerClient dockerClient, String containerId) {
+        long start = System.currentTimeMillis();
+        long deadline = start + timeoutSeconds * 1000L;
+        try {
+            if (healthCheck) {
+                awaitHealthy(dockerClient, containerId, deadline);
+            }
+            if (logPattern != null) {
+                awaitLogLine(dockerClient, containerId, deadline);
+            }
+        } catch (DockerException e) {
+            throw new IllegalStateException(String.format("Unable to determine whether container %s is ready", containerId), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(String.format("Interrupted while waiting for container %s to become ready", containerId), e);
+        }
+        logger.info("Container {} ready after {} ms", containerId, System.currentTimeMillis() - start);
+    }
+
+    private void awaitHealthy(DockerClient dockerClient, String containerId, long deadline) throws DockerException, InterruptedException {
+        while (true) {
+            // subscribe before looking at the current state so no transition is missed
+            try (EventStream events = dockerClient.events(EventsParam.type(Event.Type.CONTAINER), EventsParam.container(containerId))) {
+                ScheduledFuture<?> expiry = closeAt(events, deadline);
+                try {
+                    ContainerState state = dockerClient.inspectContainer(containerId).state();
+                    if (state.health() == null) {
+                        throw new IllegalStateException(String.format("Image of container %s does not define a HEALTHCHECK", containerId));
+                    }
+                    if (HEALTHY.equals(state.health().status())) {
+                        return;
+                    }
+                    checkRunning(containerId, Boolean.TRUE.equals(state.running()));
+                    while (events.hasNext()) {
+                        String action = events.next().action();
+                        if (HEALTHY_EVENT.equals(action)) {
+                            return;
+                        }
+                        checkRunning(containerId, !DIE_EVENT.equals(action));
+                    }
+                    break;
+                } catch (RuntimeException e) {
+                    if (expiry.isDone()) {
+                        break;
+                    }
+                    if (!isReadTimeout(e)) {
+                        throw e;
+                    }
+                    logger.debug("No events for container {} within the read timeout, subscribing again", containerId);
+                } finally {
+                    expiry.cancel(false);
+                }
+            }
+        }
+        throw notReady(containerId, "healthy");
+    }
+
+    private void awaitLogLine(DockerClient dockerClient, String containerId, long deadline) throws DockerException, InterruptedException {
+        while (true) {
+            // following again starts at the beginning of the log, so no line is missed
+            try (LogStream logs = dockerClient.logs(containerId, LogsParam.follow(), LogsParam.stdout(), LogsParam.stderr())) {
+                ScheduledFuture<?> expiry = closeAt(logs, deadline);
+                try {
+                    StringBuilder line = new StringBuilder();
+                    while (logs.hasNext()) {
+                        line.append(StandardCharsets.UTF_8.decode(logs.next().content()));
+                        int newline;
+                        while ((newline = line.indexOf("\n")) != -1) {
+                            if (logPattern.matcher(line.substring(0, newline)).find()) {
+                                return;
+                            }
+                            line.delete(0, newline + 1);
+                        }
+                        // the line the container is waiting on may not be terminated yet
+                        if (logPattern.matcher(line).find()) {
+                            return;
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    if (!expiry.isDone()) {
+                        if (!isReadTimeout(e)) {
+                            throw e;
+                        }
+                        logger.debug("No output from container {} within the read timeout, following the log again", containerId);
+                        continue;
+                    }
+                } finally {
+                    expiry.cancel(false);
+                }
+                // the log ends when the container stops
+                if (System.currentTimeMillis() < deadline) {
+                    checkRunning(containerId, false);
+                }
+            }
+            break;
+        }
+        throw notReady(containerId, "log line matching '" + logPattern + "'");
+    }
+
+    /** Whether e was caused by the client giving up on a stream that stayed quiet for longer than its read timeout. */
+    private static boolean isReadTimeout(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ScheduledFuture<?> closeAt(Closeable stream, long deadline) {
+        return deadlines.schedule(() -> {
+            try {
+                stream.close();
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Unable to close stream at deadline", e);
+            }
+        }, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private static void checkRunning(String containerId, boolean running) {
+        if (!running) {
+            throw new IllegalStateException(String.format("Container %s stopped before it became ready", containerId));
+        }
+    }
+
+    private IllegalStateException notReady(String containerId, String waitingFor) {
+        return new IllegalStateException(String.format("Container %s not ready within %d seconds, waiting for %s", containerId, timeoutSeconds, waitingFor));
+    }
+
+    @Override
+    public String toString() {
+        return "ContainerReadiness{healthCheck=" + healthCheck + ", logPattern=" + logPattern + ", timeoutSeconds=" + timeoutSeconds + '}';
+    }
+}
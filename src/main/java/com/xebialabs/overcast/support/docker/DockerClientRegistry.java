@@ -0,0 +1,126 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.docker;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.spotify.docker.client.DockerClient;
+
+/**
+ * Docker clients shared by all hosts of the process, one per daemon endpoint.
+ * <p>Clients are keyed by the daemon URI and certificates path, or by the DOCKER_* environment variables when no URI
+ * is configured. Each client has a connection pool of {@link #CONNECTION_POOL_SIZE} connections. The clients are
+ * closed when the JVM shuts down.
+ */
+public final class DockerClientRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(DockerClientRegistry.class);
+
+    public static final int CONNECTION_POOL_SIZE = 32;
+
+    private static final String[] ENVIRONMENT = { "DOCKER_HOST", "DOCKER_CERT_PATH", "DOCKER_TLS_VERIFY" };
+
+    private static final Map<Key, DockerClient> clients = new ConcurrentHashMap<>();
+    private static final List<Runnable> beforeClose = new CopyOnWriteArrayList<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(DockerClientRegistry::closeAll, "overcast-docker-clients-shutdown"));
+    }
+
+    private static final class Key {
+        private final URI uri;
+        private final Path certificatesPath;
+        private final List<String> environment;
+
+        private Key(URI uri, Path certificatesPath) {
+            this.uri = uri;
+            this.certificatesPath = certificatesPath;
+            this.environment = new ArrayList<>();
+            if (uri == null) {
+                for (String name : ENVIRONMENT) {
+                    environment.add(System.getenv(name));
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equals(uri, other.uri) && Objects.equals(certificatesPath, other.certificatesPath) && environment.equals(other.environment);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(uri, certificatesPath, environment);
+        }
+
+        @Override
+        public String toString() {
+            return uri == null ? "environment " + environment : uri.toString();
+        }
+    }
+
+    private DockerClientRegistry() {
+    }
+
+    /** Get the shared client for the daemon at uri, or for the daemon from the environment when uri is null. */
+    public static DockerClient getClient(URI uri, Path certificatesPath) {
+        return clients.computeIfAbsent(new Key(uri, certificatesPath), key -> {
+            logger.debug("Creating docker client for {}", key);
+            return DockerDriver.buildClient(uri, certificatesPath, CONNECTION_POOL_SIZE);
+        });
+    }
+
+    /**
+     * Run action on JVM shutdown before the clients are closed, for cleanup that still needs a client. Shutdown hooks
+     * run concurrently, so such cleanup can not be done in a shutdown hook of its own.
+     */
+    public static void runBeforeClose(Runnable action) {
+        beforeClose.add(action);
+    }
+
+    /** Close all clients. Clients requested afterwards are created anew. */
+    static void closeAll() {
+        for (Runnable action : beforeClose) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                logger.warn("Cleanup before closing docker clients failed", e);
+            }
+        }
+        beforeClose.clear();
+        for (Key key : new ArrayList<>(clients.keySet())) {
+            DockerClient client = clients.remove(key);
+            if (client != null) {
+                logger.debug("Closing docker client for {}", key);
+                client.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.docker;
+
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.ImageNotFoundException;
+import com.spotify.docker.client.messages.ContainerConfig;
+
+import com.xebialabs.overcast.util.WarmPool;
+
+import static com.spotify.docker.client.DockerClient.RemoveContainerParam.forceKill;
+import static com.spotify.docker.client.DockerClient.RemoveContainerParam.removeVolumes;
+
+/**
+ * A {@link WarmPool} of pristine containers for one host label.
+ * <p>In {@link Mode#PAUSE} mode the pool holds containers that have been started and paused right away, a checkout
+ * unpauses one. In {@link Mode#SNAPSHOT} mode a container is started once, stopped and committed to a snapshot image,
+ * the pool holds containers created from that image that have not been started yet and a checkout starts one.
+ * Containers are never reused: a container that was checked out is removed in the background when it is recycled.
+ */
+public class DockerContainerPool {
+    private static final Logger logger = LoggerFactory.getLogger(DockerContainerPool.class);
+
+    public static final String SNAPSHOT_REPOSITORY = "overcast-snapshot";
+
+    public enum Mode {
+        PAUSE, SNAPSHOT
+    }
+
+    private final String name;
+    private final DockerClient dockerClient;
+    private final ContainerConfig config;
+    private final Mode mode;
+    private final int snapshotDelaySeconds;
+    private final ImagePrefetcher prefetcher;
+    private final WarmPool<String> pool;
+
+    // guarded by this
+    private String snapshotImage;
+
+    public DockerContainerPool(String name, DockerClient dockerClient, ContainerConfig config, Mode mode, int snapshotDelaySeconds,
+                               ImagePrefetcher prefetcher, int lowWatermark, int highWatermark, long maxAgeMillis) {
+        this.name = name;
+        this.dockerClient = dockerClient;
+        this.config = config;
+        this.mode = mode;
+        this.snapshotDelaySeconds = snapshotDelaySeconds;
+        this.prefetcher = prefetcher;
+        this.pool = new WarmPool<>(name, new WarmPool.Factory<String>() {
+            @Override
+            public String create() {
+                return createContainer();
+            }
+
+            @Override
+            public void destroy(String containerId) {
+                removeContainer(containerId);
+            }
+        }, lowWatermark, highWatermark, maxAgeMillis);
+    }
+
+    public void start() {
+        pool.start();
+    }
+
+    /**
+     * Take a pristine container out of the pool and get it running.
+     *
+     * @return the id of the running container or <code>null</code> if no container was available.
+     */
+    public String checkout() {
+        String containerId = pool.checkout();
+        if (containerId == null) {
+            return null;
+        }
+        try {
+            if (mode == Mode.PAUSE) {
+                dockerClient.unpauseContainer(containerId);
+            } else {
+                dockerClient.startContainer(containerId);
+            }
+            return containerId;
+        } catch (DockerException | InterruptedException e) {
+            logger.warn("Unable to resume pooled container {} of pool '{}'", containerId, name, e);
+            pool.discard(containerId);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+    }
+
+    /** Remove a container that was handed out in the background. */
+    public void recycle(String containerId) {
+        pool.discard(containerId);
+    }
+
+    /** Remove all pooled containers and the snapshot image. */
+    public void close() {
+        pool.close();
+        String image;
+        synchronized (this) {
+            image = snapshotImage;
+            snapshotImage = null;
+        }
+        if (image != null) {
+            try {
+                logger.info("Removing snapshot image {} of pool '{}'", image, name);
+                dockerClient.removeImage(image, true, false);
+            } catch (DockerException | InterruptedException e) {
+                logger.warn("Unable to remove snapshot image {} of pool '{}'", image, name, e);
+            }
+        }
+    }
+
+    public int getIdleCount() {
+        return pool.getIdleCount();
+    }
+
+    public WarmPool.Stats getStats() {
+        return pool.getStats();
+    }
+
+    private String createContainer() {
+        try {
+            if (mode == Mode.PAUSE) {
+                String containerId = create(config);
+                dockerClient.startContainer(containerId);
+                dockerClient.pauseContainer(containerId);
+                return containerId;
+            }
+            return create(config.toBuilder().image(getSnapshotImage()).build());
+        } catch (DockerException | InterruptedException e) {
+            throw new RuntimeException("Unable to create container for pool '" + name + "'", e);
+        }
+    }
+
+    private String create(ContainerConfig containerConfig) throws DockerException, InterruptedException {
+        prefetcher.awaitPull(containerConfig.image());
+        try {
+            return dockerClient.createContainer(containerConfig).id();
+        } catch (ImageNotFoundException e) {
+            prefetcher.pullAndWait(containerConfig.image());
+            return dockerClient.createContainer(containerConfig).id();
+        }
+    }
+
+    private synchronized String getSnapshotImage() throws DockerException, InterruptedException {
+        if (snapshotImage != null) {
+            return snapshotImage;
+        }
+        String containerId = create(config);
+        try {
+            dockerClient.startContainer(containerId);
+            logger.info("Waiting {} seconds before taking snapshot of container {} for pool '{}'", snapshotDelaySeconds, containerId, name);
+            Thread.sleep(snapshotDelaySeconds * 1000L);
+            dockerClient.stopContainer(containerId, 10);
+            String tag = UUID.randomUUID().toString();
+            dockerClient.commitContainer(containerId, SNAPSHOT_REPOSITORY, tag, config, "Snapshot for pool " + name, null);
+            snapshotImage = SNAPSHOT_REPOSITORY + ":" + tag;
+            logger.info("Created snapshot image {} for pool '{}'", snapshotImage, name);
+            return snapshotImage;
+        } finally {
+            removeContainer(containerId);
+        }
+    }
+
+    private void removeContainer(String containerId) {
+        try {
+            logger.debug("Removing container {} of pool '{}'", containerId, name);
+            dockerClient.removeContainer(containerId, forceKill(), removeVolumes());
+        } catch (DockerException | InterruptedException e) {
+            logger.warn("Unable to remove container {} of pool '{}'", containerId, name, e);
+        }
+    }
+}
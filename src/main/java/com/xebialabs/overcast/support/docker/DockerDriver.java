@@ -38,6 +38,7 @@ import static com.spotify.docker.client.DockerClient.RemoveContainerParam.remove
 public class DockerDriver {
     private final DockerHost dockerHost;
     private final DockerClient dockerClient;
+    private final Path certificatesPath;
 
     private Map<String, List<PortBinding>> portMappings;
     private String containerId;
@@ -45,17 +46,23 @@ public class DockerDriver {
 
     public DockerDriver(DockerHost dockerHost, Path certificatesPath) {
         this.dockerHost = dockerHost;
-        this.dockerClient = buildClient(dockerHost.getUri(), certificatesPath);
+        this.certificatesPath = certificatesPath;
+        this.dockerClient = DockerClientRegistry.getClient(dockerHost.getUri(), certificatesPath);
     }
 
+    /** Build a new client. Use {@link DockerClientRegistry#getClient(URI, Path)} to get a shared client instead. */
     public static DockerClient buildClient(URI dockerHost, Path certificatesPath) {
+        return buildClient(dockerHost, certificatesPath, DockerClientRegistry.CONNECTION_POOL_SIZE);
+    }
+
+    static DockerClient buildClient(URI dockerHost, Path certificatesPath, int connectionPoolSize) {
         try {
             if (dockerHost == null) {
                 logger.info("Configuring docker host from environment");
-                return DefaultDockerClient.fromEnv().build();
+                return DefaultDockerClient.fromEnv().connectionPoolSize(connectionPoolSize).build();
             } else {
                 logger.info("Configuring docker host from configuration");
-                DefaultDockerClient.Builder builder = DefaultDockerClient.builder().uri(dockerHost);
+                DefaultDockerClient.Builder builder = DefaultDockerClient.builder().uri(dockerHost).connectionPoolSize(connectionPoolSize);
                 if (certificatesPath != null) {
                     builder.dockerCertificates(new DockerCertificates(certificatesPath));
                 }
@@ -105,10 +112,13 @@ public class DockerDriver {
         try {
             buildImageConfig();
 
+            // the image may already be on its way because of a prefetch or a concurrent setup
+            ImagePrefetcher prefetcher = ImagePrefetcher.forDaemon(dockerHost.getUri(), certificatesPath);
+            prefetcher.awaitPull(dockerHost.getImage());
             try {
                 createImage();
             } catch (ImageNotFoundException e) {
-                dockerClient.pull(dockerHost.getImage(), new ProcessHandlerLogger());
+                prefetcher.pullAndWait(dockerHost.getImage());
                 createImage();
             }
 
@@ -122,6 +132,30 @@ public class DockerDriver {
         }
     }
 
+    /** Wait until the running container is ready. */
+    public void awaitReady(ContainerReadiness readiness) {
+        readiness.await(dockerClient, containerId);
+    }
+
+    /** Use a running container that was taken from a {@link DockerContainerPool}. */
+    public void useContainer(String containerId) {
+        try {
+            this.containerId = containerId;
+            final ContainerInfo info = dockerClient.inspectContainer(containerId);
+            portMappings = info.networkSettings().ports();
+        } catch (InterruptedException | DockerException e) {
+            logger.error("Error while inspecting pooled docker container", e);
+            throw new RuntimeException("Error while inspecting pooled docker container", e);
+        }
+    }
+
+    /** Create a pool of containers configured exactly like the container {@link #runContainer()} creates. */
+    public DockerContainerPool createPool(String name, DockerContainerPool.Mode mode, int snapshotDelaySeconds, int lowWatermark, int highWatermark, long maxAgeMillis) {
+        buildImageConfig();
+        ImagePrefetcher prefetcher = ImagePrefetcher.forDaemon(dockerHost.getUri(), certificatesPath);
+        return new DockerContainerPool(name, dockerClient, config, mode, snapshotDelaySeconds, prefetcher, lowWatermark, highWatermark, maxAgeMillis);
+    }
+
     private void createImage() throws DockerException, InterruptedException {
         if (dockerHost.getName() == null) {
             containerId = dockerClient.createContainer(config).id();
@@ -0,0 +1,255 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.docker;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.ProgressHandler;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.ImageNotFoundException;
+import com.spotify.docker.client.messages.ProgressDetail;
+import com.spotify.docker.client.messages.ProgressMessage;
+
+import com.xebialabs.overcast.util.DaemonThreadFactory;
+
+/**
+ * Pulls images in the background, one prefetcher per docker daemon.
+ * <p>Concurrent requests for the same image reference share a single pull. Only pulls that are in progress are
+ * remembered, so an image that disappears from the daemon later on is pulled again when it is requested again.
+ */
+public final class ImagePrefetcher {
+    private static final Logger logger = LoggerFactory.getLogger(ImagePrefetcher.class);
+
+    // key for the daemon configured through the DOCKER_* environment variables
+    private static final String ENVIRONMENT_DAEMON = "env";
+
+    // keyed by the shared client, so prefetchers are per daemon endpoint exactly like the clients are
+    private static final Map<DockerClient, ImagePrefetcher> prefetchers = new ConcurrentHashMap<>();
+    private static final Executor pullExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("overcast-docker-pull"));
+
+    private final String daemon;
+    private final DockerClient dockerClient;
+    private final Executor executor;
+    private final Map<String, Pull> pulls = new ConcurrentHashMap<>();
+    private final Stats stats = new Stats();
+
+    private static class Pull {
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final PullProgress progress = new PullProgress();
+    }
+
+    ImagePrefetcher(String daemon, DockerClient dockerClient, Executor executor) {
+        this.daemon = daemon;
+        this.dockerClient = dockerClient;
+        this.executor = executor;
+    }
+
+    /**
+     * Get the prefetcher of the daemon at uri, or of the daemon from the environment when uri is null. Like
+     * {@link DockerClientRegistry} the prefetchers are per daemon URI and certificates path.
+     */
+    public static ImagePrefetcher forDaemon(URI uri, Path certificatesPath) {
+        String daemon = uri == null ? ENVIRONMENT_DAEMON : uri.toString();
+        return prefetchers.computeIfAbsent(DockerClientRegistry.getClient(uri, certificatesPath), client -> new ImagePrefetcher(daemon, client, pullExecutor));
+    }
+
+    /** Start pulling image in the background unless the daemon already has it. */
+    public CompletableFuture<Void> prefetch(String image) {
+        return start(image, true);
+    }
+
+    /** Pull image, joining a pull of the same image that is already in progress. */
+    public CompletableFuture<Void> pull(String image) {
+        return start(image, false);
+    }
+
+    private CompletableFuture<Void> start(String image, boolean skipWhenPresent) {
+        Pull started = new Pull();
+        Pull pull = pulls.putIfAbsent(image, started);
+        if (pull != null) {
+            stats.sharedPulls.incrementAndGet();
+            logger.debug("Joining pull of image '{}' on {} that is already in progress", image, daemon);
+            return pull.done;
+        }
+        executor.execute(() -> run(image, started, skipWhenPresent));
+        return started.done;
+    }
+
+    private void run(String image, Pull pull, boolean skipWhenPresent) {
+        try {
+            if (skipWhenPresent && isPresent(image)) {
+                stats.skipped.incrementAndGet();
+                logger.debug("Image '{}' is already present on {}", image, daemon);
+            } else {
+                long start = System.currentTimeMillis();
+                logger.info("Pulling image '{}' on {}", image, daemon);
+                dockerClient.pull(image, pull.progress);
+                long millis = System.currentTimeMillis() - start;
+                stats.recordPull(millis);
+                logger.info("Pulled image '{}' on {} in {} ms", image, daemon, millis);
+            }
+            pulls.remove(image, pull);
+            pull.done.complete(null);
+        } catch (DockerException | InterruptedException | RuntimeException e) {
+            stats.pullFailures.incrementAndGet();
+            logger.warn("Unable to pull image '{}' on {}", image, daemon, e);
+            pulls.remove(image, pull);
+            pull.done.completeExceptionally(e);
+        }
+    }
+
+    private boolean isPresent(String image) throws DockerException, InterruptedException {
+        try {
+            dockerClient.inspectImage(image);
+            return true;
+        } catch (ImageNotFoundException e) {
+            return false;
+        }
+    }
+
+    /** Wait for a pull of image that is in progress, if any. A failed pull is ignored, the caller finds out later. */
+    public void awaitPull(String image) throws InterruptedException {
+        Pull pull = pulls.get(image);
+        if (pull == null) {
+            return;
+        }
+        logger.info("Waiting for pull of image '{}' on {}", image, daemon);
+        try {
+            pull.done.get();
+        } catch (ExecutionException e) {
+            logger.debug("Pull of image '{}' failed, not waiting for it", image);
+        }
+    }
+
+    /** Pull image and wait for it, joining a pull of the same image that is already in progress. */
+    public void pullAndWait(String image) throws DockerException, InterruptedException {
+        try {
+            pull(image).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DockerException) {
+                throw (DockerException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw new DockerException("Pull of image " + image + " was interrupted", cause);
+            }
+            throw (RuntimeException) cause;
+        }
+    }
+
+    /**
+     * Get the progress of the pull of image that is in progress as a fraction of the bytes to download, or -1 when
+     * image is not being pulled or its size is not known yet.
+     */
+    public double getProgress(String image) {
+        Pull pull = pulls.get(image);
+        return pull == null ? -1 : pull.progress.getFraction();
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    /** Tracks the download progress of the layers of an image and logs the status messages. */
+    private static class PullProgress implements ProgressHandler {
+        private final ProgressHandler log = new ProcessHandlerLogger();
+        private final Map<String, long[]> layers = new ConcurrentHashMap<>();
+
+        @Override
+        public void progress(ProgressMessage message) throws DockerException {
+            ProgressDetail detail = message.progressDetail();
+            if (message.id() != null && detail != null && detail.current() != null && detail.total() != null && detail.total() > 0) {
+                layers.put(message.id(), new long[] { detail.current(), detail.total() });
+            } else {
+                log.progress(message);
+            }
+        }
+
+        private double getFraction() {
+            long current = 0;
+            long total = 0;
+            for (long[] layer : layers.values()) {
+                current += layer[0];
+                total += layer[1];
+            }
+            return total == 0 ? -1 : (double) current / total;
+        }
+    }
+
+    public static class Stats {
+        private final AtomicLong pulls = new AtomicLong();
+        private final AtomicLong pullFailures = new AtomicLong();
+        private final AtomicLong sharedPulls = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong totalPullMillis = new AtomicLong();
+        private final AtomicLong lastPullMillis = new AtomicLong();
+
+        private void recordPull(long millis) {
+            pulls.incrementAndGet();
+            totalPullMillis.addAndGet(millis);
+            lastPullMillis.set(millis);
+        }
+
+        public long getPulls() {
+            return pulls.get();
+        }
+
+        public long getPullFailures() {
+            return pullFailures.get();
+        }
+
+        /** Number of requests that joined a pull that was already in progress. */
+        public long getSharedPulls() {
+            return sharedPulls.get();
+        }
+
+        /** Number of prefetches that found the image already present. */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        public long getLastPullMillis() {
+            return lastPullMillis.get();
+        }
+
+        public long getAveragePullMillis() {
+            long count = pulls.get();
+            return count == 0 ? 0 : totalPullMillis.get() / count;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "pulls=" + getPulls() +
+                    ", pullFailures=" + getPullFailures() +
+                    ", sharedPulls=" + getSharedPulls() +
+                    ", skipped=" + getSkipped() +
+                    ", averagePullMillis=" + getAveragePullMillis() +
+                    ", lastPullMillis=" + getLastPullMillis() +
+                    '}';
+        }
+    }
+}
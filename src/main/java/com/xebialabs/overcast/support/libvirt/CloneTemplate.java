@@ -0,0 +1,278 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.Text;
+import org.jdom2.output.Format;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+
+import com.xebialabs.overcast.support.libvirt.jdom.FilesystemXml;
+
+import static com.xebialabs.overcast.support.libvirt.JDomUtil.elementToString;
+import static com.xebialabs.overcast.support.libvirt.jdom.DomainXml.prepareForCloning;
+
+/**
+ * The XML of a clone of a base domain, pre-rendered once per version of the base domain XML. Creating the XML for a
+ * clone only fills in the parts that differ per clone: name, UUID, disk paths, metadata and filesystem mappings.
+ * MAC addresses are left out so libvirt generates them.
+ * <p>Templates are kept per connection for the {@link #MAX_TEMPLATES} most recently cloned base domains. When domain
+ * events are available a template is dropped when its base domain is redefined, otherwise the XML of the base domain
+ * is compared on every clone.
+ */
+final class CloneTemplate {
+    static final int MAX_TEMPLATES = 16;
+
+    private static final Map<Connect, Templates> templates = new ConcurrentHashMap<>();
+
+    private static final Format RAW = Format.getRawFormat();
+
+    private static final int NAME = 0;
+    private static final int UUID_SLOT = 1;
+    private static final int DISK = 2;
+    private static final int FILESYSTEM = 3;
+    private static final int METADATA = 4;
+    private static final int MAPPINGS = 5;
+
+    private final String xml;
+    private final Document baseXml;
+    private final String baseName;
+
+    // the rendered XML is literals[0] slot[0] literals[1] ... slot[n-1] literals[n]
+    private final String[] literals;
+    private final int[] slotTypes;
+    private final int[] slotIndexes;
+
+    // mount filesystems of the base domain, by position
+    private final List<String> filesystemTargets = new ArrayList<>();
+    private final List<String> filesystemXml = new ArrayList<>();
+
+    private CloneTemplate(String xml) throws IOException {
+        this.xml = xml;
+        this.baseXml = JDomUtil.stringToDocument(xml);
+        this.baseName = baseXml.getRootElement().getChildText("name");
+
+        String marker = "overcast-" + UUID.randomUUID().toString().replace("-", "");
+        Document doc = baseXml.clone();
+        prepareForCloning(doc);
+
+        Element root = doc.getRootElement();
+        Element name = root.getChild("name");
+        name.setText(marker + ":" + NAME + ":0");
+        root.addContent(root.indexOf(name) + 1, new Element("uuid").setText(marker + ":" + UUID_SLOT + ":0"));
+
+        Element metadata = root.getChild(Metadata.METADATA);
+        if (metadata != null) {
+            root.removeContent(metadata);
+        }
+        root.addContent(new Text(marker + ":" + METADATA + ":0"));
+
+        Element devices = root.getChild("devices");
+        int disks = 0;
+        for (Element disk : devices.getChildren("disk")) {
+            if ("disk".equals(disk.getAttributeValue("device"))) {
+                disk.getChild("source").setAttribute("file", marker + ":" + DISK + ":" + disks++);
+            }
+        }
+        for (Element fs : new ArrayList<>(devices.getChildren("filesystem"))) {
+            if ("mount".equals(fs.getAttributeValue("type"))) {
+                filesystemTargets.add(fs.getChild("target").getAttributeValue("dir"));
+                filesystemXml.add(elementToString(fs, RAW));
+                devices.setContent(devices.indexOf(fs), new Text(marker + ":" + FILESYSTEM + ":" + (filesystemXml.size() - 1)));
+            }
+        }
+        devices.addContent(new Text(marker + ":" + MAPPINGS + ":0"));
+
+        String rendered = JDomUtil.documentToString(doc, RAW);
+        List<String> parts = new ArrayList<>();
+        List<int[]> slots = new ArrayList<>();
+        Matcher m = Pattern.compile(Pattern.quote(marker) + ":(\\d+):(\\d+)").matcher(rendered);
+        int start = 0;
+        while (m.find()) {
+            parts.add(rendered.substring(start, m.start()));
+            slots.add(new int[] {Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2))});
+            start = m.end();
+        }
+        parts.add(rendered.substring(start));
+
+        this.literals = parts.toArray(new String[0]);
+        this.slotTypes = new int[slots.size()];
+        this.slotIndexes = new int[slots.size()];
+        for (int i = 0; i < slots.size(); i++) {
+            slotTypes[i] = slots.get(i)[0];
+            slotIndexes[i] = slots.get(i)[1];
+        }
+    }
+
+    /** The templates of one connection, by UUID of the base domain. */
+    private static final class Templates {
+        private final boolean eventsEnabled;
+        private final Map<String, CloneTemplate> byUuid = new LinkedHashMap<String, CloneTemplate>(MAX_TEMPLATES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CloneTemplate> eldest) {
+                return size() > MAX_TEMPLATES;
+            }
+        };
+        // incremented on every invalidation, so a template rendered from XML fetched before it is not kept
+        private long generation;
+
+        private Templates(Connect connect) {
+            DomainStateWatcher watcher = DomainStateWatcher.forConnection(connect);
+            this.eventsEnabled = watcher.isEventsEnabled();
+            watcher.addEventListener(this::invalidate);
+        }
+
+        private synchronized void invalidate(String domainName) {
+            generation++;
+            byUuid.values().removeIf(t -> t.baseName.equals(domainName));
+        }
+    }
+
+    /** Get the template for the current XML of a base domain. */
+    static CloneTemplate forDomain(Domain base) throws LibvirtException, IOException {
+        Templates cache = templates.computeIfAbsent(base.getConnect(), Templates::new);
+        String uuid = base.getUUIDString();
+        CloneTemplate template;
+        long generation;
+        synchronized (cache) {
+            template = cache.byUuid.get(uuid);
+            generation = cache.generation;
+        }
+        if (template != null && cache.eventsEnabled) {
+            return template;
+        }
+
+        String xml = base.getXMLDesc(0);
+        if (template == null || !template.xml.equals(xml)) {
+            template = new CloneTemplate(xml);
+            synchronized (cache) {
+                if (cache.generation == generation) {
+                    cache.byUuid.put(uuid, template);
+                }
+            }
+        }
+        return template;
+    }
+
+    /** Drop the template of a base domain that has been changed, if there is one. */
+    static void invalidate(Connect connect, String domainName) {
+        Templates cache = templates.get(connect);
+        if (cache != null) {
+            cache.invalidate(domainName);
+        }
+    }
+
+    /** Forget the templates of a connection that is about to be closed. */
+    static void release(Connect connect) {
+        templates.remove(connect);
+    }
+
+    /** The parsed XML of the base domain the template was made from. Must not be modified. */
+    Document getBaseXml() {
+        return baseXml;
+    }
+
+    /**
+     * Render the XML of a clone.
+     *
+     * @param diskPaths the paths of the disks of the clone, in the order of the disks of the base domain
+     * @param metadata the metadata element of the clone
+     * @param mappings filesystems to add to the clone, replacing filesystems of the base domain with the same target
+     */
+    String render(String cloneName, String uuid, List<String> diskPaths, Element metadata, List<Filesystem> mappings) throws IOException {
+        StringBuilder sb = new StringBuilder(xml.length() + 1024);
+        for (int i = 0; i < slotTypes.length; i++) {
+            sb.append(literals[i]);
+            int idx = slotIndexes[i];
+            switch (slotTypes[i]) {
+            case NAME:
+                escape(sb, cloneName);
+                break;
+            case UUID_SLOT:
+                escape(sb, uuid);
+                break;
+            case DISK:
+                escape(sb, diskPaths.get(idx));
+                break;
+            case FILESYSTEM:
+                if (!isMapped(filesystemTargets.get(idx), mappings)) {
+                    sb.append(filesystemXml.get(idx));
+                }
+                break;
+            case METADATA:
+                sb.append(elementToString(metadata, RAW));
+                break;
+            case MAPPINGS:
+                for (Filesystem fs : mappings) {
+                    sb.append(elementToString(FilesystemXml.toFileSystemXml(fs), RAW));
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown slot " + slotTypes[i]);
+            }
+        }
+        sb.append(literals[literals.length - 1]);
+        return sb.toString();
+    }
+
+    private static boolean isMapped(String target, List<Filesystem> mappings) {
+        for (Filesystem fs : mappings) {
+            if (fs.target.equals(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Escape text for use as element content or attribute value. */
+    private static void escape(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '&':
+                sb.append("&amp;");
+                break;
+            case '<':
+                sb.append("&lt;");
+                break;
+            case '>':
+                sb.append("&gt;");
+                break;
+            case '"':
+                sb.append("&quot;");
+                break;
+            case '\'':
+                sb.append("&apos;");
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo.DomainState;
+import org.libvirt.LibvirtException;
+import org.libvirt.Library;
+import org.libvirt.event.DomainEvent;
+import org.libvirt.event.LifecycleListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overcast.util.DaemonThreadFactory;
+
+/**
+ * Lets callers wait for a domain to reach a {@link DomainState} without polling libvirt every second.
+ * <p>When the libvirt event loop is running, domain lifecycle events trigger an immediate state check. The state is
+ * also polled with an adaptive backoff, frequently at first and slower later, so a missed event or a libvirt without
+ * event support only costs latency.
+ */
+public final class DomainStateWatcher {
+    private static final Logger logger = LoggerFactory.getLogger(DomainStateWatcher.class);
+
+    private static final long INITIAL_POLL_MILLIS = 50;
+    private static final long MAX_POLL_MILLIS = 1000;
+    private static final long MAX_POLL_MILLIS_WITH_EVENTS = 5000;
+
+    private static final Map<Connect, DomainStateWatcher> watchers = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService poller = Executors.newScheduledThreadPool(2, new DaemonThreadFactory("overcast-libvirt-state"));
+
+    private static boolean eventLoopStarted;
+    private static volatile boolean eventLoopRunning;
+
+    private final Map<String, List<Waiter>> waiters = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> eventListeners = new CopyOnWriteArrayList<>();
+    private final boolean eventsEnabled;
+
+    private class Waiter {
+        private final Domain domain;
+        private final String name;
+        private final DomainState target;
+        private final CompletableFuture<DomainState> future = new CompletableFuture<>();
+        private long delay = INITIAL_POLL_MILLIS;
+        private int checks;
+
+        private Waiter(Domain domain, String name, DomainState target) {
+            this.domain = domain;
+            this.name = name;
+            this.target = target;
+        }
+
+        private synchronized void check() {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                checks++;
+                DomainState state = domain.getInfo().state;
+                if (state == target) {
+                    logger.debug("Domain '{}' reached state {} after {} checks", name, state, checks);
+                    future.complete(state);
+                }
+            } catch (LibvirtException e) {
+                future.completeExceptionally(new LibvirtRuntimeException("Unable to get domain state", e));
+            }
+        }
+
+        private void poll() {
+            check();
+            if (!future.isDone()) {
+                long maxDelay = eventsEnabled ? MAX_POLL_MILLIS_WITH_EVENTS : MAX_POLL_MILLIS;
+                delay = Math.min(delay * 2, maxDelay);
+                poller.schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private DomainStateWatcher(Connect connect) {
+        this.eventsEnabled = eventLoopRunning && registerListener(connect);
+    }
+
+    /**
+     * Start the libvirt event loop. Domain events are only delivered for connections that are opened after this has
+     * been called. When the event loop cannot be started state changes are detected by polling.
+     */
+    public static synchronized void startEventLoop() {
+        if (eventLoopStarted) {
+            return;
+        }
+        eventLoopStarted = true;
+        try {
+            Library.initEventLoop();
+        } catch (LibvirtException | LinkageError e) {
+            logger.info("Libvirt event loop not available, falling back to polling for domain state changes ({})", e.getMessage());
+            return;
+        }
+
+        Thread eventLoop = new Thread(() -> {
+            try {
+                Library.runEventLoop();
+            } catch (LibvirtException e) {
+                logger.warn("Libvirt event loop stopped, falling back to polling for domain state changes", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                eventLoopRunning = false;
+            }
+        }, "overcast-libvirt-events");
+        eventLoop.setDaemon(true);
+        eventLoopRunning = true;
+        eventLoop.start();
+    }
+
+    public static DomainStateWatcher forConnection(Connect connect) {
+        return watchers.computeIfAbsent(connect, DomainStateWatcher::new);
+    }
+
+    /** Forget about a connection that is about to be closed. */
+    public static void release(Connect connect) {
+        watchers.remove(connect);
+    }
+
+    /**
+     * Returns a future that completes when the domain is in the target state. Cancel the future to stop waiting.
+     */
+    public CompletableFuture<DomainState> waitFor(Domain domain, DomainState target) throws LibvirtException {
+        Waiter waiter = new Waiter(domain, domain.getName(), target);
+        List<Waiter> forDomain = waiters.computeIfAbsent(waiter.name, n -> new CopyOnWriteArrayList<>());
+        forDomain.add(waiter);
+        waiter.future.whenComplete((state, e) -> forDomain.remove(waiter));
+
+        // register before checking so an event arriving in between is not lost
+        poller.execute(waiter::poll);
+        return waiter.future;
+    }
+
+    public boolean isEventsEnabled() {
+        return eventsEnabled;
+    }
+
+    /**
+     * Register a listener that is called with the name of a domain whenever a lifecycle event (defined, undefined,
+     * started, stopped, ...) is received for it. Only called when {@link #isEventsEnabled()}.
+     */
+    public void addEventListener(Consumer<String> listener) {
+        eventListeners.add(listener);
+    }
+
+    private boolean registerListener(Connect connect) {
+        try {
+            connect.addLifecycleListener(new LifecycleListener() {
+                @Override
+                public int onLifecycleChange(Domain domain, DomainEvent info) {
+                    onDomainEvent(domain, info);
+                    return 0;
+                }
+            });
+            return true;
+        } catch (LibvirtException | LinkageError e) {
+            logger.info("Unable to register for domain events, falling back to polling for domain state changes ({})", e.getMessage());
+            return false;
+        }
+    }
+
+    private void onDomainEvent(Domain domain, DomainEvent info) {
+        try {
+            String name = domain.getName();
+            logger.debug("Domain '{}' lifecycle event {}", name, info);
+            for (Consumer<String> listener : eventListeners) {
+                listener.accept(name);
+            }
+            List<Waiter> forDomain = waiters.get(name);
+            if (forDomain != null) {
+                // do not call back into libvirt from the event loop thread
+                for (Waiter waiter : forDomain) {
+                    poller.execute(waiter::check);
+                }
+            }
+        } catch (LibvirtException e) {
+            logger.debug("Ignoring event for unknown domain", e);
+        }
+    }
+}
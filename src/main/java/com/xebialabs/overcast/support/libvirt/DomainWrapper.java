@@ -17,30 +17,44 @@ package com.xebialabs.overcast.support.libvirt;
 
 import org.jdom2.Document;
 import org.jdom2.Element;
+import org.libvirt.Connect;
 import org.libvirt.Domain;
 import org.libvirt.DomainInfo.DomainState;
+import org.libvirt.Error.ErrorNumber;
 import org.libvirt.LibvirtException;
 import org.libvirt.StorageVol;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.xebialabs.overcast.util.DaemonThreadFactory;
+
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.xebialabs.overcast.support.libvirt.JDomUtil.documentToString;
-import static com.xebialabs.overcast.support.libvirt.Metadata.updateCloneMetadata;
 import static com.xebialabs.overcast.support.libvirt.Metadata.updateProvisioningMetadata;
 import static com.xebialabs.overcast.support.libvirt.jdom.DiskXml.getDisks;
-import static com.xebialabs.overcast.support.libvirt.jdom.DiskXml.updateDisks;
-import static com.xebialabs.overcast.support.libvirt.jdom.DomainXml.prepareForCloning;
-import static com.xebialabs.overcast.support.libvirt.jdom.DomainXml.setDomainName;
-import static com.xebialabs.overcast.support.libvirt.jdom.FilesystemXml.*;
 import static com.xebialabs.overcast.support.libvirt.jdom.InterfaceXml.getMacs;
 
 public class DomainWrapper {
     private static final Logger logger = LoggerFactory.getLogger(DomainWrapper.class);
+
+    /** Maximum number of disks that are created or removed at the same time. */
+    public static final int DISK_CONCURRENCY = 4;
+
+    private static final ExecutorService diskExecutor = Executors.newFixedThreadPool(DISK_CONCURRENCY, new DaemonThreadFactory("overcast-libvirt-disks"));
+
     private Document domainXml;
     private Domain domain;
+    // set for clones created as transient domain, which vanish by themselves when they stop
+    private boolean transientDomain;
 
     public DomainWrapper(Domain domain, Document domainXml) {
         this.domain = domain;
@@ -65,27 +79,61 @@ public class DomainWrapper {
 
     public void destroyWithDisks() {
         try {
-            // look up state before undefining the domain...
-            boolean isRunning = (domain.getInfo().state == DomainState.VIR_DOMAIN_RUNNING);
-            List<Disk> disks = getDisks(domain.getConnect(), domainXml);
-            logger.info("Undefining domain '{}'", domain.getName());
-            domain.undefine(3); // also remove snapshot data and managed save data
-
-            if (isRunning) {
-                logger.info("Shutting down domain '{}'", domain.getName());
-                domain.destroy();
+            Connect connect = domain.getConnect();
+            // from our copy of the domain xml, a transient domain that stopped cannot be asked for it anymore
+            List<Disk> disks = getDisks(connect, domainXml);
+            String name = getName();
+            boolean gone = false;
+            boolean isRunning = false;
+            boolean isPersistent = false;
+            try {
+                // look up state before undefining the domain...
+                isRunning = (domain.getInfo().state == DomainState.VIR_DOMAIN_RUNNING);
+                isPersistent = domain.isPersistent() == 1;
+            } catch (LibvirtException e) {
+                if (!isGone(e)) {
+                    throw e;
+                }
+                logger.info("Transient domain '{}' is already gone", name);
+                gone = true;
+            }
+            if (isPersistent) {
+                logger.info("Undefining domain '{}'", name);
+                domain.undefine(3); // also remove snapshot data and managed save data
+            }
+
+            // a transient domain is gone once it is destroyed
+            if (!gone && (isRunning || !isPersistent)) {
+                logger.info("Shutting down domain '{}'", name);
+                try {
+                    domain.destroy();
+                } catch (LibvirtException e) {
+                    if (!isGone(e)) {
+                        throw e;
+                    }
+                    logger.info("Transient domain '{}' stopped by itself", name);
+                }
             }
 
             // this will not destroy the backing store disks.
-            for (Disk disk : disks) {
+            List<Throwable> failures = forEachInParallel(disks, disk -> {
                 logger.info("Removing disk {}", disk.getName());
                 disk.getVolume().delete(0);
+                VolumeIndex.removed(connect, disk.file);
+            });
+            if (!failures.isEmpty()) {
+                throw failed("Unable to remove disks of domain", failures);
             }
         } catch (LibvirtException e) {
             throw new LibvirtRuntimeException("Unable to destroy domain", e);
         }
     }
 
+    /** A transient domain that stopped no longer exists, any other domain must not disappear underneath us. */
+    private boolean isGone(LibvirtException e) {
+        return transientDomain && e.getError() != null && e.getError().getCode() == ErrorNumber.VIR_ERR_NO_DOMAIN;
+    }
+
     public DomainState getState() {
         try {
             return domain.getInfo().state;
@@ -94,6 +142,38 @@ public class DomainWrapper {
         }
     }
 
+    /**
+     * Wait until the domain reaches a state.
+     *
+     * @param timeoutSeconds maximum number of seconds to wait, or a negative number to wait indefinitely
+     * @return the state of the domain, which is not the requested state when the timeout expired
+     */
+    public DomainState waitForState(DomainState state, int timeoutSeconds) {
+        CompletableFuture<DomainState> reached;
+        try {
+            Connect connect = domain.getConnect();
+            reached = DomainStateWatcher.forConnection(connect).waitFor(domain, state);
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to get domain state", e);
+        }
+
+        try {
+            if (timeoutSeconds < 0) {
+                return reached.get();
+            }
+            return reached.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            reached.cancel(false);
+            return getState();
+        } catch (InterruptedException e) {
+            reached.cancel(false);
+            Thread.currentThread().interrupt();
+            return getState();
+        } catch (ExecutionException e) {
+            throw new LibvirtRuntimeException("Unable to get domain state", e.getCause());
+        }
+    }
+
     public String getMac(String id) {
         if(id == null) {
             return null;
@@ -106,61 +186,118 @@ public class DomainWrapper {
      * created by suffixing the original disk name with a number.
      */
     public DomainWrapper cloneWithBackingStore(String cloneName, List<Filesystem> mappings) {
+        return cloneWithBackingStore(cloneName, mappings, false);
+    }
+
+    /**
+     * Clone the domain like {@link #cloneWithBackingStore(String, List)}. When transientDomain is set the clone is
+     * created and started in one go without being defined, so it disappears when it is destroyed or shut down and
+     * can not be used as a base domain itself.
+     */
+    public DomainWrapper cloneWithBackingStore(String cloneName, List<Filesystem> mappings, boolean transientDomain) {
         logger.info("Creating clone from {}", getName());
         try {
-            // duplicate definition of base
-            Document cloneXmlDocument = domainXml.clone();
-
-            setDomainName(cloneXmlDocument, cloneName);
+            CloneTemplate template = CloneTemplate.forDomain(domain);
 
-            prepareForCloning(cloneXmlDocument);
+            List<String> diskPaths = new ArrayList<>();
+            for (StorageVol vol : cloneDisks(template.getBaseXml(), cloneName)) {
+                diskPaths.add(vol.getPath());
+            }
 
             // keep track of who we are a clone from...
-            updateCloneMetadata(cloneXmlDocument, getName(), new Date());
-
-            cloneDisks(cloneXmlDocument, cloneName);
+            Element metadata = Metadata.createCloningMetadata(getName(), new Date());
 
-            updateFilesystemMappings(cloneXmlDocument, mappings);
-
-            String cloneXml = documentToString(cloneXmlDocument);
+            String cloneXml = template.render(cloneName, UUID.randomUUID().toString(), diskPaths, metadata, mappings);
             logger.debug("Clone xml={}", cloneXml);
 
-            // Domain cloneDomain = domain.getConnect().domainCreateXML(cloneXml, 0);
+            if (transientDomain) {
+                Domain cloneDomain = domain.getConnect().domainCreateXML(cloneXml, 0);
+                logger.debug("Started transient clone: '{}'", cloneDomain.getName());
+                DomainWrapper clone = newWrapper(cloneDomain);
+                clone.transientDomain = true;
+                return clone;
+            }
             Domain cloneDomain = domain.getConnect().domainDefineXML(cloneXml);
-            String createdCloneXml = cloneDomain.getXMLDesc(0);
-            logger.debug("Created clone xml: {}", createdCloneXml);
             cloneDomain.create();
             logger.debug("Starting clone: '{}'", cloneDomain.getName());
-
             return newWrapper(cloneDomain);
         } catch (IOException | LibvirtException e) {
             throw new LibvirtRuntimeException("Unable to clone domain", e);
         }
     }
 
-    private void updateFilesystemMappings(Document cloneXmlDocument, List<Filesystem> mappings) {
-        Element devices = cloneXmlDocument.getRootElement().getChild("devices");
+    private List<StorageVol> cloneDisks(Document baseXml, String cloneName) throws LibvirtException {
+        Connect connect = domain.getConnect();
+        List<Disk> disks = getDisks(connect, baseXml);
+        List<CompletableFuture<StorageVol>> creations = new ArrayList<>();
+        for (int i = 0; i < disks.size(); i++) {
+            Disk d = disks.get(i);
+            String clonedDisk = String.format("%s-%02d.qcow2", cloneName, i + 1);
+            creations.add(CompletableFuture.supplyAsync(() -> {
+                StorageVol vol = d.createCloneWithBackingStore(clonedDisk);
+                logger.debug("Disk {} cloned to {}", d.getName(), clonedDisk);
+                return vol;
+            }, diskExecutor));
+        }
+
+        // wait for all of them, so nothing is still being created when rolling back
+        List<StorageVol> cloneDisks = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (CompletableFuture<StorageVol> creation : creations) {
+            try {
+                cloneDisks.add(creation.join());
+            } catch (CompletionException e) {
+                failures.add(e.getCause());
+            }
+        }
 
-        Map<String, Filesystem> currentFilesystems = getFilesystems(domainXml);
-        for (Filesystem fs : mappings) {
-            if (currentFilesystems.containsKey(fs.target)) {
-                removeFilesystemsWithTarget(cloneXmlDocument, fs.target);
+        if (!failures.isEmpty()) {
+            logger.warn("Unable to clone all disks of '{}', removing the {} disks that were created", getName(), cloneDisks.size());
+            for (Throwable t : forEachInParallel(cloneDisks, vol -> vol.delete(0))) {
+                logger.warn("Unable to remove disk during rollback", t);
             }
-            devices.addContent(toFileSystemXml(fs));
+            throw failed("Unable to clone disks", failures);
         }
+
+        for (StorageVol vol : cloneDisks) {
+            VolumeIndex.added(connect, vol);
+        }
+        return cloneDisks;
     }
 
-    private void cloneDisks(Document cloneXmlDocument, String cloneName) throws LibvirtException {
-        List<StorageVol> cloneDisks = new ArrayList<>();
-        int idx = 0;
-        for (Disk d : getDisks(domain.getConnect(), domainXml)) {
-            idx++;
-            String clonedDisk = String.format("%s-%02d.qcow2", cloneName, idx);
-            StorageVol vol = d.createCloneWithBackingStore(clonedDisk);
-            logger.debug("Disk {} cloned to {}", d.getName(), clonedDisk);
-            cloneDisks.add(vol);
+    private interface DiskAction<T> {
+        void apply(T item) throws LibvirtException;
+    }
+
+    /** Apply action to all items on the disk executor, returning the failures. */
+    private static <T> List<Throwable> forEachInParallel(List<T> items, DiskAction<T> action) {
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        for (T item : items) {
+            running.add(CompletableFuture.runAsync(() -> {
+                try {
+                    action.apply(item);
+                } catch (LibvirtException e) {
+                    throw new LibvirtRuntimeException(e);
+                }
+            }, diskExecutor));
+        }
+        List<Throwable> failures = new ArrayList<>();
+        for (CompletableFuture<Void> r : running) {
+            try {
+                r.join();
+            } catch (CompletionException e) {
+                failures.add(e.getCause());
+            }
         }
-        updateDisks(cloneXmlDocument, cloneDisks);
+        return failures;
+    }
+
+    private static LibvirtRuntimeException failed(String message, List<Throwable> failures) {
+        LibvirtRuntimeException e = new LibvirtRuntimeException(message, failures.get(0));
+        for (Throwable t : failures.subList(1, failures.size())) {
+            e.addSuppressed(t);
+        }
+        return e;
     }
 
     public DomainWrapper cloneWithBackingStore(String cloneName) {
@@ -176,12 +313,21 @@ public class DomainWrapper {
             if (domain.isActive() == 1) {
                 throw new IllegalStateException("Domain must be shut down before updating metdata");
             }
-            // need a really fresh copy of the domain xml or the update may fail...
-            reloadDomainXml();
+            // also keeps our copy of the domain xml in line
             updateProvisioningMetadata(domainXml, baseDomainName, provisionCmd, expirationTag, date);
-            String xml = documentToString(domainXml);
-            logger.debug("Updating domain '{}' XML with {}", getName(), xml);
-            domain.getConnect().domainDefineXML(xml);
+            Connect connect = domain.getConnect();
+            if (NativeMetadata.set(domain, Metadata.getOvercastMetadataElement(domainXml))) {
+                logger.debug("Updated metadata of domain '{}'", getName());
+            } else {
+                // need a really fresh copy of the domain xml or the update may fail...
+                reloadDomainXml();
+                updateProvisioningMetadata(domainXml, baseDomainName, provisionCmd, expirationTag, date);
+                String xml = documentToString(domainXml);
+                logger.debug("Updating domain '{}' XML with {}", getName(), xml);
+                connect.domainDefineXML(xml);
+            }
+            MetadataIndex.invalidate(connect, getName());
+            CloneTemplate.invalidate(connect, getName());
         } catch (IOException | LibvirtException e) {
             throw new LibvirtRuntimeException(String.format("Unable to update metadata for domain '%s'", getName()), e);
         }
@@ -192,20 +338,10 @@ public class DomainWrapper {
         try {
             domain.shutdown();
 
-            while (this.domain.isActive() == 1) {
-                sleep(1);
-            }
-            logger.debug("Domain '{}' shut down (active={})", getName(), this.domain.isActive());
+            DomainState state = waitForState(DomainState.VIR_DOMAIN_SHUTOFF, -1);
+            logger.debug("Domain '{}' shut down (state={})", getName(), state);
         } catch (LibvirtException e) {
             throw new LibvirtRuntimeException(String.format("Unable to shut down domain '%s'", getName()), e);
         }
     }
-
-    private static void sleep(final int seconds) {
-        try {
-            Thread.sleep(seconds * 1000);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
-    }
 }
@@ -0,0 +1,163 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overcast.util.DaemonThreadFactory;
+
+import static com.xebialabs.overcast.Preconditions.checkState;
+
+/**
+ * Reference counted libvirt connections, one per URI, shared by all hosts using that URI.
+ * <p>Connections are checked when they are acquired or revalidated and reopened when libvirt reports them as dead.
+ * Keepalive is enabled on every connection so a dead connection is noticed, which requires the event loop started by
+ * {@link DomainStateWatcher#startEventLoop()}. A connection that is no longer referenced is closed after
+ * {@link #IDLE_TIMEOUT_SECONDS}.
+ */
+public final class LibvirtConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(LibvirtConnectionPool.class);
+
+    public static final int KEEPALIVE_INTERVAL_SECONDS = 5;
+    public static final int KEEPALIVE_COUNT = 3;
+    public static final int IDLE_TIMEOUT_SECONDS = 60;
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService idleCloser = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("overcast-libvirt-pool"));
+
+    // replaced in tests
+    static Function<String, Connect> connector = uri -> LibvirtUtil.getConnection(uri, false);
+    static long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT_SECONDS);
+
+    private static class Entry {
+        private final String uri;
+        private Connect connect;
+        private int refs;
+        private ScheduledFuture<?> idleClose;
+
+        private Entry(String uri) {
+            this.uri = uri;
+        }
+    }
+
+    private LibvirtConnectionPool() {
+    }
+
+    /** Get the shared connection to uri. Every call must be matched by a call to {@link #release(String)}. */
+    public static Connect acquire(String uri) {
+        Entry e = entries.computeIfAbsent(uri, Entry::new);
+        synchronized (e) {
+            if (e.idleClose != null) {
+                e.idleClose.cancel(false);
+                e.idleClose = null;
+            }
+            Connect connect = current(e);
+            e.refs++;
+            return connect;
+        }
+    }
+
+    /**
+     * Get the shared connection to uri, which is already held by the caller, reconnecting if it is dead.
+     *
+     * @return the connection to use from now on, which is not the connection held before when it was replaced
+     */
+    public static Connect revalidate(String uri) {
+        Entry e = entries.get(uri);
+        checkState(e != null, "No connection to '%s' acquired", uri);
+        synchronized (e) {
+            checkState(e.refs > 0, "No connection to '%s' acquired", uri);
+            return current(e);
+        }
+    }
+
+    /** Give up a reference to the shared connection to uri. */
+    public static void release(String uri) {
+        Entry e = entries.get(uri);
+        checkState(e != null, "No connection to '%s' acquired", uri);
+        synchronized (e) {
+            checkState(e.refs > 0, "No connection to '%s' acquired", uri);
+            e.refs--;
+            if (e.refs == 0) {
+                e.idleClose = idleCloser.schedule(() -> closeIfIdle(e), idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static Connect current(Entry e) {
+        if (e.connect != null && !isAlive(e.connect)) {
+            logger.warn("Connection to '{}' is dead, reconnecting", e.uri);
+            close(e.connect);
+            e.connect = null;
+        }
+        if (e.connect == null) {
+            e.connect = open(e.uri);
+        }
+        return e.connect;
+    }
+
+    private static void closeIfIdle(Entry e) {
+        synchronized (e) {
+            if (e.refs == 0 && e.connect != null) {
+                logger.debug("Closing idle connection to '{}'", e.uri);
+                close(e.connect);
+                e.connect = null;
+            }
+            e.idleClose = null;
+        }
+    }
+
+    private static Connect open(String uri) {
+        Connect connect = connector.apply(uri);
+        try {
+            connect.setKeepAlive(KEEPALIVE_INTERVAL_SECONDS, KEEPALIVE_COUNT);
+        } catch (LibvirtException e) {
+            logger.debug("Unable to enable keepalive on connection to '{}' ({})", uri, e.getMessage());
+        }
+        return connect;
+    }
+
+    private static boolean isAlive(Connect connect) {
+        try {
+            return connect.isAlive();
+        } catch (LibvirtException e) {
+            return false;
+        }
+    }
+
+    private static void close(Connect connect) {
+        DomainStateWatcher.release(connect);
+        MetadataIndex.release(connect);
+        VolumeIndex.release(connect);
+        CloneTemplate.release(connect);
+        try {
+            connect.close();
+        } catch (LibvirtException e) {
+            logger.debug("Unable to close connection", e);
+        }
+    }
+}
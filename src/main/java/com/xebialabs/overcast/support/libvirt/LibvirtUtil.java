@@ -39,39 +39,20 @@ public final class LibvirtUtil {
     /** Look up a disk image's {@link StorageVol} in the {@link StoragePool}s attached to connection. */
     public static StorageVol findVolume(Connect connection, String path) throws LibvirtException {
         log.debug("Looking up StorageVolume for path '{}'", path);
-        for (String s : connection.listStoragePools()) {
-            StoragePool sp = connection.storagePoolLookupByName(s);
-            for (String v : sp.listVolumes()) {
-                StorageVol vol = sp.storageVolLookupByName(v);
-                if (vol.getPath().equals(path)) {
-                    log.debug("Found volume '{}' for path '{}'", vol.getName(), path);
-                    return vol;
-                }
-            }
+        StorageVol vol = VolumeIndex.forConnection(connection).findVolume(path);
+        if (vol == null) {
+            throw new LibvirtRuntimeException("no volume found for path " + path);
         }
-        throw new LibvirtRuntimeException("no volume found for path " + path);
+        return vol;
     }
 
     public static StoragePool findStoragePoolWithFile(Connect conn, String path) throws LibvirtException {
-        for (String spn : conn.listStoragePools()) {
-            StoragePool sp = conn.storagePoolLookupByName(spn);
-            if (findVolumeInPool(sp, path) != null) {
-                log.debug("Found storage pool '{}' for image '{}'", sp.getName(), path);
-                return sp;
-            }
-        }
-        throw new LibvirtRuntimeException("pool with image " + path + " not found");
-    }
-
-    private static StorageVol findVolumeInPool(StoragePool sp, String image) throws LibvirtException {
-        for (String v : sp.listVolumes()) {
-            StorageVol vol = sp.storageVolLookupByName(v);
-            if (vol.getPath().equals(image)) {
-                log.debug("Found volume '{}' for image '{}'", vol.getName(), image);
-                return vol;
-            }
+        StoragePool sp = VolumeIndex.forConnection(conn).findStoragePool(path);
+        if (sp == null) {
+            throw new LibvirtRuntimeException("pool with image " + path + " not found");
         }
-        return null;
+        log.debug("Found storage pool '{}' for image '{}'", sp.getName(), path);
+        return sp;
     }
 
     public static Document loadDomainXml(Domain domain) {
@@ -112,6 +93,8 @@ public final class LibvirtUtil {
 
     /** Create a connection to libvirt in a thread safe manner. */
     public static Connect getConnection(String libvirtURL, boolean readOnly) {
+        // events are only delivered on connections opened after the event loop has been started
+        DomainStateWatcher.startEventLoop();
         connectLock.lock();
         try {
             return new Connect(libvirtURL, readOnly);
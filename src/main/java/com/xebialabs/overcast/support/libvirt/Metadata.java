@@ -24,6 +24,7 @@ import com.xebialabs.overcast.Preconditions;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.Namespace;
+import org.libvirt.Domain;
 
 import static com.xebialabs.overcast.support.libvirt.JDomUtil.getElementText;
 
@@ -114,17 +115,41 @@ public class Metadata {
      * @return the metadata or <code>null</code> if there's no metadata
      */
     public static Metadata fromXml(Document domainXml) {
+        Element ocMetadata = getOvercastMetadataElement(domainXml);
+        if (ocMetadata == null) {
+            return null;
+        }
+        return fromElement(ocMetadata);
+    }
+
+    /**
+     * Get the {@link Metadata} of a domain. It is read through the libvirt domain metadata calls when possible, which
+     * avoids fetching and parsing the whole domain XML.
+     *
+     * @return the metadata or <code>null</code> if there's no metadata
+     */
+    public static Metadata fromDomain(Domain domain) {
+        String ocMetadata = NativeMetadata.get(domain);
+        if (ocMetadata != null) {
+            return fromElement(JDomUtil.stringToDocument(ocMetadata).getRootElement());
+        }
+        return fromXml(LibvirtUtil.loadDomainXml(domain));
+    }
+
+    /** Get the <code>overcast_metadata</code> element from the domain XML, or <code>null</code> if there is none. */
+    static Element getOvercastMetadataElement(Document domainXml) {
+        Element metadata = getMetadataElement(domainXml);
+        return metadata == null ? null : metadata.getChild(OVERCAST_METADATA, Namespace.getNamespace(METADATA_NS_V1));
+    }
+
+    /**
+     * Extract {@link Metadata} from an <code>overcast_metadata</code> element. Throws {@link IllegalArgumentException}
+     * if the metadata is malformed.
+     */
+    static Metadata fromElement(Element ocMetadata) {
         try {
             SimpleDateFormat sdf = new SimpleDateFormat(XML_DATE_FORMAT);
-            Element metadata = getMetadataElement(domainXml);
-            if (metadata == null) {
-                return null;
-            }
             Namespace ns = Namespace.getNamespace(METADATA_NS_V1);
-            Element ocMetadata = metadata.getChild(OVERCAST_METADATA, ns);
-            if (ocMetadata == null) {
-                return null;
-            }
             String parentDomain = getElementText(ocMetadata, PARENT_DOMAIN, ns);
             String creationTime = getElementText(ocMetadata, CREATION_TIME, ns);
             Date date = sdf.parse(creationTime);
@@ -141,7 +166,7 @@ public class Metadata {
         }
     }
 
-    private static Element createProvisioningMetadata(String parentDomain, String provisionedWith, String provisionedChecksum, Date provisionedAt) {
+    static Element createProvisioningMetadata(String parentDomain, String provisionedWith, String provisionedChecksum, Date provisionedAt) {
         SimpleDateFormat sdf = new SimpleDateFormat(XML_DATE_FORMAT);
         sdf.setTimeZone(METADATA_TIMEZONE);
 
@@ -157,7 +182,7 @@ public class Metadata {
         return metadata;
     }
 
-    private static Element createCloningMetadata(String parentDomain, Date creationTime) {
+    static Element createCloningMetadata(String parentDomain, Date creationTime) {
         SimpleDateFormat sdf = new SimpleDateFormat(XML_DATE_FORMAT);
         sdf.setTimeZone(METADATA_TIMEZONE);
 
@@ -0,0 +1,258 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process index of the Overcast {@link Metadata} of the domains of a libvirt connection.
+ * <p>The domain XML of a domain is only fetched and parsed when the domain is seen for the first time. After that the
+ * index is kept up to date by comparing the list of domain names (or ids for running domains) with what is known, and
+ * by re-reading domains for which a lifecycle event was received or which were changed through {@link DomainWrapper}.
+ * Without lifecycle events, shut off clones are re-read on every refresh because they are the only domains whose
+ * metadata Overcast changes (when a provisioned clone becomes a cached domain).
+ */
+public final class MetadataIndex {
+    private static final Logger logger = LoggerFactory.getLogger(MetadataIndex.class);
+
+    private static final Map<Connect, MetadataIndex> indexes = new ConcurrentHashMap<>();
+
+    private final Connect libvirt;
+    private final DomainStateWatcher watcher;
+
+    // defined (inactive) domains by name
+    private final Map<String, IndexedDomain> defined = new HashMap<>();
+    // names of provisioned defined domains by (parent domain, provisioned with, checksum)
+    private final Map<List<String>, Set<String>> byChecksum = new HashMap<>();
+    // names of provisioned defined domains by (parent domain, provisioned with)
+    private final Map<List<String>, Set<String>> byProvisioning = new HashMap<>();
+    // running domains by id
+    private final Map<Integer, IndexedDomain> running = new HashMap<>();
+
+    private final Set<String> invalidated = ConcurrentHashMap.newKeySet();
+
+    private static class IndexedDomain {
+        private final String name;
+        private final String uuid;
+        private final Metadata metadata;
+
+        private IndexedDomain(String name, String uuid, Metadata metadata) {
+            this.name = name;
+            this.uuid = uuid;
+            this.metadata = metadata;
+        }
+
+        private boolean isClone() {
+            return metadata != null && !metadata.isProvisioned();
+        }
+    }
+
+    private MetadataIndex(Connect libvirt) {
+        this.libvirt = libvirt;
+        this.watcher = DomainStateWatcher.forConnection(libvirt);
+        watcher.addEventListener(invalidated::add);
+    }
+
+    public static MetadataIndex forConnection(Connect libvirt) {
+        return indexes.computeIfAbsent(libvirt, MetadataIndex::new);
+    }
+
+    /** Mark a domain as changed, if an index exists for the connection. */
+    public static void invalidate(Connect libvirt, String domainName) {
+        MetadataIndex index = indexes.get(libvirt);
+        if (index != null) {
+            index.invalidated.add(domainName);
+        }
+    }
+
+    /**
+     * Mark all defined domains as changed, if an index exists for the connection. Needed to pick up metadata changes
+     * made by other processes, these do not always cause a lifecycle event.
+     */
+    public static void invalidateAll(Connect libvirt) {
+        MetadataIndex index = indexes.get(libvirt);
+        if (index != null) {
+            synchronized (index) {
+                index.invalidated.addAll(index.defined.keySet());
+            }
+        }
+    }
+
+    /** Forget the index of a connection that is about to be closed. */
+    public static void release(Connect libvirt) {
+        indexes.remove(libvirt);
+    }
+
+    /**
+     * Find a defined domain provisioned from parentDomain with provisionedWith which has the given checksum.
+     *
+     * @return the domain or <code>null</code> if there is none.
+     */
+    public synchronized Domain findProvisionedDomain(String parentDomain, String provisionedWith, String checksum) throws LibvirtException {
+        refreshDefined();
+        Set<String> names = byChecksum.get(Arrays.asList(parentDomain, provisionedWith, checksum));
+        if (names == null) {
+            return null;
+        }
+        for (String name : new ArrayList<>(names)) {
+            Domain domain = lookupUnchanged(defined.get(name));
+            if (domain != null) {
+                return domain;
+            }
+        }
+        return null;
+    }
+
+    /** Names of the defined domains provisioned from parentDomain with provisionedWith which have another checksum. */
+    public synchronized List<String> findStaleDomains(String parentDomain, String provisionedWith, String checksum) throws LibvirtException {
+        refreshDefined();
+        List<String> stale = new ArrayList<>();
+        Set<String> names = byProvisioning.get(Arrays.asList(parentDomain, provisionedWith));
+        if (names != null) {
+            for (String name : names) {
+                if (!defined.get(name).metadata.getProvisionedChecksum().equals(checksum)) {
+                    stale.add(name);
+                }
+            }
+        }
+        return stale;
+    }
+
+    /** Names of the running clones of parentDomain. */
+    public synchronized List<String> findRunningClones(String parentDomain) throws LibvirtException {
+        refreshRunning();
+        List<String> clones = new ArrayList<>();
+        for (IndexedDomain d : running.values()) {
+            if (d.isClone() && d.metadata.getParentDomain().equals(parentDomain)) {
+                clones.add(d.name);
+            }
+        }
+        return clones;
+    }
+
+    private void refreshDefined() throws LibvirtException {
+        Set<String> names = new HashSet<>(Arrays.asList(libvirt.listDefinedDomains()));
+
+        for (String name : new ArrayList<>(defined.keySet())) {
+            if (!names.contains(name)) {
+                remove(name);
+            }
+        }
+
+        boolean recheckClones = !watcher.isEventsEnabled();
+        for (String name : names) {
+            IndexedDomain known = defined.get(name);
+            boolean changed = invalidated.remove(name);
+            if (known == null || changed || (recheckClones && known.isClone())) {
+                if (known != null) {
+                    remove(name);
+                }
+                try {
+                    add(index(libvirt.domainLookupByName(name)));
+                } catch (LibvirtException | LibvirtRuntimeException e) {
+                    // domain may have been undefined in the meantime
+                    logger.debug("Unable to index domain '{}'", name, e);
+                }
+            }
+        }
+    }
+
+    private void refreshRunning() throws LibvirtException {
+        Set<Integer> ids = new HashSet<>();
+        for (int id : libvirt.listDomains()) {
+            ids.add(id);
+        }
+        running.keySet().retainAll(ids);
+        for (int id : ids) {
+            if (!running.containsKey(id)) {
+                try {
+                    running.put(id, index(libvirt.domainLookupByID(id)));
+                } catch (LibvirtException | LibvirtRuntimeException e) {
+                    // domain may have been shut down in the meantime
+                    logger.debug("Unable to index domain with id {}", id, e);
+                }
+            }
+        }
+    }
+
+    private IndexedDomain index(Domain domain) throws LibvirtException {
+        String name = domain.getName();
+        Metadata metadata = Metadata.fromDomain(domain);
+        logger.debug("Indexed domain '{}' with metadata {}", name, metadata);
+        return new IndexedDomain(name, domain.getUUIDString(), metadata);
+    }
+
+    private void add(IndexedDomain d) {
+        defined.put(d.name, d);
+        if (d.metadata != null && d.metadata.isProvisioned()) {
+            Metadata md = d.metadata;
+            byChecksum.computeIfAbsent(Arrays.asList(md.getParentDomain(), md.getProvisionedWith(), md.getProvisionedChecksum()),
+                    k -> new LinkedHashSet<>()).add(d.name);
+            byProvisioning.computeIfAbsent(Arrays.asList(md.getParentDomain(), md.getProvisionedWith()),
+                    k -> new LinkedHashSet<>()).add(d.name);
+        }
+    }
+
+    private void remove(String name) {
+        IndexedDomain d = defined.remove(name);
+        if (d != null && d.metadata != null && d.metadata.isProvisioned()) {
+            Metadata md = d.metadata;
+            removeName(byChecksum, Arrays.asList(md.getParentDomain(), md.getProvisionedWith(), md.getProvisionedChecksum()), name);
+            removeName(byProvisioning, Arrays.asList(md.getParentDomain(), md.getProvisionedWith()), name);
+        }
+    }
+
+    private static void removeName(Map<List<String>, Set<String>> map, List<String> key, String name) {
+        Set<String> names = map.get(key);
+        if (names != null) {
+            names.remove(name);
+            if (names.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    /** Look up an indexed domain, dropping it from the index when it has been replaced by another domain. */
+    private Domain lookupUnchanged(IndexedDomain d) {
+        try {
+            Domain domain = libvirt.domainLookupByName(d.name);
+            if (Objects.equals(domain.getUUIDString(), d.uuid)) {
+                return domain;
+            }
+            logger.debug("Domain '{}' has been redefined", d.name);
+        } catch (LibvirtException e) {
+            logger.debug("Domain '{}' has disappeared", d.name, e);
+        }
+        remove(d.name);
+        invalidated.add(d.name);
+        return null;
+    }
+}
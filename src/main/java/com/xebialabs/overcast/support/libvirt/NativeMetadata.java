@@ -0,0 +1,143 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import org.jdom2.Element;
+import org.jdom2.output.Format;
+import org.libvirt.Domain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.PointerType;
+import com.sun.jna.ptr.PointerByReference;
+
+import static com.xebialabs.overcast.support.libvirt.Metadata.METADATA_NS_V1;
+
+/**
+ * Reads and writes the <code>overcast_metadata</code> element of a domain with <code>virDomainGetMetadata</code> and
+ * <code>virDomainSetMetadata</code>, so the domain XML does not have to be fetched and redefined as a whole. The
+ * libvirt-java bindings do not cover these calls, so they are bound here directly on the pointer wrapped by
+ * {@link Domain}. When that is not possible (older libvirt, other libvirt-java version) the methods report that the
+ * caller has to fall back to the domain XML.
+ */
+final class NativeMetadata {
+    private static final Logger logger = LoggerFactory.getLogger(NativeMetadata.class);
+
+    private static final String KEY = "overcast";
+
+    private static final int VIR_DOMAIN_METADATA_ELEMENT = 2;
+    private static final int VIR_DOMAIN_AFFECT_CURRENT = 0;
+    private static final int VIR_DOMAIN_AFFECT_CONFIG = 2;
+
+    private static volatile boolean available = true;
+    private static Field domainPointer;
+    private static volatile LibvirtMetadata libvirt;
+
+    interface LibvirtMetadata extends Library {
+        Pointer virDomainGetMetadata(PointerType domain, int type, String uri, int flags);
+
+        int virDomainSetMetadata(PointerType domain, int type, String metadata, String key, String uri, int flags);
+
+        void virFree(PointerByReference ptr);
+    }
+
+    private NativeMetadata() {
+    }
+
+    private static synchronized boolean init() {
+        if (libvirt == null && available) {
+            try {
+                domainPointer = Domain.class.getDeclaredField("VDP");
+                domainPointer.setAccessible(true);
+                libvirt = (LibvirtMetadata) Native.loadLibrary("virt", LibvirtMetadata.class);
+            } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+                disable(e);
+            }
+        }
+        return available;
+    }
+
+    private static void disable(Throwable reason) {
+        logger.info("Libvirt domain metadata calls not available, using the domain XML for metadata ({})", reason.toString());
+        available = false;
+    }
+
+    private static PointerType pointer(Domain domain) throws IllegalAccessException {
+        return (PointerType) domainPointer.get(domain);
+    }
+
+    /**
+     * Read the <code>overcast_metadata</code> element of a domain.
+     *
+     * @return the element as XML or <code>null</code> when the domain has none or the call is not available
+     */
+    static String get(Domain domain) {
+        if (!available || (libvirt == null && !init())) {
+            return null;
+        }
+        try {
+            PointerType vdp = pointer(domain);
+            if (vdp == null) {
+                return null;
+            }
+            Pointer xml = libvirt.virDomainGetMetadata(vdp, VIR_DOMAIN_METADATA_ELEMENT, METADATA_NS_V1, VIR_DOMAIN_AFFECT_CURRENT);
+            if (xml == null) {
+                return null;
+            }
+            try {
+                return xml.getString(0);
+            } finally {
+                libvirt.virFree(new PointerByReference(xml));
+            }
+        } catch (IllegalAccessException | LinkageError e) {
+            disable(e);
+            return null;
+        }
+    }
+
+    /**
+     * Replace the <code>overcast_metadata</code> element in the persistent definition of a domain.
+     *
+     * @param ocMetadata the <code>overcast_metadata</code> element
+     * @return <code>true</code> if the metadata was set, <code>false</code> if the domain XML has to be used instead
+     */
+    static boolean set(Domain domain, Element ocMetadata) throws IOException {
+        if (!available || (libvirt == null && !init())) {
+            return false;
+        }
+        try {
+            PointerType vdp = pointer(domain);
+            if (vdp == null) {
+                return false;
+            }
+            String xml = JDomUtil.elementToString(ocMetadata.clone(), Format.getRawFormat());
+            if (libvirt.virDomainSetMetadata(vdp, VIR_DOMAIN_METADATA_ELEMENT, xml, KEY, METADATA_NS_V1, VIR_DOMAIN_AFFECT_CONFIG) != 0) {
+                logger.debug("Unable to set metadata through libvirt, using the domain XML");
+                return false;
+            }
+            return true;
+        } catch (IllegalAccessException | LinkageError e) {
+            disable(e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overcast.util.DaemonThreadFactory;
+
+import static com.xebialabs.overcast.Preconditions.checkArgument;
+import static com.xebialabs.overcast.support.libvirt.JDomUtil.getElementText;
+
+/**
+ * A lease on provisioning a cached domain that is shared by all processes using the same hypervisor.
+ * <p>The lease is a placeholder domain that is defined but never started. Its name is derived from the lease key, so
+ * defining it fails while another process holds the lease. The holder keeps moving the expiry of the lease forward,
+ * when it dies the lease expires and is removed by the next process that tries to acquire it.
+ * <pre>
+ * &lt;metadata&gt;
+ *   &lt;overcast_lease xmlns=&quot;http://www.xebialabs.com/overcast/lease/v1&quot;&gt;
+ *     &lt;holder&gt;build-agent-3:12345&lt;/holder&gt;
+ *     &lt;expires&gt;1633024800000&lt;/expires&gt;
+ *   &lt;/overcast_lease&gt;
+ * &lt;/metadata&gt;
+ * </pre>
+ */
+public final class ProvisioningLease implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ProvisioningLease.class);
+
+    public static final String LEASE_NS_V1 = "http://www.xebialabs.com/overcast/lease/v1";
+    public static final String LEASE_DOMAIN_PREFIX = "overcast-lease-";
+    static final String OVERCAST_LEASE = "overcast_lease";
+    static final String HOLDER = "holder";
+    static final String EXPIRES = "expires";
+
+    private static final String HOLDER_NAME = ManagementFactory.getRuntimeMXBean().getName().replace('@', ':');
+
+    private static final ScheduledExecutorService renewals = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("overcast-libvirt-lease"));
+
+    private final Connect libvirt;
+    private final String name;
+    private final String uuid;
+    private final String domainType;
+    private final long ttlMillis;
+    private ScheduledFuture<?> renewal;
+    private boolean closed;
+
+    private ProvisioningLease(Connect libvirt, String name, String uuid, String domainType, long ttlMillis) {
+        this.libvirt = libvirt;
+        this.name = name;
+        this.uuid = uuid;
+        this.domainType = domainType;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** The name of the lease domain for a key, the same in every process. */
+    public static String leaseName(String... key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : key) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder name = new StringBuilder(LEASE_DOMAIN_PREFIX);
+            byte[] hash = digest.digest();
+            for (int i = 0; i < 16; i++) {
+                name.append(String.format("%02x", hash[i]));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Try to acquire the lease. When an expired lease is found it is removed, so the next attempt can succeed.
+     *
+     * @param domainType the libvirt domain type of the placeholder domain, e.g. <code>kvm</code>
+     * @return the lease or <code>null</code> if another process holds it.
+     */
+    public static ProvisioningLease tryAcquire(Connect libvirt, String name, String domainType, long ttlMillis) {
+        checkArgument(ttlMillis > 0, "ttlMillis must be positive");
+        ProvisioningLease lease = new ProvisioningLease(libvirt, name, UUID.randomUUID().toString(), domainType, ttlMillis);
+        try {
+            libvirt.domainDefineXML(lease.render());
+        } catch (LibvirtException e) {
+            logger.debug("Unable to define lease domain '{}'", name, e);
+            removeIfExpired(libvirt, name);
+            return null;
+        }
+        logger.info("Acquired provisioning lease '{}'", name);
+        long interval = Math.max(1, ttlMillis / 3);
+        synchronized (lease) {
+            lease.renewal = renewals.scheduleWithFixedDelay(lease::renew, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        return lease;
+    }
+
+    private static void removeIfExpired(Connect libvirt, String name) {
+        Domain domain;
+        try {
+            domain = libvirt.domainLookupByName(name);
+        } catch (LibvirtException e) {
+            // released in the meantime
+            return;
+        }
+        String holder;
+        long expires;
+        try {
+            Element lease = LibvirtUtil.loadDomainXml(domain).getRootElement().getChild(Metadata.METADATA);
+            Namespace ns = Namespace.getNamespace(LEASE_NS_V1);
+            lease = lease == null ? null : lease.getChild(OVERCAST_LEASE, ns);
+            holder = getElementText(lease, HOLDER, ns);
+            expires = Long.parseLong(getElementText(lease, EXPIRES, ns));
+        } catch (IllegalArgumentException | LibvirtRuntimeException e) {
+            // a domain by that name which is not a lease or has gone, never remove it
+            logger.warn("Unable to read provisioning lease '{}' ({})", name, e.getMessage());
+            return;
+        }
+        if (expires > System.currentTimeMillis()) {
+            logger.debug("Provisioning lease '{}' is held by {}", name, holder);
+            return;
+        }
+        logger.warn("Provisioning lease '{}' held by {} has expired, removing it", name, holder);
+        try {
+            // by UUID, the lease may have been replaced by a live one in the meantime
+            libvirt.domainLookupByUUIDString(domain.getUUIDString()).undefine();
+        } catch (LibvirtException e) {
+            logger.debug("Unable to remove expired lease '{}'", name, e);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private String render() {
+        return String.format("<domain type='%s'>"
+                + "<name>%s</name>"
+                + "<uuid>%s</uuid>"
+                + "<memory unit='KiB'>1024</memory>"
+                + "<os><type>hvm</type></os>"
+                + "<metadata><%s xmlns='%s'><%s>%s</%s><%s>%d</%s></%s></metadata>"
+                + "</domain>",
+            domainType, name, uuid,
+            OVERCAST_LEASE, LEASE_NS_V1,
+            HOLDER, HOLDER_NAME, HOLDER, EXPIRES, System.currentTimeMillis() + ttlMillis, EXPIRES, OVERCAST_LEASE);
+    }
+
+    private synchronized void renew() {
+        if (closed) {
+            return;
+        }
+        try {
+            // redefining with the same name and UUID only updates the lease domain
+            libvirt.domainDefineXML(render());
+            logger.trace("Renewed provisioning lease '{}'", name);
+        } catch (LibvirtException e) {
+            logger.warn("Unable to renew provisioning lease '{}'", name, e);
+        }
+    }
+
+    /** Give up the lease, waiting processes will find the provisioned domain. */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (renewal != null) {
+            renewal.cancel(false);
+        }
+        try {
+            libvirt.domainLookupByUUIDString(uuid).undefine();
+            logger.info("Released provisioning lease '{}'", name);
+        } catch (LibvirtException e) {
+            logger.warn("Unable to release provisioning lease '{}', it will expire", name, e);
+        }
+    }
+}
@@ -15,6 +15,9 @@
  */
 package com.xebialabs.overcast.support.libvirt;
 
+import com.xebialabs.overcast.util.Backoff;
+import com.xebialabs.overcast.util.RetryCommand;
+import com.xebialabs.overcast.util.RetryException;
 import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.OverthereConnection;
 import com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler;
@@ -24,6 +27,8 @@ import org.slf4j.LoggerFactory;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.Objects;
 
 import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
 import static com.xebialabs.overcast.OvercastProperties.getRequiredOvercastProperty;
@@ -73,38 +78,33 @@ public class SshIpLookupStrategy implements IpLookupStrategy {
         log.info("Will use command '{}' to detect IP", cmdLine);
 
         try (OverthereConnection connection = overthereConnectionFromURI(url)) {
-            int seconds = timeout;
-            while (seconds > 0) {
-                CapturingOverthereExecutionOutputHandler outputHandler = capturingHandler();
-                CapturingOverthereExecutionOutputHandler errorOutputHandler = capturingHandler();
-                connection.execute(outputHandler, errorOutputHandler, cmdLine);
-                if (!errorOutputHandler.getOutputLines().isEmpty()) {
-                    throw new RuntimeException("Had stderror: " + errorOutputHandler.getOutput());
-                }
-                if (outputHandler.getOutputLines().isEmpty()) {
-                    sleep(1);
-                    seconds--;
-                    log.debug("No IP found yet, will try for {} seconds", seconds);
-                    continue;
-                }
-                String line = outputHandler.getOutputLines().get(0);
-                log.debug("Found IP={} for MAC={}", line, mac);
-                return outputHandler.getOutputLines().get(0);
-            }
+            String ip = new RetryCommand<String>()
+                .withTimeout(Duration.ofSeconds(timeout))
+                .withBackoff(Backoff.exponential(Duration.ofMillis(100), Duration.ofSeconds(1)))
+                .retryIf(e -> false)
+                .until(Objects::nonNull)
+                .run(() -> {
+                    CapturingOverthereExecutionOutputHandler outputHandler = capturingHandler();
+                    CapturingOverthereExecutionOutputHandler errorOutputHandler = capturingHandler();
+                    connection.execute(outputHandler, errorOutputHandler, cmdLine);
+                    if (!errorOutputHandler.getOutputLines().isEmpty()) {
+                        throw new RuntimeException("Had stderror: " + errorOutputHandler.getOutput());
+                    }
+                    if (outputHandler.getOutputLines().isEmpty()) {
+                        log.debug("No IP found yet for MAC={}", mac);
+                        return null;
+                    }
+                    return outputHandler.getOutputLines().get(0);
+                });
+            log.debug("Found IP={} for MAC={}", ip, mac);
+            return ip;
+        } catch (RetryException e) {
+            String message = String.format("No IP found for MAC '%s' on host '%s'", mac, url.getHost());
+            throw new IpNotFoundException(message);
         } catch (RuntimeException e) {
             String message = String.format("Error looking up MAC '%s' on host '%s'", mac, url.getHost());
             log.error(message, e);
             throw new IpLookupException(message, e);
         }
-        String message = String.format("No IP found for MAC '%s' on host '%s'", mac, url.getHost());
-        throw new IpNotFoundException(message);
-    }
-
-    private static void sleep(final int seconds) {
-        try {
-            Thread.sleep(seconds * 1000);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
     }
 }
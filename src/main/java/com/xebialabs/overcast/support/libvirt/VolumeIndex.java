@@ -0,0 +1,165 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.libvirt.StoragePool;
+import org.libvirt.StorageVol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process index of the storage volumes of a libvirt connection by path.
+ * <p>A volume is first looked up directly by its path. Only when libvirt does not know the path (for instance because
+ * the pool has not been refreshed) the index is used, which is built by listing all pools once. Entries are checked
+ * when they are used and the index is rebuilt when a path is not found. Volumes created and deleted by Overcast are
+ * added and removed as they go.
+ */
+public final class VolumeIndex {
+    private static final Logger logger = LoggerFactory.getLogger(VolumeIndex.class);
+
+    private static final Map<Connect, VolumeIndex> indexes = new ConcurrentHashMap<>();
+
+    private final Connect libvirt;
+
+    // volumes by path
+    private final Map<String, IndexedVolume> byPath = new HashMap<>();
+
+    private static class IndexedVolume {
+        private final String pool;
+        private final String name;
+
+        private IndexedVolume(String pool, String name) {
+            this.pool = pool;
+            this.name = name;
+        }
+    }
+
+    private VolumeIndex(Connect libvirt) {
+        this.libvirt = libvirt;
+    }
+
+    public static VolumeIndex forConnection(Connect libvirt) {
+        return indexes.computeIfAbsent(libvirt, VolumeIndex::new);
+    }
+
+    /** Record a newly created volume, if an index exists for the connection. */
+    public static void added(Connect libvirt, StorageVol volume) throws LibvirtException {
+        VolumeIndex index = indexes.get(libvirt);
+        if (index != null) {
+            String pool = volume.storagePoolLookupByVolume().getName();
+            index.add(volume.getPath(), new IndexedVolume(pool, volume.getName()));
+        }
+    }
+
+    /** Forget a deleted volume, if an index exists for the connection. */
+    public static void removed(Connect libvirt, String path) {
+        VolumeIndex index = indexes.get(libvirt);
+        if (index != null) {
+            index.remove(path);
+        }
+    }
+
+    /** Forget the index of a connection that is about to be closed. */
+    public static void release(Connect libvirt) {
+        indexes.remove(libvirt);
+    }
+
+    /**
+     * Find the volume with the given path.
+     *
+     * @return the volume or <code>null</code> if there is none.
+     */
+    public StorageVol findVolume(String path) throws LibvirtException {
+        StorageVol direct = lookupByPath(path);
+        if (direct != null) {
+            return direct;
+        }
+        synchronized (this) {
+            StorageVol vol = lookupIndexed(path);
+            if (vol == null) {
+                rebuild();
+                vol = lookupIndexed(path);
+            }
+            return vol;
+        }
+    }
+
+    /**
+     * Find the pool containing the volume with the given path.
+     *
+     * @return the pool or <code>null</code> if there is none.
+     */
+    public StoragePool findStoragePool(String path) throws LibvirtException {
+        StorageVol vol = findVolume(path);
+        return vol == null ? null : vol.storagePoolLookupByVolume();
+    }
+
+    private StorageVol lookupByPath(String path) {
+        try {
+            return libvirt.storageVolLookupByPath(path);
+        } catch (LibvirtException e) {
+            logger.debug("No volume with path '{}' known to libvirt ({})", path, e.getMessage());
+            return null;
+        }
+    }
+
+    private StorageVol lookupIndexed(String path) {
+        IndexedVolume iv = byPath.get(path);
+        if (iv == null) {
+            return null;
+        }
+        try {
+            StorageVol vol = libvirt.storagePoolLookupByName(iv.pool).storageVolLookupByName(iv.name);
+            if (vol != null) {
+                return vol;
+            }
+        } catch (LibvirtException e) {
+            logger.debug("Volume '{}' in pool '{}' has disappeared", iv.name, iv.pool, e);
+        }
+        byPath.remove(path);
+        return null;
+    }
+
+    private void rebuild() throws LibvirtException {
+        byPath.clear();
+        for (String poolName : libvirt.listStoragePools()) {
+            StoragePool pool = libvirt.storagePoolLookupByName(poolName);
+            for (String name : pool.listVolumes()) {
+                try {
+                    byPath.put(pool.storageVolLookupByName(name).getPath(), new IndexedVolume(poolName, name));
+                } catch (LibvirtException e) {
+                    // volume may have been deleted in the meantime
+                    logger.debug("Unable to index volume '{}' in pool '{}'", name, poolName, e);
+                }
+            }
+        }
+        logger.debug("Indexed {} volumes", byPath.size());
+    }
+
+    private synchronized void add(String path, IndexedVolume volume) {
+        byPath.put(path, volume);
+    }
+
+    private synchronized void remove(String path) {
+        byPath.remove(path);
+    }
+}
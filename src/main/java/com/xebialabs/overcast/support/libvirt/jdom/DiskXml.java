@@ -36,9 +36,10 @@ import com.xebialabs.overcast.support.libvirt.LibvirtRuntimeException;
 import com.xebialabs.overcast.support.libvirt.LibvirtUtil;
 
 public final class DiskXml {
-    private static final String XPATH_DISK_DEV = "//target/@dev";
-    private static final String XPATH_DISK_FILE = "//source/@file";
-    private static final String XPATH_DISK_TYPE = "//driver[@name='qemu']/@type";
+    // relative to the disk element
+    private static final String XPATH_DISK_DEV = "target/@dev";
+    private static final String XPATH_DISK_FILE = "source/@file";
+    private static final String XPATH_DISK_TYPE = "driver[@name='qemu']/@type";
     private static final String XPATH_DISK = "/domain/devices/disk[@device='disk']";
 
     private DiskXml() {
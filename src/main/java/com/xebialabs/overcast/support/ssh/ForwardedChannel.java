@@ -0,0 +1,60 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.ssh;
+
+import java.io.IOException;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.Message;
+import net.schmizz.sshj.common.SSHException;
+import net.schmizz.sshj.common.SSHPacket;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.DirectConnection;
+import net.schmizz.sshj.transport.TransportException;
+
+/**
+ * A direct-tcpip channel that signals its {@link ForwardingEngine} worker after sshj handled a message for it, so data,
+ * window adjustments, EOF and close are picked up without polling the channel.
+ */
+class ForwardedChannel extends DirectConnection {
+    private final Runnable onEvent;
+
+    private ForwardedChannel(SSHClient client, String remoteHost, int remotePort, Runnable onEvent) {
+        super(client.getConnection(), remoteHost, remotePort);
+        this.onEvent = onEvent;
+    }
+
+    static DirectConnection open(SSHClient client, String remoteHost, int remotePort, Runnable onEvent) throws IOException {
+        ForwardedChannel channel = new ForwardedChannel(client, remoteHost, remotePort, onEvent);
+        channel.open();
+        return channel;
+    }
+
+    @Override
+    public void handle(Message msg, SSHPacket buf) throws ConnectionException, TransportException {
+        try {
+            super.handle(msg, buf);
+        } finally {
+            onEvent.run();
+        }
+    }
+
+    @Override
+    public void notifyError(SSHException error) {
+        super.notifyError(error);
+        onEvent.run();
+    }
+}
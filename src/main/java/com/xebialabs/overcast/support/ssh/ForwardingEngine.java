@@ -0,0 +1,420 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.ssh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.channel.direct.DirectConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overcast.util.DaemonThreadFactory;
+
+/**
+ * Forwards local ports through SSH connections using a fixed number of selector threads, no matter how many tunnels
+ * and connections there are.
+ * <p>Local sockets are non-blocking channels read and written with direct buffers. The SSH side only offers streams,
+ * so every SSH channel wakes the selector thread of its connection when sshj has handled data, a window adjustment,
+ * EOF or close for it. Only as much local data as the remote window of the channel allows is written to it, the rest
+ * waits in the buffer of the connection, which stops reading from its local socket until the window grows. Opening
+ * the SSH channel for a new connection takes a round trip, which is done on a small pool of connector threads.
+ */
+public final class ForwardingEngine {
+    private static final Logger logger = LoggerFactory.getLogger(ForwardingEngine.class);
+
+    public static final int SELECTOR_THREADS = 2;
+    public static final int CONNECTOR_THREADS = 4;
+    public static final int BUFFER_SIZE = 32 * 1024;
+
+    private static ForwardingEngine shared;
+
+    private final Worker[] workers;
+    private final ExecutorService connector;
+    private final ChannelOpener opener;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final List<Tunnel> tunnels = new CopyOnWriteArrayList<>();
+
+    /** Opens the SSH channel of a forwarded connection, running onEvent whenever there is something to pick up. */
+    interface ChannelOpener {
+        DirectConnection open(SSHClient client, String remoteHost, int remotePort, Runnable onEvent) throws IOException;
+    }
+
+    ForwardingEngine(int selectorThreads, int connectorThreads) throws IOException {
+        this(selectorThreads, connectorThreads, ForwardedChannel::open);
+    }
+
+    ForwardingEngine(int selectorThreads, int connectorThreads, ChannelOpener opener) throws IOException {
+        this.opener = opener;
+        DaemonThreadFactory selectorThreadFactory = new DaemonThreadFactory("overcast-ssh-selector");
+        workers = new Worker[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            workers[i] = new Worker(Selector.open());
+            selectorThreadFactory.newThread(workers[i]).start();
+        }
+        connector = Executors.newFixedThreadPool(connectorThreads, new DaemonThreadFactory("overcast-ssh-connector"));
+    }
+
+    /** The engine shared by all tunnels of the process. */
+    public static synchronized ForwardingEngine shared() {
+        if (shared == null) {
+            try {
+                shared = new ForwardingEngine(SELECTOR_THREADS, CONNECTOR_THREADS);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot start SSH forwarding engine", e);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Start forwarding connections to local to remoteHost:remotePort as seen from the SSH server client is connected
+     * to. Use port 0 in local to forward an ephemeral port, see {@link Tunnel#getLocalPort()}.
+     */
+    public Tunnel open(String name, SSHClient client, InetSocketAddress local, String remoteHost, int remotePort) throws IOException {
+        return open(name, () -> client, local, remoteHost, remotePort);
+    }
+
+    /**
+     * Like {@link #open(String, SSHClient, InetSocketAddress, String, int)}, looking up the SSH connection for every
+     * forwarded connection so a session that was replaced after it was lost is picked up.
+     */
+    public Tunnel open(String name, SshSession session, InetSocketAddress local, String remoteHost, int remotePort) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(local);
+            server.configureBlocking(false);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        Tunnel tunnel = new Tunnel(this, name, session, server, remoteHost, remotePort);
+        tunnels.add(tunnel);
+        Worker worker = workers[0];
+        worker.execute(() -> {
+            try {
+                server.register(worker.selector, SelectionKey.OP_ACCEPT, tunnel);
+            } catch (IOException e) {
+                logger.warn("Cannot accept connections for {}", tunnel, e);
+                tunnel.close();
+            }
+        });
+        logger.info("Forwarding {}", tunnel);
+        return tunnel;
+    }
+
+    /** The tunnels that are open. */
+    public List<Tunnel> getTunnels() {
+        return new ArrayList<>(tunnels);
+    }
+
+    void close(Tunnel tunnel) {
+        tunnels.remove(tunnel);
+        logger.info("Closing {} ({})", tunnel, tunnel.getStats());
+        closeQuietly(tunnel.getServer());
+        // connections of the tunnel are closed by their workers
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+    }
+
+    private Worker nextWorker() {
+        return workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+    }
+
+    private void accept(Tunnel tunnel) throws IOException {
+        SocketChannel local;
+        while ((local = tunnel.getServer().accept()) != null) {
+            local.configureBlocking(false);
+            local.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            tunnel.getStats().activeConnections.incrementAndGet();
+            SocketChannel accepted = local;
+            long start = System.currentTimeMillis();
+            connector.execute(() -> connect(tunnel, accepted, start));
+        }
+    }
+
+    private void connect(Tunnel tunnel, SocketChannel local, long start) {
+        Worker worker = nextWorker();
+        // set until the worker has pumped the connection, data may arrive before it is registered
+        AtomicBoolean signalled = new AtomicBoolean(true);
+        DirectConnection remote;
+        try {
+            remote = opener.open(tunnel.getSession().get(), tunnel.getRemoteHost(), tunnel.getRemotePort(), () -> {
+                signalled.set(true);
+                worker.selector.wakeup();
+            });
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Cannot connect {} to {}:{}", tunnel, tunnel.getRemoteHost(), tunnel.getRemotePort(), e);
+            tunnel.getStats().connectFailures.incrementAndGet();
+            tunnel.getStats().activeConnections.decrementAndGet();
+            closeQuietly(local);
+            return;
+        }
+        tunnel.getStats().recordConnect(System.currentTimeMillis() - start);
+        worker.execute(() -> worker.register(new Connection(tunnel, local, remote, signalled)));
+    }
+
+    private void closeRemote(DirectConnection remote) {
+        // closing waits for the server to confirm, keep that off the selector threads
+        connector.execute(() -> {
+            try {
+                remote.close();
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Ignoring exception while closing SSH channel", e);
+            }
+        });
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            logger.debug("Ignoring exception while closing forwarding socket", e);
+        }
+    }
+
+    /** One forwarded connection, only touched by the worker it is registered with. */
+    private final class Connection {
+        private final Tunnel tunnel;
+        private final SocketChannel local;
+        private final DirectConnection remote;
+        private final InputStream remoteIn;
+        private final OutputStream remoteOut;
+        private final AtomicBoolean signalled;
+        // kept ready for filling, it holds the data that did not fit in the remote window yet
+        private final ByteBuffer fromLocal = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        // kept ready for reading, it holds the data that could not be written to the local socket yet
+        private final ByteBuffer toLocal = ByteBuffer.allocateDirect(BUFFER_SIZE).limit(0);
+        private final byte[] transfer = new byte[BUFFER_SIZE];
+        private SelectionKey key;
+        private boolean localEof;
+        private boolean remoteEof;
+        private boolean remoteOutClosed;
+        private boolean failed;
+
+        private Connection(Tunnel tunnel, SocketChannel local, DirectConnection remote, AtomicBoolean signalled) {
+            this.tunnel = tunnel;
+            this.local = local;
+            this.remote = remote;
+            this.remoteIn = remote.getInputStream();
+            this.remoteOut = remote.getOutputStream();
+            this.signalled = signalled;
+        }
+
+        private void readLocal() throws IOException {
+            if (local.read(fromLocal) == -1) {
+                localEof = true;
+            }
+            writeRemote();
+        }
+
+        /**
+         * Write what the remote window allows, so the write never waits for the window to grow. Reading from the local
+         * socket stops while data is left over and resumes when a window adjustment let it all through.
+         */
+        private void writeRemote() throws IOException {
+            fromLocal.flip();
+            int n = (int) Math.min(fromLocal.remaining(), remote.getRemoteWinSize());
+            if (n > 0) {
+                fromLocal.get(transfer, 0, n);
+                remoteOut.write(transfer, 0, n);
+                remoteOut.flush();
+                tunnel.getStats().bytesOut.addAndGet(n);
+            }
+            boolean pending = fromLocal.hasRemaining();
+            fromLocal.compact();
+            if (localEof && !pending && !remoteOutClosed) {
+                remoteOutClosed = true;
+                remoteOut.close();
+            }
+            int ops = key.interestOps();
+            key.interestOps(pending || localEof ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+        }
+
+        /**
+         * Move the data sshj received for the channel to the local socket until either runs dry, and write data left
+         * over in the remote window.
+         */
+        private void pump() throws IOException {
+            if (fromLocal.position() > 0) {
+                writeRemote();
+            }
+            while (!remoteEof) {
+                if (toLocal.hasRemaining()) {
+                    local.write(toLocal);
+                    if (toLocal.hasRemaining()) {
+                        // the local socket is full, the worker is signalled when it is writable again
+                        break;
+                    }
+                }
+                // look at EOF first, data that arrived before it is available then
+                boolean eof = remote.isEOF() || !remote.isOpen();
+                int available = remoteIn.available();
+                if (available > 0) {
+                    int n = remoteIn.read(transfer, 0, Math.min(available, BUFFER_SIZE));
+                    toLocal.clear();
+                    toLocal.put(transfer, 0, n);
+                    toLocal.flip();
+                    tunnel.getStats().bytesIn.addAndGet(n);
+                } else {
+                    if (eof) {
+                        remoteEof = true;
+                        local.shutdownOutput();
+                    }
+                    break;
+                }
+            }
+            int ops = key.interestOps();
+            key.interestOps(toLocal.hasRemaining() ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+        }
+
+        private boolean isDone() {
+            // data from the local socket still waiting for the remote window keeps the connection open
+            return tunnel.isClosed() || failed || (remoteOutClosed && remoteEof) || (remoteEof && !remote.isOpen());
+        }
+
+        private void close() {
+            key.cancel();
+            closeQuietly(local);
+            closeRemote(remote);
+            tunnel.getStats().activeConnections.decrementAndGet();
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final List<Connection> connections = new ArrayList<>();
+
+        private Worker(Selector selector) {
+            this.selector = selector;
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void register(Connection connection) {
+            try {
+                connection.key = connection.local.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+            } catch (IOException e) {
+                logger.warn("Cannot register connection of {}", connection.tunnel, e);
+                closeQuietly(connection.local);
+                closeRemote(connection.remote);
+                connection.tunnel.getStats().activeConnections.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    // SSH channels and closed tunnels wake the selector, nothing has to be polled
+                    selector.select();
+
+                    processSelectedKeys();
+                    pumpConnections();
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Unexpected failure in SSH forwarding engine", e);
+                }
+            }
+        }
+
+        private void processSelectedKeys() {
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.attachment() instanceof Tunnel) {
+                    Tunnel tunnel = (Tunnel) key.attachment();
+                    try {
+                        accept(tunnel);
+                    } catch (IOException e) {
+                        if (!tunnel.isClosed()) {
+                            logger.warn("Cannot accept connection for {}", tunnel, e);
+                        }
+                    }
+                } else {
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        try {
+                            connection.readLocal();
+                        } catch (IOException e) {
+                            logger.debug("Connection of {} failed", connection.tunnel, e);
+                            connection.failed = true;
+                        }
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        // the local socket takes more data, write it when pumping the connections
+                        connection.signalled.set(true);
+                    }
+                }
+            }
+        }
+
+        private void pumpConnections() {
+            Iterator<Connection> it = connections.iterator();
+            while (it.hasNext()) {
+                Connection connection = it.next();
+                if (!connection.isDone() && connection.signalled.getAndSet(false)) {
+                    try {
+                        connection.pump();
+                    } catch (IOException e) {
+                        logger.debug("Connection of {} failed", connection.tunnel, e);
+                        connection.failed = true;
+                    }
+                }
+                if (connection.isDone()) {
+                    it.remove();
+                    connection.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.ssh;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.xebialabs.overcast.Preconditions.checkArgument;
+
+/**
+ * How to connect and authenticate to an SSH server. Sessions are shared by {@link SshSessionRegistry} per host, port
+ * and user, the other settings of the first user of a session apply.
+ */
+public class SshSessionConfig {
+    public static final int DEFAULT_PORT = 22;
+    public static final int DEFAULT_KEEPALIVE_INTERVAL_SECONDS = 30;
+
+    private final String host;
+    private final int port;
+    private final String username;
+
+    private String password;
+    private String privateKeyFile;
+    private String passphrase;
+    private List<String> ciphers = new ArrayList<>();
+    private boolean compression;
+    private int keepAliveIntervalSeconds = DEFAULT_KEEPALIVE_INTERVAL_SECONDS;
+
+    public SshSessionConfig(String host, int port, String username) {
+        checkArgument(host != null, "host cannot be null");
+        checkArgument(username != null, "username cannot be null");
+        this.host = host;
+        this.port = port;
+        this.username = username;
+    }
+
+    /** The key under which the session is shared. */
+    String getKey() {
+        return username + "@" + host + ":" + port;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    public String getPrivateKeyFile() {
+        return privateKeyFile;
+    }
+
+    /** Authenticate with the key in privateKeyFile instead of the password. */
+    public void setPrivateKeyFile(String privateKeyFile) {
+        this.privateKeyFile = privateKeyFile;
+    }
+
+    public String getPassphrase() {
+        return passphrase;
+    }
+
+    public void setPassphrase(String passphrase) {
+        this.passphrase = passphrase;
+    }
+
+    public List<String> getCiphers() {
+        return ciphers;
+    }
+
+    /** Restrict the ciphers that may be negotiated, in order of preference. An empty list allows all ciphers. */
+    public void setCiphers(List<String> ciphers) {
+        this.ciphers = ciphers;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public int getKeepAliveIntervalSeconds() {
+        return keepAliveIntervalSeconds;
+    }
+
+    /** Seconds between keepalive messages, 0 disables them. */
+    public void setKeepAliveIntervalSeconds(int keepAliveIntervalSeconds) {
+        this.keepAliveIntervalSeconds = keepAliveIntervalSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+}
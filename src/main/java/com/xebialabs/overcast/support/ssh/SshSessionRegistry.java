@@ -0,0 +1,170 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.ssh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.schmizz.keepalive.KeepAliveProvider;
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.Factory;
+import net.schmizz.sshj.transport.cipher.Cipher;
+import net.schmizz.sshj.transport.compression.DelayedZlibCompression;
+import net.schmizz.sshj.transport.compression.NoneCompression;
+import net.schmizz.sshj.transport.compression.ZlibCompression;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.xebialabs.overcast.Preconditions.checkArgument;
+import static com.xebialabs.overcast.Preconditions.checkState;
+
+/**
+ * Reference counted, authenticated SSH sessions, one per host, port and user, shared by all tunnels to that server.
+ * <p>A session is reconnected when it is acquired or used by a tunnel after the connection was lost, and disconnected
+ * when the last user releases it. Keepalives are sent so an idle session is not dropped by the server or a firewall in
+ * between.
+ */
+public final class SshSessionRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(SshSessionRegistry.class);
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    interface ClientFactory {
+        SSHClient create(SshSessionConfig config);
+    }
+
+    // replaced in tests
+    static ClientFactory clientFactory = SshSessionRegistry::newClient;
+
+    private static class Entry {
+        private SSHClient client;
+        private int refs;
+    }
+
+    private SshSessionRegistry() {
+    }
+
+    /** Get the session for config, connecting it if needed. Every call must be matched by {@link #release(SshSessionConfig)}. */
+    public static SSHClient acquire(SshSessionConfig config) throws IOException {
+        checkArgument(config.getPassword() != null || config.getPrivateKeyFile() != null, "Either a password or a private key is required for %s", config);
+        Entry e = entries.computeIfAbsent(config.getKey(), k -> new Entry());
+        synchronized (e) {
+            SSHClient client = connected(e, config);
+            e.refs++;
+            logger.debug("Acquired SSH session {} (refs={})", config, e.refs);
+            return client;
+        }
+    }
+
+    /**
+     * Get the current session for config, which must have been acquired, reconnecting it when the connection was lost.
+     * Tunnels use this for every new connection so they keep working after the session has been replaced.
+     */
+    public static SSHClient current(SshSessionConfig config) throws IOException {
+        Entry e = entries.get(config.getKey());
+        checkState(e != null, "SSH session %s was not acquired", config);
+        synchronized (e) {
+            checkState(e.refs > 0, "SSH session %s is no longer acquired", config);
+            return connected(e, config);
+        }
+    }
+
+    private static SSHClient connected(Entry e, SshSessionConfig config) throws IOException {
+        if (e.client == null || !e.client.isConnected() || !e.client.isAuthenticated()) {
+            if (e.client != null) {
+                logger.info("SSH session {} was lost, reconnecting", config);
+                disconnect(e.client);
+                e.client = null;
+            }
+            e.client = connect(config);
+        }
+        return e.client;
+    }
+
+    /** Release a session acquired with {@link #acquire(SshSessionConfig)}, disconnecting it when no longer used. */
+    public static void release(SshSessionConfig config) {
+        Entry e = entries.get(config.getKey());
+        checkState(e != null, "SSH session %s was not acquired", config);
+        synchronized (e) {
+            checkState(e.refs > 0, "SSH session %s was released more often than acquired", config);
+            e.refs--;
+            logger.debug("Released SSH session {} (refs={})", config, e.refs);
+            if (e.refs == 0 && e.client != null) {
+                logger.info("Disconnecting SSH session {}", config);
+                disconnect(e.client);
+                e.client = null;
+            }
+        }
+    }
+
+    private static SSHClient connect(SshSessionConfig config) throws IOException {
+        SSHClient client = clientFactory.create(config);
+        try {
+            logger.info("Opening SSH session {}", config);
+            client.connect(config.getHost(), config.getPort());
+            if (config.getPrivateKeyFile() != null) {
+                client.authPublickey(config.getUsername(), client.loadKeys(config.getPrivateKeyFile(), config.getPassphrase()));
+            } else {
+                client.authPassword(config.getUsername(), config.getPassword());
+            }
+            return client;
+        } catch (IOException | RuntimeException e) {
+            disconnect(client);
+            throw e;
+        }
+    }
+
+    /** Create a client for config. Keepalives and compression are configured up front, the connection uses them from the start. */
+    static SSHClient newClient(SshSessionConfig config) {
+        DefaultConfig sshConfig = new DefaultConfig();
+        sshConfig.setKeepAliveProvider(KeepAliveProvider.KEEP_ALIVE);
+        if (config.isCompression()) {
+            sshConfig.setCompressionFactories(Arrays.asList(
+                new DelayedZlibCompression.Factory(),
+                new ZlibCompression.Factory(),
+                new NoneCompression.Factory()));
+        }
+        if (!config.getCiphers().isEmpty()) {
+            List<Factory.Named<Cipher>> ciphers = new ArrayList<>();
+            for (String name : config.getCiphers()) {
+                Factory.Named<Cipher> cipher = Factory.Named.Util.get(sshConfig.getCipherFactories(), name);
+                checkArgument(cipher != null, "Unsupported cipher '%s' for %s", name, config);
+                ciphers.add(cipher);
+            }
+            sshConfig.setCipherFactories(ciphers);
+        }
+        SSHClient client = new SSHClient(sshConfig);
+        client.addHostKeyVerifier(new PromiscuousVerifier());
+        // the keepalive thread is only started on connect when the interval is set
+        client.getConnection().getKeepAlive().setKeepAliveInterval(config.getKeepAliveIntervalSeconds());
+        return client;
+    }
+
+    private static void disconnect(SSHClient client) {
+        try {
+            client.disconnect();
+        } catch (IOException e) {
+            logger.debug("Ignoring exception while disconnecting SSH session", e);
+        }
+    }
+}
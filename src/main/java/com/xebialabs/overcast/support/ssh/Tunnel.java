@@ -0,0 +1,93 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.ssh;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * A local port forwarded to a remote host and port through an SSH connection, served by a {@link ForwardingEngine}.
+ */
+public class Tunnel {
+    private final ForwardingEngine engine;
+    private final String name;
+    private final SshSession session;
+    private final ServerSocketChannel server;
+    private final String remoteHost;
+    private final int remotePort;
+    private final TunnelStats stats = new TunnelStats();
+    private volatile boolean closed;
+
+    Tunnel(ForwardingEngine engine, String name, SshSession session, ServerSocketChannel server, String remoteHost, int remotePort) {
+        this.engine = engine;
+        this.name = name;
+        this.session = session;
+        this.server = server;
+        this.remoteHost = remoteHost;
+        this.remotePort = remotePort;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** The port the tunnel accepts connections on, which is the port actually bound when port 0 was requested. */
+    public int getLocalPort() {
+        try {
+            return ((InetSocketAddress) server.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            throw new IllegalStateException("Tunnel " + name + " is closed", e);
+        }
+    }
+
+    public TunnelStats getStats() {
+        return stats;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** Stop accepting connections and close the connections of this tunnel. */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            engine.close(this);
+        }
+    }
+
+    SshSession getSession() {
+        return session;
+    }
+
+    ServerSocketChannel getServer() {
+        return server;
+    }
+
+    String getRemoteHost() {
+        return remoteHost;
+    }
+
+    int getRemotePort() {
+        return remotePort;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.ssh;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic and connection statistics of a {@link Tunnel}. Bytes in are bytes sent from the remote end to the local
+ * client, bytes out are sent from the local client to the remote end.
+ */
+public class TunnelStats {
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    final AtomicLong activeConnections = new AtomicLong();
+    final AtomicLong connections = new AtomicLong();
+    final AtomicLong connectFailures = new AtomicLong();
+    private final AtomicLong totalConnectMillis = new AtomicLong();
+    private final AtomicLong lastConnectMillis = new AtomicLong();
+
+    void recordConnect(long millis) {
+        connections.incrementAndGet();
+        totalConnectMillis.addAndGet(millis);
+        lastConnectMillis.set(millis);
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /** Number of accepted connections that have not been closed yet, including those still being connected. */
+    public long getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /** Number of connections for which the remote end was connected. */
+    public long getConnections() {
+        return connections.get();
+    }
+
+    public long getConnectFailures() {
+        return connectFailures.get();
+    }
+
+    public long getLastConnectMillis() {
+        return lastConnectMillis.get();
+    }
+
+    public long getAverageConnectMillis() {
+        long count = connections.get();
+        return count == 0 ? 0 : totalConnectMillis.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "TunnelStats{" +
+                "bytesIn=" + getBytesIn() +
+                ", bytesOut=" + getBytesOut() +
+                ", activeConnections=" + getActiveConnections() +
+                ", connections=" + getConnections() +
+                ", connectFailures=" + getConnectFailures() +
+                ", averageConnectMillis=" + getAverageConnectMillis() +
+                ", lastConnectMillis=" + getLastConnectMillis() +
+                '}';
+    }
+}
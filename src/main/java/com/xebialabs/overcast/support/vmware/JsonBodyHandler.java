@@ -25,6 +25,8 @@ import java.util.function.Supplier;
 
 public class JsonBodyHandler<W> implements HttpResponse.BodyHandler<Supplier<W>> {
 
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
     private final Class<W> wClass;
 
     public JsonBodyHandler(Class<W> wClass) {
@@ -36,6 +38,22 @@ public class JsonBodyHandler<W> implements HttpResponse.BodyHandler<Supplier<W>>
         return asJSON(wClass);
     }
 
+    /**
+     * A handler that parses the body once it has been received completely, so it never blocks the thread completing
+     * the response. Use this with {@link java.net.http.HttpClient#sendAsync}.
+     */
+    public static <W> HttpResponse.BodyHandler<W> ofJson(Class<W> targetType) {
+        return responseInfo -> HttpResponse.BodySubscribers.mapping(
+                HttpResponse.BodySubscribers.ofByteArray(),
+                bytes -> {
+                    try {
+                        return objectMapper.readValue(bytes, targetType);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
     private static <W> HttpResponse.BodySubscriber<Supplier<W>> asJSON(Class<W> targetType) {
         HttpResponse.BodySubscriber<InputStream> upstream = HttpResponse.BodySubscribers.ofInputStream();
 
@@ -47,7 +65,6 @@ public class JsonBodyHandler<W> implements HttpResponse.BodyHandler<Supplier<W>>
     private static <W> Supplier<W> toSupplierOfType(InputStream inputStream, Class<W> targetType) {
         return () -> {
             try (InputStream stream = inputStream) {
-                ObjectMapper objectMapper = new ObjectMapper();
                 return objectMapper.readValue(stream, targetType);
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
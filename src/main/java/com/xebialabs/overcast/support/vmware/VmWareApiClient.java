@@ -21,19 +21,35 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.text.MessageFormat;
 import java.time.Duration;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Supplier;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
+/**
+ * Client for the vSphere Automation REST API. Every call has a blocking and an asynchronous (<code>*Async</code>)
+ * variant. Clients with the same API host and TLS settings share one {@link HttpClient} and thereby its connections,
+ * so several hosts can clone VMs concurrently over the same connections. Requests made with a session that vCenter
+ * no longer accepts fail with a {@link VmWareSessionExpiredException}, a session that cannot be created fails with a
+ * {@link VmWareAuthenticationException}.
+ */
 public class VmWareApiClient {
 
+    private static final Map<List<Object>, HttpClient> httpClients = new ConcurrentHashMap<>();
+
     private final String apiHost;
     private final int connectionTimeout;
     private final HttpClient httpClient;
@@ -47,6 +63,8 @@ public class VmWareApiClient {
 
     private static final String DELETE_VM_URL_PATH = "api/vcenter/vm/{0}";
 
+    private static final String FIND_VM_URL_PATH = "api/vcenter/vm?names={0}";
+
     private static final String GET_POWER_URL_PATH = "api/vcenter/vm/{0}/power";
 
     private static final String GUEST_IDENTITY_URL_PATH = "api/vcenter/vm/{0}/guest/identity";
@@ -57,6 +75,8 @@ public class VmWareApiClient {
 
     private static final String SESSION_ID_HEADER = "vmware-api-session-id";
 
+    private static final int HTTP_UNAUTHORIZED = 401;
+
     private static final String START_POWER_URL_PATH = "api/vcenter/vm/{0}/power?action=start";
 
     private static final String STOP_POWER_URL_PATH = "api/vcenter/vm/{0}/power?action=stop";
@@ -71,10 +91,19 @@ public class VmWareApiClient {
         this.instantClone = instantClone;
         this.securityAlgorithm = securityAlgorithm;
         this.connectionTimeout = connectionTimeout;
-        this.httpClient = buildClient();
+        this.httpClient = httpClients.computeIfAbsent(
+                Arrays.asList(apiHost, ignoreBadCertificate, securityAlgorithm, connectionTimeout), k -> buildClient());
+    }
+
+    public String getApiHost() {
+        return apiHost;
     }
 
     public String createSession(String authHash) {
+        return await(createSessionAsync(authHash));
+    }
+
+    public CompletableFuture<String> createSessionAsync(String authHash) {
         HttpRequest request = HttpRequest.newBuilder()
                 .uri(toUri(apiHost, CREATE_SESSION_URL_PATH))
                 .header("Authorization", "Basic " + authHash)
@@ -83,73 +112,112 @@ public class VmWareApiClient {
                 .timeout(Duration.ofSeconds(connectionTimeout))
                 .build();
 
-        String body = send(request, HttpResponse.BodyHandlers.ofString())
-                .body();
+        return sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> {
+                    if (response.statusCode() / 100 != 2) {
+                        throw new VmWareAuthenticationException(String.format("Unable to create session on %s, status %d",
+                                apiHost, response.statusCode()));
+                    }
+                    return noQuotes(response.body());
+                });
+    }
+
+    public void deleteSession(String sessionId) {
+        await(deleteSessionAsync(sessionId));
+    }
 
-        return noQuotes(body);
+    public CompletableFuture<Void> deleteSessionAsync(String sessionId) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(toUri(apiHost, CREATE_SESSION_URL_PATH))
+                .header(SESSION_ID_HEADER, sessionId)
+                .DELETE()
+                .timeout(Duration.ofSeconds(connectionTimeout))
+                .build();
+        return sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenApply(response -> null);
     }
 
     public List<VMWareVM> listVMs(String sessionId) {
-        HttpRequest request = createGetRequest(sessionId, LIST_VM_URL_PATH);
+        return await(listVMsAsync(sessionId));
+    }
 
-        HttpResponse<Supplier<List>> response = send(request, new JsonBodyHandler<>(List.class));
-        List<Map<String, Object>> result = response.body().get();
+    public CompletableFuture<List<VMWareVM>> listVMsAsync(String sessionId) {
+        return listVMsAsync(sessionId, LIST_VM_URL_PATH);
+    }
 
-        return result
-                .stream()
-                .map(item ->
-                        new VMWareVM(
-                                Integer.parseInt(item.get("memory_size_MiB").toString()),
-                                item.get("vm").toString(),
-                                item.get("name").toString(),
-                                item.get("power_state").toString(),
-                                Integer.parseInt(item.get("cpu_count").toString())
-                        )
-                ).collect(Collectors.toUnmodifiableList());
+    /**
+     * Looks up a VM by name, letting vCenter do the filtering instead of listing all VMs.
+     */
+    public Optional<VMWareVM> findVmByName(String sessionId, String name) {
+        return await(findVmByNameAsync(sessionId, name));
+    }
+
+    public CompletableFuture<Optional<VMWareVM>> findVmByNameAsync(String sessionId, String name) {
+        String path = MessageFormat.format(FIND_VM_URL_PATH, URLEncoder.encode(name, StandardCharsets.UTF_8).replace("+", "%20"));
+        return listVMsAsync(sessionId, path)
+                .thenApply(vms -> vms.stream().filter(vm -> vm.getName().equals(name)).findFirst());
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<List<VMWareVM>> listVMsAsync(String sessionId, String relativeUrlPath) {
+        HttpRequest request = createGetRequest(sessionId, relativeUrlPath);
+
+        return sendAsync(request, JsonBodyHandler.ofJson(List.class))
+                .thenApply(response -> ((List<Map<String, Object>>) response.body())
+                        .stream()
+                        .map(item ->
+                                new VMWareVM(
+                                        Integer.parseInt(item.get("memory_size_MiB").toString()),
+                                        item.get("vm").toString(),
+                                        item.get("name").toString(),
+                                        item.get("power_state").toString(),
+                                        Integer.parseInt(item.get("cpu_count").toString())
+                                )
+                        ).collect(Collectors.toUnmodifiableList()));
     }
 
     public boolean isPowerVmOn(String sessionId, String vmId) {
-        HttpRequest request = createGetRequest(sessionId, MessageFormat.format(GET_POWER_URL_PATH, vmId));
+        return await(isPowerVmOnAsync(sessionId, vmId));
+    }
 
-        HttpResponse<Supplier<Map>> response = send(request, new JsonBodyHandler<>(Map.class));
-        Map<String, Object> result = response.body().get();
+    public CompletableFuture<Boolean> isPowerVmOnAsync(String sessionId, String vmId) {
+        HttpRequest request = createGetRequest(sessionId, MessageFormat.format(GET_POWER_URL_PATH, vmId));
 
-        return result.get("state").equals("POWERED_ON");
+        return sendAsync(request, JsonBodyHandler.ofJson(Map.class))
+                .thenApply(response -> response.body().get("state").equals("POWERED_ON"));
     }
 
     public void startPowerVm(String sessionId, String vmId) {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(toUri(apiHost, MessageFormat.format(START_POWER_URL_PATH, vmId)))
-                .header(SESSION_ID_HEADER, sessionId)
-                .POST(HttpRequest.BodyPublishers.ofString(""))
-                .timeout(Duration.ofSeconds(connectionTimeout))
-                .build();
+        await(startPowerVmAsync(sessionId, vmId));
+    }
 
-        send(request, HttpResponse.BodyHandlers.ofString());
+    public CompletableFuture<Void> startPowerVmAsync(String sessionId, String vmId) {
+        return postAsync(sessionId, MessageFormat.format(START_POWER_URL_PATH, vmId));
     }
 
     public void stopPowerVm(String sessionId, String vmId) {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(toUri(apiHost, MessageFormat.format(STOP_POWER_URL_PATH, vmId)))
-                .header(SESSION_ID_HEADER, sessionId)
-                .POST(HttpRequest.BodyPublishers.ofString(""))
-                .timeout(Duration.ofSeconds(connectionTimeout))
-                .build();
+        await(stopPowerVmAsync(sessionId, vmId));
+    }
 
-        send(request, HttpResponse.BodyHandlers.ofString());
+    public CompletableFuture<Void> stopPowerVmAsync(String sessionId, String vmId) {
+        return postAsync(sessionId, MessageFormat.format(STOP_POWER_URL_PATH, vmId));
     }
 
     public Map<String, Object> getGuestIdentity(String sessionId, String vmId) {
-        HttpRequest request = createGetRequest(sessionId, MessageFormat.format(GUEST_IDENTITY_URL_PATH, vmId));
-
-        HttpResponse<Supplier<Map>> response = send(request, new JsonBodyHandler<>(Map.class));
-        Map<String, Object> body = response.body().get();
+        return await(getGuestIdentityAsync(sessionId, vmId));
+    }
 
-        if (body.get("error_type") != null) {
-            throw new IllegalStateException("Service is not ready, error_type is " + body.get("error_type"));
-        }
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Map<String, Object>> getGuestIdentityAsync(String sessionId, String vmId) {
+        HttpRequest request = createGetRequest(sessionId, MessageFormat.format(GUEST_IDENTITY_URL_PATH, vmId));
 
-        return body;
+        return sendAsync(request, JsonBodyHandler.ofJson(Map.class))
+                .thenApply(response -> {
+                    Map<String, Object> body = response.body();
+                    if (body.get("error_type") != null) {
+                        throw new IllegalStateException("Service is not ready, error_type is " + body.get("error_type"));
+                    }
+                    return body;
+                });
     }
 
     private HttpRequest createGetRequest(String sessionId, String relativeUrlPath) {
@@ -161,44 +229,92 @@ public class VmWareApiClient {
                 .build();
     }
 
-    public String cloneVm(String sessionId, String vmBaseImage, String vmId) {
-        String clonedVmName = String.format("%s-%s", vmBaseImage, RandomStringUtils.randomAlphanumeric(8));
-
-        if (!isPowerVmOn(sessionId, vmId) && instantClone) {
-            throw new IllegalStateException(String.format("You can't instant clone from VM [%s] which is powered off", vmBaseImage));
-        }
-
+    private CompletableFuture<Void> postAsync(String sessionId, String relativeUrlPath) {
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(toUri(apiHost, instantClone ? INSTANT_CLONE_VM_URL_PATH : CLONE_VM_URL_PATH))
-                .header("Content-Type", "application/json")
+                .uri(toUri(apiHost, relativeUrlPath))
                 .header(SESSION_ID_HEADER, sessionId)
-                .POST(HttpRequest.BodyPublishers.ofString(
-                        String.format("{\"name\": \"%s\", \"source\": \"%s\"}", clonedVmName, vmId)))
+                .POST(HttpRequest.BodyPublishers.ofString(""))
                 .timeout(Duration.ofSeconds(connectionTimeout))
                 .build();
 
-        String body = send(request, HttpResponse.BodyHandlers.ofString()).body();
-        return noQuotes(body);
+        return sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenApply(response -> null);
+    }
+
+    public String cloneVm(String sessionId, String vmBaseImage, String vmId) {
+        return await(cloneVmAsync(sessionId, vmBaseImage, vmId));
+    }
+
+    public CompletableFuture<String> cloneVmAsync(String sessionId, String vmBaseImage, String vmId) {
+        String clonedVmName = String.format("%s-%s", vmBaseImage, RandomStringUtils.randomAlphanumeric(8));
+
+        CompletableFuture<Boolean> canClone = instantClone ? isPowerVmOnAsync(sessionId, vmId) : CompletableFuture.completedFuture(true);
+        return canClone.thenCompose(poweredOn -> {
+            if (!poweredOn) {
+                throw new IllegalStateException(String.format("You can't instant clone from VM [%s] which is powered off", vmBaseImage));
+            }
+
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(toUri(apiHost, instantClone ? INSTANT_CLONE_VM_URL_PATH : CLONE_VM_URL_PATH))
+                    .header("Content-Type", "application/json")
+                    .header(SESSION_ID_HEADER, sessionId)
+                    .POST(HttpRequest.BodyPublishers.ofString(
+                            String.format("{\"name\": \"%s\", \"source\": \"%s\"}", clonedVmName, vmId)))
+                    .timeout(Duration.ofSeconds(connectionTimeout))
+                    .build();
+
+            return sendAsync(request, HttpResponse.BodyHandlers.ofString());
+        }).thenApply(response -> noQuotes(response.body()));
     }
 
     public void deleteVm(String sessionId, String vmId) {
+        await(deleteVmAsync(sessionId, vmId));
+    }
+
+    public CompletableFuture<Void> deleteVmAsync(String sessionId, String vmId) {
         HttpRequest request = HttpRequest.newBuilder()
                 .uri(toUri(apiHost, MessageFormat.format(DELETE_VM_URL_PATH, vmId)))
                 .header(SESSION_ID_HEADER, sessionId)
                 .DELETE()
                 .timeout(Duration.ofSeconds(connectionTimeout))
                 .build();
-        send(request, HttpResponse.BodyHandlers.discarding());
+        return sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenApply(response -> null);
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler) {
+        if (request.headers().firstValue(SESSION_ID_HEADER).isEmpty()) {
+            return httpClient.sendAsync(request, responseBodyHandler);
+        }
+        // don't try to parse the error body of a rejected session
+        HttpResponse.BodyHandler<T> handler = responseInfo -> responseInfo.statusCode() == HTTP_UNAUTHORIZED
+                ? HttpResponse.BodySubscribers.replacing(null)
+                : responseBodyHandler.apply(responseInfo);
+        return httpClient.sendAsync(request, handler).thenApply(response -> {
+            if (response.statusCode() == HTTP_UNAUTHORIZED) {
+                throw new VmWareSessionExpiredException(String.format("Session rejected by %s for %s %s", apiHost, request.method(), request.uri()));
+            }
+            return response;
+        });
     }
 
-    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler) {
-        HttpResponse<T> response;
+    /**
+     * Waits for an asynchronous call, rethrowing failures the way the blocking calls always did.
+     */
+    public static <T> T await(CompletableFuture<T> future) {
         try {
-            response = httpClient.send(request, responseBodyHandler);
-        } catch (Exception e) {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    static RuntimeException unwrap(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
         }
-        return response;
+        return t instanceof RuntimeException ? (RuntimeException) t : new RuntimeException(t);
     }
 
     private URI toUri(String host, String relativePath) {
@@ -208,7 +324,6 @@ public class VmWareApiClient {
 
     private HttpClient buildClient() {
         HttpClient.Builder builder = HttpClient.newBuilder()
-                .version(HttpClient.Version.HTTP_1_1)
                 .followRedirects(HttpClient.Redirect.NORMAL)
                 .connectTimeout(Duration.ofSeconds(connectionTimeout));
 
@@ -0,0 +1,97 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.vmware;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * A vCenter session shared by all hosts using the same API host, credentials and client settings. The session is
+ * created lazily and renewed when vCenter reports it has expired.
+ */
+public class VmWareSession {
+    private static final Logger logger = LoggerFactory.getLogger(VmWareSession.class);
+
+    private final VmWareApiClient client;
+    private final String authHash;
+    private CompletableFuture<String> sessionId;
+
+    VmWareSession(VmWareApiClient client, String authHash) {
+        this.client = client;
+        this.authHash = authHash;
+    }
+
+    public VmWareApiClient getClient() {
+        return client;
+    }
+
+    public String getSessionId() {
+        return VmWareApiClient.await(currentSession());
+    }
+
+    /**
+     * Runs a call with the current session id. When the session turns out to have expired a new session is created
+     * and the call is made once more.
+     */
+    public <T> CompletableFuture<T> call(Function<String, CompletableFuture<T>> call) {
+        CompletableFuture<String> session = currentSession();
+        return session.thenCompose(call)
+                .handle((result, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(result);
+                    }
+                    if (VmWareApiClient.unwrap(e) instanceof VmWareSessionExpiredException) {
+                        return renew(session).thenCompose(call);
+                    }
+                    CompletableFuture<T> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    return failed;
+                })
+                .thenCompose(f -> f);
+    }
+
+    private synchronized CompletableFuture<String> currentSession() {
+        if (sessionId == null || sessionId.isCompletedExceptionally()) {
+            sessionId = client.createSessionAsync(authHash);
+        }
+        return sessionId;
+    }
+
+    private synchronized CompletableFuture<String> renew(CompletableFuture<String> expired) {
+        // only the first caller seeing the expired session creates a new one
+        if (sessionId == expired) {
+            logger.info("vCenter session on {} expired, creating a new one", client.getApiHost());
+            sessionId = client.createSessionAsync(authHash);
+        }
+        return sessionId;
+    }
+
+    synchronized void delete() {
+        if (sessionId == null || !sessionId.isDone() || sessionId.isCompletedExceptionally()) {
+            return;
+        }
+        String id = sessionId.join();
+        sessionId = null;
+        try {
+            client.deleteSession(id);
+        } catch (RuntimeException e) {
+            logger.debug("Ignoring exception while deleting vCenter session", e);
+        }
+    }
+}
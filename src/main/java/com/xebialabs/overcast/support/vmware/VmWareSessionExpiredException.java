@@ -0,0 +1,26 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.vmware;
+
+/**
+ * Thrown when vCenter rejects a request because the session it was made with is no longer valid.
+ */
+public class VmWareSessionExpiredException extends RuntimeException {
+
+    public VmWareSessionExpiredException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.vmware;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide registry of vCenter sessions. Hosts with the same API host, credentials and client settings share one
+ * client and one session. All sessions are deleted when the JVM shuts down.
+ */
+public final class VmWareSessionRegistry {
+
+    private static final Map<List<Object>, VmWareSession> sessions = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(VmWareSessionRegistry::deleteAll, "overcast-vmware-sessions"));
+    }
+
+    private VmWareSessionRegistry() {}
+
+    public static VmWareSession getSession(String apiHost,
+                                           String authHash,
+                                           Boolean instantClone,
+                                           Boolean ignoreBadCertificate,
+                                           String securityAlgorithm,
+                                           int connectionTimeout) {
+        List<Object> key = Arrays.asList(apiHost, authHash, instantClone, ignoreBadCertificate, securityAlgorithm, connectionTimeout);
+        return sessions.computeIfAbsent(key, k -> new VmWareSession(
+                new VmWareApiClient(apiHost, instantClone, ignoreBadCertificate, securityAlgorithm, connectionTimeout), authHash));
+    }
+
+    static void deleteAll() {
+        for (VmWareSession session : sessions.values()) {
+            session.delete();
+        }
+        sessions.clear();
+    }
+}
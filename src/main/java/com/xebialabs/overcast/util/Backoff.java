@@ -0,0 +1,62 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.util;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.xebialabs.overcast.Preconditions.checkArgument;
+
+/**
+ * Determines how long {@link RetryCommand} waits between attempts.
+ */
+public interface Backoff {
+
+    /**
+     * @param attempt the number of the attempt that just failed, starting at 1.
+     * @return the number of milliseconds to wait before the next attempt.
+     */
+    long delayMillis(int attempt);
+
+    static Backoff fixed(Duration delay) {
+        long millis = delay.toMillis();
+        return attempt -> millis;
+    }
+
+    /**
+     * Doubles the delay after every attempt, starting at <code>initial</code> and never exceeding <code>max</code>.
+     * Each delay is randomly varied by up to 20% so callers polling the same resource do not do so in lock step.
+     */
+    static Backoff exponential(Duration initial, Duration max) {
+        return exponential(initial, max, 0.2);
+    }
+
+    static Backoff exponential(Duration initial, Duration max, double jitter) {
+        checkArgument(jitter >= 0 && jitter < 1, "jitter must be >= 0 and < 1");
+        long initialMillis = initial.toMillis();
+        long maxMillis = max.toMillis();
+        return attempt -> {
+            long delay = initialMillis << Math.min(attempt - 1, 30);
+            if (delay <= 0 || delay > maxMillis) {
+                delay = maxMillis;
+            }
+            if (jitter > 0) {
+                delay += (long) (delay * jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1));
+            }
+            return Math.max(0, delay);
+        };
+    }
+}
@@ -18,51 +18,298 @@ package com.xebialabs.overcast.util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 
+import static com.xebialabs.overcast.Preconditions.checkArgument;
+
+/**
+ * Runs an action until it succeeds, waiting between attempts as determined by a {@link Backoff}.
+ * <p>Retrying stops when the timeout passes or the maximum number of attempts has been made, whichever comes first.
+ * By default every exception is retried, use {@link #retryOn(Class[])} or {@link #retryIf(Predicate)} to only retry
+ * some. An action can also signal that it has to be retried by returning a result that does not match
+ * {@link #until(Predicate)}.
+ */
 public class RetryCommand<T> {
 
     public static Logger logger = LoggerFactory.getLogger(RetryCommand.class);
 
-    private final int maxRetries;
+    private static final long LEGACY_RETRY_DELAY_MILLIS = 5000;
+
+    private Backoff backoff = Backoff.exponential(Duration.ofMillis(100), Duration.ofSeconds(5));
+    private long timeoutMillis = -1;
+    private int maxAttempts = Integer.MAX_VALUE;
+    private Predicate<Throwable> retryIf = e -> e instanceof Exception;
+    private Predicate<? super T> until = result -> true;
+
+    private volatile List<Attempt> lastAttempts = Collections.emptyList();
+
+    @FunctionalInterface
+    public interface Action<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /**
+     * Timing and outcome of a single attempt.
+     */
+    public static final class Attempt {
+        private final int number;
+        private final long startedAfterMillis;
+        private final long durationMillis;
+        private final Throwable failure;
+
+        Attempt(int number, long startedAfterMillis, long durationMillis, Throwable failure) {
+            this.number = number;
+            this.startedAfterMillis = startedAfterMillis;
+            this.durationMillis = durationMillis;
+            this.failure = failure;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public long getStartedAfterMillis() {
+            return startedAfterMillis;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /** @return the exception of a failed attempt or <code>null</code>. */
+        public Throwable getFailure() {
+            return failure;
+        }
 
+        @Override
+        public String toString() {
+            return String.format("attempt %d at +%dms took %dms%s", number, startedAfterMillis, durationMillis,
+                    failure == null ? "" : " (" + failure + ")");
+        }
+    }
+
+    /**
+     * Retry without a limit until the action succeeds.
+     */
+    public RetryCommand() {
+    }
+
+    /**
+     * Retry for as long as <code>maxRetries</code> retries with a delay of 5 seconds would take, polling quickly at
+     * first.
+     */
     public RetryCommand(int maxRetries) {
-        this.maxRetries = maxRetries;
+        this.timeoutMillis = (maxRetries + 1) * LEGACY_RETRY_DELAY_MILLIS;
+    }
+
+    public RetryCommand<T> withBackoff(Backoff backoff) {
+        this.backoff = backoff;
+        return this;
+    }
+
+    public RetryCommand<T> withTimeout(Duration timeout) {
+        checkArgument(!timeout.isNegative(), "timeout must be >= 0");
+        this.timeoutMillis = timeout.toMillis();
+        return this;
+    }
+
+    public RetryCommand<T> withMaxAttempts(int maxAttempts) {
+        checkArgument(maxAttempts > 0, "maxAttempts must be > 0");
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Only retry when an attempt fails with one of these exception types.
+     */
+    @SafeVarargs
+    public final RetryCommand<T> retryOn(Class<? extends Throwable>... types) {
+        return retryIf(e -> {
+            for (Class<? extends Throwable> type : types) {
+                if (type.isInstance(e)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    public RetryCommand<T> retryIf(Predicate<Throwable> retryIf) {
+        this.retryIf = retryIf;
+        return this;
+    }
+
+    /**
+     * Retry when an attempt returns a result not matching <code>accept</code>.
+     */
+    public RetryCommand<T> until(Predicate<? super T> accept) {
+        this.until = accept;
+        return this;
+    }
+
+    /**
+     * @return the attempts of the last run.
+     */
+    public List<Attempt> getAttempts() {
+        return lastAttempts;
     }
 
     public T run(Supplier<T> function) {
-        try {
-            return function.get();
-        } catch (Exception e) {
-            logger.info(e.getMessage());
-            sleep();
-            return retry(function);
-        }
+        return call(function::get);
     }
 
-    private T retry(Supplier<T> function) {
-        int retryCounter = 0;
-        while (retryCounter < maxRetries) {
+    public <E extends Exception> T call(Action<T, E> action) throws E {
+        Run run = new Run();
+        for (int attempt = 1; ; attempt++) {
+            long started = System.nanoTime();
             try {
-                return function.get();
-            } catch (Exception ex) {
-                retryCounter++;
-                sleep();
-                logger.info(ex.getMessage());
-                if (retryCounter >= maxRetries) {
-                    break;
+                T result = action.run();
+                if (run.accept(attempt, started, result)) {
+                    return result;
+                }
+            } catch (Exception e) {
+                if (!run.retry(attempt, started, e)) {
+                    throw e;
                 }
             }
+            long delay = run.nextDelay(attempt);
+            if (delay < 0) {
+                throw run.giveUp();
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
         }
-        throw new RuntimeException("Command failed on all of " + maxRetries + " retries");
     }
 
-    private void sleep() {
+    /**
+     * Like {@link #run(Supplier)} for an asynchronous action. No thread is blocked while waiting between attempts.
+     */
+    public CompletableFuture<T> runAsync(Supplier<CompletableFuture<T>> action) {
+        return attemptAsync(action, new Run(), 1);
+    }
+
+    private CompletableFuture<T> attemptAsync(Supplier<CompletableFuture<T>> action, Run run, int attempt) {
+        long started = System.nanoTime();
+        CompletableFuture<T> future;
         try {
-            TimeUnit.SECONDS.sleep(5);
+            future = action.get();
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        return future.handle((result, t) -> {
+            if (t == null) {
+                if (run.accept(attempt, started, result)) {
+                    return CompletableFuture.completedFuture(result);
+                }
+            } else {
+                Throwable failure = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                if (!run.retry(attempt, started, failure)) {
+                    return RetryCommand.<T>failed(failure);
+                }
+            }
+            long delay = run.nextDelay(attempt);
+            if (delay < 0) {
+                return RetryCommand.<T>failed(run.giveUp());
+            }
+            return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> attemptAsync(action, run, attempt + 1));
+        }).thenCompose(f -> f);
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(t);
+        return f;
+    }
+
+    /**
+     * Waits for the result of {@link #runAsync(Supplier)}, rethrowing runtime failures as they are.
+     */
+    public static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        }
+    }
+
+    /** State of a single run of the command. */
+    private class Run {
+        private final long start = System.nanoTime();
+        private final List<Attempt> attempts = Collections.synchronizedList(new ArrayList<>());
+        private Throwable lastFailure;
+
+        private boolean accept(int attempt, long started, T result) {
+            record(attempt, started, null);
+            if (until.test(result)) {
+                if (attempt > 1) {
+                    logger.debug("Succeeded after {}", attempts);
+                }
+                return true;
+            }
+            lastFailure = null;
+            logger.debug("Attempt {} returned {}, retrying", attempt, result);
+            return false;
+        }
+
+        private boolean retry(int attempt, long started, Throwable failure) {
+            record(attempt, started, failure);
+            lastFailure = failure;
+            if (!retryIf.test(failure)) {
+                return false;
+            }
+            logger.info("Attempt {} failed: {}", attempt, failure.getMessage());
+            return true;
+        }
+
+        private void record(int attempt, long started, Throwable failure) {
+            long now = System.nanoTime();
+            attempts.add(new Attempt(attempt, TimeUnit.NANOSECONDS.toMillis(started - start), TimeUnit.NANOSECONDS.toMillis(now - started), failure));
+            lastAttempts = attempts;
+        }
+
+        /** @return the delay before the next attempt, or -1 to give up. */
+        private long nextDelay(int attempt) {
+            if (attempt >= maxAttempts) {
+                return -1;
+            }
+            long delay = backoff.delayMillis(attempt);
+            if (timeoutMillis < 0) {
+                return delay;
+            }
+            long remaining = timeoutMillis - elapsedMillis();
+            if (remaining <= 0) {
+                return -1;
+            }
+            // always make a last attempt at the deadline
+            return Math.min(delay, remaining);
+        }
+
+        private long elapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+
+        private RetryException giveUp() {
+            return new RetryException(String.format("Command failed after %d attempts in %d ms", attempts.size(), elapsedMillis()),
+                    lastFailure, new ArrayList<>(attempts));
         }
     }
 }
@@ -0,0 +1,36 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.util;
+
+import java.util.List;
+
+/**
+ * Thrown by {@link RetryCommand} when all attempts failed or the deadline passed. The cause is the failure of the last
+ * attempt, if it failed with an exception.
+ */
+public class RetryException extends RuntimeException {
+
+    private final List<RetryCommand.Attempt> attempts;
+
+    public RetryException(String message, Throwable cause, List<RetryCommand.Attempt> attempts) {
+        super(message, cause);
+        this.attempts = attempts;
+    }
+
+    public List<RetryCommand.Attempt> getAttempts() {
+        return attempts;
+    }
+}
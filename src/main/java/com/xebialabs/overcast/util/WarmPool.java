@@ -0,0 +1,316 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.xebialabs.overcast.Preconditions.checkArgument;
+import static com.xebialabs.overcast.Preconditions.checkNotNull;
+import static com.xebialabs.overcast.Preconditions.checkState;
+
+/**
+ * Keeps a number of ready to use items around so they can be handed out without waiting for them to be created.
+ * <p>When the number of ready and in-flight items drops below the low watermark the pool is filled up to the high
+ * watermark in the background. Items that have been idle for longer than the maximum age are destroyed.
+ */
+public class WarmPool<T> {
+    private static final Logger logger = LoggerFactory.getLogger(WarmPool.class);
+
+    private static final long MAX_SWEEP_INTERVAL_MILLIS = 60 * 1000;
+
+    public interface Factory<T> {
+        /** Create a new ready to use item. May throw a {@link RuntimeException} when creation fails. */
+        T create();
+
+        /** Release all resources held by an item that will never be handed out. */
+        void destroy(T item);
+    }
+
+    private static class Entry<T> {
+        private final T item;
+        private final long createdAt;
+
+        private Entry(T item, long createdAt) {
+            this.item = item;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final String name;
+    private final Factory<T> factory;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final long maxAgeMillis;
+    private final ScheduledExecutorService executor;
+    private final Stats stats = new Stats();
+
+    // guarded by this
+    private final Deque<Entry<T>> idle = new ArrayDeque<>();
+    private int inFlight;
+    private boolean started;
+    private boolean closed;
+
+    public WarmPool(String name, Factory<T> factory, int lowWatermark, int highWatermark, long maxAgeMillis) {
+        checkNotNull(factory, "factory cannot be null");
+        checkArgument(lowWatermark >= 0, "lowWatermark must be >= 0");
+        checkArgument(highWatermark > 0, "highWatermark must be > 0");
+        checkArgument(lowWatermark <= highWatermark, "lowWatermark (%d) must not exceed highWatermark (%d)", lowWatermark, highWatermark);
+        checkArgument(maxAgeMillis > 0, "maxAgeMillis must be > 0");
+        this.name = name;
+        this.factory = factory;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.maxAgeMillis = maxAgeMillis;
+        this.executor = Executors.newScheduledThreadPool(highWatermark, new DaemonThreadFactory("overcast-pool-" + name));
+    }
+
+    /** Fill the pool up to the high watermark and start evicting items that exceed the maximum age. */
+    public synchronized void start() {
+        checkState(!closed, "Pool '%s' is closed", name);
+        if (started) {
+            return;
+        }
+        started = true;
+        long sweepInterval = Math.max(1, Math.min(maxAgeMillis / 2, MAX_SWEEP_INTERVAL_MILLIS));
+        executor.scheduleWithFixedDelay(this::evictExpired, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        fill();
+    }
+
+    /**
+     * Take a ready item out of the pool and trigger a refill in the background.
+     *
+     * @return the item or <code>null</code> if no ready item was available.
+     */
+    public T checkout() {
+        List<T> expired = new ArrayList<>();
+        T item = null;
+        synchronized (this) {
+            checkState(!closed, "Pool '%s' is closed", name);
+            removeExpired(expired);
+            Entry<T> entry = idle.pollFirst();
+            if (entry != null) {
+                item = entry.item;
+            }
+            if (started) {
+                refill();
+            }
+        }
+        destroyAll(expired);
+
+        if (item == null) {
+            stats.misses.incrementAndGet();
+            logger.info("Pool '{}' has no ready item available", name);
+        } else {
+            stats.hits.incrementAndGet();
+            logger.info("Pool '{}' handed out a ready item", name);
+        }
+        return item;
+    }
+
+    /** Destroy an item that was handed out and will not be used again in the background. */
+    public void discard(T item) {
+        synchronized (this) {
+            if (!closed) {
+                executor.execute(() -> destroyAll(List.of(item)));
+                return;
+            }
+        }
+        destroyAll(List.of(item));
+    }
+
+    /** Stop refilling and destroy all idle items. Items currently being created are destroyed once they are ready. */
+    public void close() {
+        List<T> toDestroy = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Entry<T> entry : idle) {
+                toDestroy.add(entry.item);
+            }
+            idle.clear();
+        }
+        executor.shutdown();
+        logger.info("Closing pool '{}', destroying {} idle items ({})", name, toDestroy.size(), stats);
+        destroyAll(toDestroy);
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    private synchronized void refill() {
+        if (idle.size() + inFlight < lowWatermark) {
+            fill();
+        }
+    }
+
+    // must hold lock
+    private void fill() {
+        int missing = highWatermark - idle.size() - inFlight;
+        for (int i = 0; i < missing; i++) {
+            inFlight++;
+            executor.execute(this::createOne);
+        }
+    }
+
+    private void createOne() {
+        long start = System.currentTimeMillis();
+        T item;
+        try {
+            item = factory.create();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                inFlight--;
+            }
+            stats.refillFailures.incrementAndGet();
+            logger.warn("Pool '{}' failed to create an item", name, e);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        stats.recordRefill(now - start);
+
+        boolean keep;
+        synchronized (this) {
+            inFlight--;
+            keep = !closed;
+            if (keep) {
+                idle.addLast(new Entry<>(item, now));
+            }
+        }
+        if (keep) {
+            logger.debug("Pool '{}' created an item in {} ms", name, now - start);
+        } else {
+            destroyAll(List.of(item));
+        }
+    }
+
+    private void evictExpired() {
+        List<T> expired = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            removeExpired(expired);
+            refill();
+        }
+        destroyAll(expired);
+    }
+
+    // must hold lock
+    private void removeExpired(List<T> expired) {
+        long now = System.currentTimeMillis();
+        Iterator<Entry<T>> it = idle.iterator();
+        while (it.hasNext()) {
+            Entry<T> entry = it.next();
+            if (now - entry.createdAt >= maxAgeMillis) {
+                it.remove();
+                expired.add(entry.item);
+                stats.evictions.incrementAndGet();
+            }
+        }
+        if (!expired.isEmpty()) {
+            logger.info("Pool '{}' evicting {} items older than {} ms", name, expired.size(), maxAgeMillis);
+        }
+    }
+
+    private void destroyAll(List<T> items) {
+        for (T item : items) {
+            try {
+                factory.destroy(item);
+            } catch (RuntimeException e) {
+                logger.warn("Pool '{}' failed to destroy an item", name, e);
+            }
+        }
+    }
+
+    public static class Stats {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong refills = new AtomicLong();
+        private final AtomicLong refillFailures = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private final AtomicLong totalRefillMillis = new AtomicLong();
+        private final AtomicLong lastRefillMillis = new AtomicLong();
+
+        private void recordRefill(long millis) {
+            refills.incrementAndGet();
+            totalRefillMillis.addAndGet(millis);
+            lastRefillMillis.set(millis);
+        }
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public long getRefills() {
+            return refills.get();
+        }
+
+        public long getRefillFailures() {
+            return refillFailures.get();
+        }
+
+        public long getEvictions() {
+            return evictions.get();
+        }
+
+        public long getLastRefillMillis() {
+            return lastRefillMillis.get();
+        }
+
+        public long getAverageRefillMillis() {
+            long count = refills.get();
+            return count == 0 ? 0 : totalRefillMillis.get() / count;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "hits=" + getHits() +
+                    ", misses=" + getMisses() +
+                    ", refills=" + getRefills() +
+                    ", refillFailures=" + getRefillFailures() +
+                    ", evictions=" + getEvictions() +
+                    ", averageRefillMillis=" + getAverageRefillMillis() +
+                    '}';
+        }
+    }
+}
@@ -15,10 +15,15 @@
  */
 package com.xebialabs.overcast.command;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import org.junit.jupiter.api.Test;
 
 import static com.xebialabs.overcast.command.Command.aCommand;
 import static com.xebialabs.overcast.command.CommandProcessor.atLocation;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -45,5 +50,36 @@ public class CommandProcessorTest {
         assertThat(ls.getOutput().length() > 0, is(true));
     }
 
+    @Test
+    public void shouldKeepTailOfOutput() {
+        //Test only for UNIX
+        assumeTrue(System.getenv().containsKey("PATH"));
+        CommandResponse response = atLocation("/tmp").withCaptureLimit(6).run(aCommand("printf").withArguments("one\\ntwo\\nthree"));
+        assertThat(response.getOutput(), is("\nthree"));
+    }
+
+    @Test
+    public void shouldPassLinesToListeners() {
+        //Test only for UNIX
+        assumeTrue(System.getenv().containsKey("PATH"));
+        List<String> lines = new ArrayList<>();
+        List<String> errorLines = new ArrayList<>();
+        atLocation("/tmp")
+            .withOutputListener(lines::add)
+            .withErrorListener(errorLines::add)
+            .run(aCommand("sh").withArguments("-c", "printf 'caf\\303\\251\\r\\nna\\303\\257ve'; echo oops >&2"));
+        assertThat(lines, equalTo(Arrays.asList("caf\u00e9", "na\u00efve")));
+        assertThat(errorLines, equalTo(Arrays.asList("oops")));
+    }
+
+    @Test
+    public void shouldNotStartCapturedOutputInsideCharacter() {
+        OutputPump.TailBuffer buffer = new OutputPump.TailBuffer(3);
+        byte[] bytes = "a\u00e9\u00e9".getBytes(UTF_8);
+        buffer.append(bytes, 0, 2);
+        buffer.append(bytes, 2, bytes.length - 2);
+        assertThat(buffer.toString(), is("\u00e9"));
+    }
+
 
 }
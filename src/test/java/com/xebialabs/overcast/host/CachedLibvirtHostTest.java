@@ -15,9 +15,16 @@
  */
 package com.xebialabs.overcast.host;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import com.xebialabs.overcast.command.CommandProcessor;
 import com.xebialabs.overcast.support.libvirt.DomainWrapper;
 import com.xebialabs.overcast.support.libvirt.IpLookupStrategy;
+import com.xebialabs.overcast.support.libvirt.ProvisioningLease;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.libvirt.Connect;
@@ -26,9 +33,11 @@ import org.libvirt.LibvirtException;
 import org.mockito.Mockito;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsNull.notNullValue;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class CachedLibvirtHostTest {
@@ -146,4 +155,126 @@ public class CachedLibvirtHostTest {
         DomainWrapper w = host.findFirstCachedDomain();
         assertThat(w, notNullValue());
     }
+
+    @Test
+    public void shouldShareCachedDomainLookupOfConcurrentSetups() throws Exception {
+        Connect libvirt = Mockito.mock(Connect.class);
+        Domain domain = Mockito.mock(Domain.class);
+        when(domain.getXMLDesc(0)).thenReturn(PROVISION_COMMAND_DOMAIN_XML);
+        when(domain.getName()).thenReturn("domain");
+        when(libvirt.domainLookupByName(anyString())).thenReturn(domain);
+
+        DomainWrapper cached = DomainWrapper.newWrapper(domain);
+        CountDownLatch leaderStarted = new CountDownLatch(1);
+        CountDownLatch followerWaiting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger expirationTags = new AtomicInteger();
+        AtomicInteger lookups = new AtomicInteger();
+
+        CachedLibvirtHost first = coalescingHost(libvirt, leaderStarted, followerWaiting, release, expirationTags, lookups, cached);
+        CachedLibvirtHost second = coalescingHost(libvirt, leaderStarted, followerWaiting, release, expirationTags, lookups, cached);
+
+        CompletableFuture<DomainWrapper> leader = CompletableFuture.supplyAsync(first::findOrProvisionCachedDomain);
+        assertThat(leaderStarted.await(5, TimeUnit.SECONDS), equalTo(true));
+
+        AtomicReference<DomainWrapper> shared = new AtomicReference<>();
+        Thread follower = new Thread(() -> shared.set(second.findOrProvisionCachedDomain()));
+        follower.start();
+        // without coalescing the follower does its own lookup and never waits for the leader
+        boolean waited = followerWaiting.await(5, TimeUnit.SECONDS);
+        release.countDown();
+        assertThat(waited, equalTo(true));
+
+        assertThat(leader.get(5, TimeUnit.SECONDS), sameInstance(cached));
+        follower.join(5000);
+        assertThat(follower.isAlive(), equalTo(false));
+        assertThat(shared.get().getName(), equalTo("domain"));
+        assertThat(expirationTags.get(), equalTo(1));
+        assertThat(lookups.get(), equalTo(1));
+    }
+
+    private static CachedLibvirtHost coalescingHost(Connect libvirt, CountDownLatch leaderStarted, CountDownLatch followerWaiting, CountDownLatch release,
+        AtomicInteger expirationTags, AtomicInteger lookups, DomainWrapper cached) {
+        return new CachedLibvirtHost("hostLabel", libvirt,
+                "baseDomainName", Mockito.mock(IpLookupStrategy.class), "networkName",
+                "provisionUrl", "provcmd", null, "echo checksum",
+                CommandProcessor.atCurrentDir(), 100, 100, 100, 100, null, null) {
+            @Override
+            protected String getExpirationTag() {
+                expirationTags.incrementAndGet();
+                leaderStarted.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "checksum";
+            }
+
+            @Override
+            protected DomainWrapper findFirstCachedDomain(String checkSum) {
+                lookups.incrementAndGet();
+                return cached;
+            }
+
+            @Override
+            String awaitLookup(CompletableFuture<String> inProgress) {
+                followerWaiting.countDown();
+                return super.awaitLookup(inProgress);
+            }
+        };
+    }
+
+    @Test
+    public void shouldTakeOverExpiredLeaseOfDeadHolder() throws Exception {
+        Connect libvirt = Mockito.mock(Connect.class);
+        Domain base = Mockito.mock(Domain.class);
+        when(base.getXMLDesc(0)).thenReturn("<domain type='kvm'><name>baseDomainName</name></domain>");
+        when(libvirt.domainLookupByName("baseDomainName")).thenReturn(base);
+
+        // the lease of a process that died while provisioning
+        String leaseName = ProvisioningLease.leaseName("baseDomainName", "provcmd", "checksum");
+        Domain deadLease = Mockito.mock(Domain.class);
+        when(deadLease.getUUIDString()).thenReturn("dead-uuid");
+        when(deadLease.getXMLDesc(0)).thenReturn("<domain type='kvm'><name>" + leaseName + "</name><metadata>"
+            + "<overcast_lease xmlns='" + ProvisioningLease.LEASE_NS_V1 + "'>"
+            + "<holder>build-1:42</holder><expires>" + (System.currentTimeMillis() - 1000) + "</expires>"
+            + "</overcast_lease></metadata></domain>");
+        when(libvirt.domainLookupByName(leaseName)).thenReturn(deadLease);
+
+        Domain ownLease = Mockito.mock(Domain.class);
+        when(libvirt.domainDefineXML(anyString())).thenThrow(LibvirtException.class).thenReturn(ownLease);
+        when(libvirt.domainLookupByUUIDString(anyString())).thenReturn(ownLease);
+        when(libvirt.domainLookupByUUIDString("dead-uuid")).thenReturn(deadLease);
+
+        DomainWrapper provisioned = Mockito.mock(DomainWrapper.class);
+        when(provisioned.getName()).thenReturn("provisioned");
+        AtomicInteger provisionings = new AtomicInteger();
+        CachedLibvirtHost host = new CachedLibvirtHost("hostLabel", libvirt,
+                "baseDomainName", Mockito.mock(IpLookupStrategy.class), "networkName",
+                "provisionUrl", "provcmd", null, "echo checksum",
+                CommandProcessor.atCurrentDir(), 100, 100, 100, 100, null, null) {
+            @Override
+            protected String getExpirationTag() {
+                return "checksum";
+            }
+
+            @Override
+            protected DomainWrapper findFirstCachedDomain(String checkSum) {
+                return null;
+            }
+
+            @Override
+            protected DomainWrapper provisionCachedDomain(String expirationTag) {
+                provisionings.incrementAndGet();
+                return provisioned;
+            }
+        };
+        host.setProvisioningLease(60, 10);
+
+        assertThat(host.findOrProvisionCachedDomain(), sameInstance(provisioned));
+        assertThat(provisionings.get(), equalTo(1));
+        verify(deadLease).undefine();
+        verify(ownLease).undefine();
+    }
 }
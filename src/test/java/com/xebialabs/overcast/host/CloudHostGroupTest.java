@@ -0,0 +1,151 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.host;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CloudHostGroupTest {
+
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    // when set, every setup waits until this many hosts are being set up
+    private CyclicBarrier allRunning;
+
+    private class FakeHost implements CloudHost {
+        private final String label;
+
+        private FakeHost(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public void setup() {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                if (allRunning != null) {
+                    allRunning.await(5, TimeUnit.SECONDS);
+                } else {
+                    Thread.sleep(50);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException("setup of " + label + " was not concurrent", e);
+            } finally {
+                running.decrementAndGet();
+            }
+            if (label.startsWith("failing")) {
+                throw new RuntimeException("setup of " + label + " failed");
+            }
+            events.add("setup " + label);
+        }
+
+        @Override
+        public void teardown() {
+            events.add("teardown " + label);
+            if (label.endsWith("broken")) {
+                throw new RuntimeException("teardown of " + label + " failed");
+            }
+        }
+
+        @Override
+        public String getHostName() {
+            return label;
+        }
+
+        @Override
+        public int getPort(int port) {
+            return port;
+        }
+    }
+
+    private CloudHostGroup group(String... labels) {
+        return new CloudHostGroup(FakeHost::new).withHosts(labels);
+    }
+
+    @Test
+    public void shouldSetUpDependenciesFirstAndTearDownInReverse() {
+        CloudHostGroup group = group("app", "web")
+            .withDependency("app", "db")
+            .withDependency("web", "app");
+
+        group.setup();
+        assertThat(events, equalTo(Arrays.asList("setup db", "setup app", "setup web")));
+        assertThat(group.getHost("app").getHostName(), equalTo("app"));
+
+        events.clear();
+        group.teardown();
+        assertThat(events, equalTo(Arrays.asList("teardown web", "teardown app", "teardown db")));
+    }
+
+    @Test
+    public void shouldSetUpIndependentHostsConcurrently() {
+        CloudHostGroup group = group("a", "b", "c", "d").withConcurrency(4);
+        allRunning = new CyclicBarrier(4);
+
+        group.setup();
+        assertThat(maxRunning.get(), equalTo(4));
+        group.teardown();
+    }
+
+    @Test
+    public void shouldLimitConcurrencyPerBackend() {
+        CloudHostGroup group = group("a", "b", "c", "d").withBackendConcurrency("FakeHost", 1);
+
+        group.setup();
+        assertThat(maxRunning.get(), equalTo(1));
+        group.teardown();
+    }
+
+    @Test
+    public void shouldTearDownStartedHostsWhenOneFails() {
+        CloudHostGroup group = group("db", "failing")
+            .withDependency("app", "failing")
+            .withConcurrency(1);
+
+        assertThrows(RuntimeException.class, group::setup);
+        assertThat(events, hasItems("setup db", "teardown db", "teardown failing"));
+        assertThat(events.contains("setup app"), equalTo(false));
+        assertThrows(IllegalArgumentException.class, () -> group.getHost("db"));
+    }
+
+    @Test
+    public void shouldKeepTeardownFailureOfFailedHost() {
+        CloudHostGroup group = group("failing-broken");
+
+        RuntimeException e = assertThrows(RuntimeException.class, group::setup);
+        assertThat(events, hasItems("teardown failing-broken"));
+        assertThat(e.getCause().getSuppressed().length, equalTo(1));
+        assertThat(e.getCause().getSuppressed()[0].getMessage(), equalTo("teardown of failing-broken failed"));
+    }
+
+    @Test
+    public void shouldRejectCyclicDependencies() {
+        CloudHostGroup group = group().withDependency("a", "b").withDependency("b", "a");
+
+        assertThrows(IllegalArgumentException.class, group::setup);
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.host;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo;
+import org.libvirt.DomainInfo.DomainState;
+import org.libvirt.LibvirtException;
+import org.mockito.Mockito;
+
+import com.xebialabs.overcast.support.libvirt.DomainWrapper;
+import com.xebialabs.overcast.support.libvirt.IpLookupStrategy;
+import com.xebialabs.overcast.support.libvirt.JDomUtil;
+import com.xebialabs.overcast.util.WarmPool;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.when;
+
+public class LibvirtHostTest {
+
+    @Test
+    public void shouldDiscardPooledCloneThatIsNoLongerRunning() throws Exception {
+        Connect libvirt = Mockito.mock(Connect.class);
+        Domain base = domain("base", DomainState.VIR_DOMAIN_SHUTOFF);
+        when(libvirt.domainLookupByName("base")).thenReturn(base);
+
+        LibvirtHost host = new LibvirtHost(libvirt, "base", Mockito.mock(IpLookupStrategy.class), "network", 30, 0, Collections.emptyList());
+
+        LibvirtHost.PooledClone crashed = new LibvirtHost.PooledClone(wrapper(domain("crashed", DomainState.VIR_DOMAIN_SHUTOFF)), "10.0.0.1");
+        DomainWrapper running = wrapper(domain("running", DomainState.VIR_DOMAIN_RUNNING));
+        CountDownLatch crashedIdle = new CountDownLatch(1);
+        CountDownLatch destroyed = new CountDownLatch(1);
+
+        WarmPool<LibvirtHost.PooledClone> pool = new WarmPool<>("test", new WarmPool.Factory<LibvirtHost.PooledClone>() {
+            private int created;
+
+            @Override
+            public LibvirtHost.PooledClone create() {
+                synchronized (this) {
+                    created++;
+                    if (created == 1) {
+                        return crashed;
+                    }
+                }
+                // make sure the crashed clone is handed out first
+                try {
+                    crashedIdle.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new LibvirtHost.PooledClone(running, "10.0.0.2");
+            }
+
+            @Override
+            public void destroy(LibvirtHost.PooledClone item) {
+                if (item == crashed) {
+                    destroyed.countDown();
+                }
+            }
+        }, 0, 2, 60000);
+        pool.start();
+        waitForIdle(pool, 1);
+        crashedIdle.countDown();
+        waitForIdle(pool, 2);
+
+        host.setWarmPool(pool);
+        host.setup();
+
+        assertThat(host.getClone(), sameInstance(running));
+        assertThat(host.getHostName(), equalTo("10.0.0.2"));
+        assertThat(destroyed.await(5, TimeUnit.SECONDS), equalTo(true));
+        pool.close();
+    }
+
+    private static void waitForIdle(WarmPool<?> pool, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getIdleCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(pool.getIdleCount(), equalTo(count));
+    }
+
+    private static Domain domain(String name, DomainState state) throws LibvirtException {
+        Domain domain = Mockito.mock(Domain.class);
+        DomainInfo info = Mockito.mock(DomainInfo.class);
+        info.state = state;
+        when(domain.getInfo()).thenReturn(info);
+        when(domain.getName()).thenReturn(name);
+        when(domain.getXMLDesc(0)).thenReturn("<domain type='kvm'><name>" + name + "</name></domain>");
+        return domain;
+    }
+
+    private static DomainWrapper wrapper(Domain domain) throws LibvirtException {
+        return new DomainWrapper(domain, JDomUtil.stringToDocument(domain.getXMLDesc(0)));
+    }
+}
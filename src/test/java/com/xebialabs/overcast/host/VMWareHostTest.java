@@ -0,0 +1,129 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.host;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class VMWareHostTest {
+    private static final String BASE_IMAGE = "base image&co";
+
+    private HttpServer server;
+    private String apiHost;
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final AtomicInteger identityRequests = new AtomicInteger();
+    private volatile String vms;
+    private volatile String cloneRequest;
+    private volatile String sessionHeader;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/session", exchange -> respond(exchange, 200, "\"session-1\""));
+        server.createContext("/api/vcenter/vm", exchange -> {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getRawPath();
+            String query = exchange.getRequestURI().getRawQuery();
+            requests.add(method + " " + path + (query == null ? "" : "?" + query));
+            if (method.equals("GET") && path.equals("/api/vcenter/vm")) {
+                sessionHeader = exchange.getRequestHeaders().getFirst("vmware-api-session-id");
+                respond(exchange, 200, vms);
+            } else if (method.equals("POST") && "action=clone".equals(query)) {
+                cloneRequest = read(exchange.getRequestBody());
+                respond(exchange, 200, "\"vm-2\"");
+            } else if (method.equals("GET") && path.equals("/api/vcenter/vm/vm-2/guest/identity")) {
+                // the guest tools need a while before they know the IP
+                if (identityRequests.incrementAndGet() < 3) {
+                    respond(exchange, 503, "{\"error_type\":\"SERVICE_UNAVAILABLE\"}");
+                } else {
+                    respond(exchange, 200, "{\"ip_address\":\"10.0.0.5\",\"name\":\"clone\"}");
+                }
+            } else {
+                respond(exchange, 404, "{\"error_type\":\"NOT_FOUND\"}");
+            }
+        });
+        server.start();
+        apiHost = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private VMWareHost host() {
+        return new VMWareHost(apiHost, "hash", BASE_IMAGE, false, false, "TLS", 5, 2);
+    }
+
+    @Test
+    public void shouldCloneBaseImageFoundByNameAndWaitForItsIp() {
+        vms = "[{\"memory_size_MiB\":1024,\"vm\":\"vm-1\",\"name\":\"" + BASE_IMAGE + "\",\"power_state\":\"POWERED_OFF\",\"cpu_count\":1}]";
+        VMWareHost host = host();
+
+        host.setupAsync().join();
+
+        assertThat(requests.get(0), equalTo("GET /api/vcenter/vm?names=base%20image%26co"));
+        assertThat(sessionHeader, equalTo("session-1"));
+        assertThat(cloneRequest, containsString("\"source\": \"vm-1\""));
+        assertThat(identityRequests.get(), equalTo(3));
+        assertThat(host.getHostName(), equalTo("10.0.0.5"));
+    }
+
+    @Test
+    public void shouldNotCloneWhenBaseImageIsNotFound() {
+        vms = "[]";
+        VMWareHost host = host();
+
+        host.setup();
+
+        assertThat(requests, equalTo(List.of("GET /api/vcenter/vm?names=base%20image%26co")));
+        assertThat(host.getHostName(), nullValue());
+        // nothing was created, so there is nothing to delete
+        host.teardown();
+        assertThat(requests.size(), equalTo(1));
+    }
+
+    private static String read(InputStream in) throws IOException {
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.readiness;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ReadinessTest {
+
+    private static int freePort() throws IOException {
+        try (ServerSocket ss = new ServerSocket(0)) {
+            return ss.getLocalPort();
+        }
+    }
+
+    private static ServerSocket serverSocket() throws IOException {
+        return new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    private static Thread serve(ServerSocket ss, String greeting) {
+        Thread t = new Thread(() -> {
+            try (Socket s = ss.accept()) {
+                OutputStream out = s.getOutputStream();
+                out.write(greeting.getBytes(US_ASCII));
+                out.flush();
+            } catch (IOException ignore) {
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    @Test
+    public void tcpProbeShouldDetectOpenPort() throws Exception {
+        try (ServerSocket ss = serverSocket()) {
+            TcpPortProbe probe = new TcpPortProbe(ss.getLocalPort());
+            assertThat(probe.isReady("localhost", port -> port), is(true));
+        }
+    }
+
+    @Test
+    public void tcpProbeShouldTranslatePorts() throws Exception {
+        try (ServerSocket ss = serverSocket()) {
+            TcpPortProbe probe = new TcpPortProbe(22);
+            assertThat(probe.isReady("localhost", port -> ss.getLocalPort()), is(true));
+        }
+    }
+
+    @Test
+    public void sshProbeShouldWaitForBanner() throws Exception {
+        try (ServerSocket ss = serverSocket()) {
+            serve(ss, "Welcome\r\nSSH-2.0-OpenSSH_8.0\r\n");
+            assertThat(new SshBannerProbe(ss.getLocalPort()).isReady("localhost", port -> port), is(true));
+        }
+        try (ServerSocket ss = serverSocket()) {
+            serve(ss, "HTTP/1.1 400 Bad Request\r\n");
+            assertThat(new SshBannerProbe(ss.getLocalPort()).isReady("localhost", port -> port), is(false));
+        }
+    }
+
+    @Test
+    public void shouldReturnOnceAllProbesAreReady() throws Exception {
+        try (ServerSocket first = serverSocket(); ServerSocket second = serverSocket()) {
+            Readiness readiness = new Readiness(Arrays.asList(new TcpPortProbe(first.getLocalPort()), new TcpPortProbe(second.getLocalPort())), 5);
+            long start = System.currentTimeMillis();
+            readiness.await("localhost", port -> port);
+            assertThat(System.currentTimeMillis() - start < 1000, is(true));
+        }
+    }
+
+    @Test
+    public void shouldFailWhenNotReadyInTime() throws Exception {
+        Readiness readiness = new Readiness(Collections.singletonList(new TcpPortProbe(freePort())), 1);
+        assertThrows(IllegalStateException.class, () -> readiness.await("localhost", port -> port));
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.docker;
+
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.EventStream;
+import com.spotify.docker.client.LogStream;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.spotify.docker.client.messages.ContainerState;
+import com.spotify.docker.client.messages.Event;
+import com.spotify.docker.client.messages.LogMessage;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ContainerReadinessTest {
+    private DockerClient client;
+    private ContainerState state;
+    private ContainerState.Health health;
+    private EventStream events;
+    private LogStream logs;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        client = mock(DockerClient.class);
+        ContainerInfo info = mock(ContainerInfo.class);
+        state = mock(ContainerState.class);
+        health = mock(ContainerState.Health.class);
+        events = mock(EventStream.class);
+        logs = mock(LogStream.class);
+        when(client.inspectContainer("c1")).thenReturn(info);
+        when(info.state()).thenReturn(state);
+        when(state.running()).thenReturn(true);
+        when(state.health()).thenReturn(health);
+        when(health.status()).thenReturn("starting");
+        when(client.events(any())).thenReturn(events);
+        when(client.logs(eq("c1"), any())).thenReturn(logs);
+    }
+
+    private static Event event(String action) {
+        Event event = mock(Event.class);
+        when(event.action()).thenReturn(action);
+        return event;
+    }
+
+    private static LogMessage log(String text) {
+        return new LogMessage(LogMessage.Stream.STDOUT, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void shouldBeReadyWhenAlreadyHealthy() throws Exception {
+        when(health.status()).thenReturn("healthy");
+
+        new ContainerReadiness(true, null, 10).await(client, "c1");
+        verify(events, never()).next();
+    }
+
+    @Test
+    public void shouldWaitForHealthyEvent() throws Exception {
+        Event starting = event("exec_start: /healthcheck");
+        Event healthy = event("health_status: healthy");
+        when(events.hasNext()).thenReturn(true, true, false);
+        when(events.next()).thenReturn(starting, healthy);
+
+        new ContainerReadiness(true, null, 10).await(client, "c1");
+    }
+
+    @Test
+    public void shouldFailWhenContainerDies() throws Exception {
+        Event die = event("die");
+        when(events.hasNext()).thenReturn(true, false);
+        when(events.next()).thenReturn(die);
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> new ContainerReadiness(true, null, 10).await(client, "c1"));
+        assertThat(e.getMessage(), containsString("stopped"));
+    }
+
+    @Test
+    public void shouldFailWithoutHealthCheck() throws Exception {
+        when(state.health()).thenReturn(null);
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> new ContainerReadiness(true, null, 10).await(client, "c1"));
+        assertThat(e.getMessage(), containsString("HEALTHCHECK"));
+    }
+
+    @Test
+    public void shouldMatchLogLineSplitOverMessages() throws Exception {
+        LogMessage first = log("starting\nready to acc");
+        LogMessage second = log("ept connections\n");
+        when(logs.hasNext()).thenReturn(true, true, false);
+        when(logs.next()).thenReturn(first, second);
+
+        new ContainerReadiness(false, Pattern.compile("ready to accept connections"), 10).await(client, "c1");
+    }
+
+    @Test
+    public void shouldFailWhenLogEndsWithoutMatch() throws Exception {
+        LogMessage first = log("starting\nfatal error\n");
+        when(logs.hasNext()).thenReturn(true, false);
+        when(logs.next()).thenReturn(first);
+
+        assertThrows(IllegalStateException.class, () -> new ContainerReadiness(false, Pattern.compile("ready"), 10).await(client, "c1"));
+    }
+
+    @Test
+    public void shouldSubscribeAgainWhenEventStreamTimesOut() throws Exception {
+        EventStream quiet = mock(EventStream.class);
+        when(quiet.hasNext()).thenThrow(new RuntimeException(new SocketTimeoutException("Read timed out")));
+        when(client.events(any())).thenReturn(quiet, events);
+        Event healthy = event("health_status: healthy");
+        when(events.hasNext()).thenReturn(true, false);
+        when(events.next()).thenReturn(healthy);
+
+        new ContainerReadiness(true, null, 10).await(client, "c1");
+        verify(client, times(2)).events(any());
+        verify(quiet).close();
+    }
+
+    @Test
+    public void shouldFollowLogAgainWhenLogStreamTimesOut() throws Exception {
+        LogStream quiet = mock(LogStream.class);
+        when(quiet.hasNext()).thenThrow(new RuntimeException(new SocketTimeoutException("Read timed out")));
+        when(client.logs(eq("c1"), any())).thenReturn(quiet, logs);
+        LogMessage ready = log("ready\n");
+        when(logs.hasNext()).thenReturn(true, false);
+        when(logs.next()).thenReturn(ready);
+
+        new ContainerReadiness(false, Pattern.compile("ready"), 10).await(client, "c1");
+        verify(client, times(2)).logs(eq("c1"), any());
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.docker;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import com.spotify.docker.client.DockerClient;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class DockerClientRegistryTest {
+
+    @AfterEach
+    public void closeClients() {
+        DockerClientRegistry.closeAll();
+    }
+
+    @Test
+    public void shouldShareClientPerEndpoint() throws Exception {
+        DockerClient client = DockerClientRegistry.getClient(new URI("http://remotehost:2375"), null);
+
+        assertThat(DockerClientRegistry.getClient(new URI("http://remotehost:2375"), null), sameInstance(client));
+        assertThat(DockerClientRegistry.getClient(new URI("http://otherhost:2375"), null), not(sameInstance(client)));
+    }
+
+    @Test
+    public void shouldCreateNewClientAfterClose() throws Exception {
+        DockerClient client = DockerClientRegistry.getClient(new URI("unix:///var/run/docker.sock"), null);
+        DockerClientRegistry.closeAll();
+
+        assertThat(DockerClientRegistry.getClient(new URI("unix:///var/run/docker.sock"), null), not(sameInstance(client)));
+    }
+
+    @Test
+    public void shouldRunCleanupBeforeClose() {
+        AtomicBoolean cleanedUp = new AtomicBoolean();
+        DockerClientRegistry.runBeforeClose(() -> cleanedUp.set(true));
+        DockerClientRegistry.closeAll();
+
+        assertThat(cleanedUp.get(), is(true));
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.docker;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.DockerClient.RemoveContainerParam;
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.ContainerCreation;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DockerContainerPoolTest {
+    private DockerClient client;
+    private ContainerConfig config;
+    private DockerContainerPool pool;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        client = mock(DockerClient.class);
+        ContainerCreation creation = mock(ContainerCreation.class);
+        when(creation.id()).thenReturn("c1");
+        when(client.createContainer(any(ContainerConfig.class))).thenReturn(creation);
+        config = ContainerConfig.builder().image("busybox").build();
+    }
+
+    @AfterEach
+    public void close() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    private DockerContainerPool createPool(DockerContainerPool.Mode mode) {
+        ImagePrefetcher prefetcher = new ImagePrefetcher("test", client, Runnable::run);
+        return new DockerContainerPool("test", client, config, mode, 0, prefetcher, 1, 1, 60000);
+    }
+
+    private static void waitForIdle(DockerContainerPool pool, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getIdleCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(pool.getIdleCount(), equalTo(count));
+    }
+
+    @Test
+    public void shouldMissWhenNotStarted() throws Exception {
+        pool = createPool(DockerContainerPool.Mode.PAUSE);
+
+        assertThat(pool.checkout(), nullValue());
+        verify(client, never()).createContainer(any(ContainerConfig.class));
+    }
+
+    @Test
+    public void shouldUnpausePausedContainer() throws Exception {
+        pool = createPool(DockerContainerPool.Mode.PAUSE);
+        pool.start();
+        waitForIdle(pool, 1);
+        verify(client).startContainer("c1");
+        verify(client).pauseContainer("c1");
+
+        assertThat(pool.checkout(), equalTo("c1"));
+        verify(client).unpauseContainer("c1");
+    }
+
+    @Test
+    public void shouldStartContainerCreatedFromSnapshot() throws Exception {
+        pool = createPool(DockerContainerPool.Mode.SNAPSHOT);
+        pool.start();
+        waitForIdle(pool, 1);
+        verify(client).stopContainer(eq("c1"), anyInt());
+        verify(client).commitContainer(eq("c1"), eq(DockerContainerPool.SNAPSHOT_REPOSITORY), anyString(), eq(config), anyString(), any());
+
+        assertThat(pool.checkout(), equalTo("c1"));
+        verify(client, never()).pauseContainer(anyString());
+    }
+
+    @Test
+    public void shouldRemoveRecycledContainer() throws Exception {
+        pool = createPool(DockerContainerPool.Mode.PAUSE);
+
+        pool.recycle("used");
+        verify(client, timeout(5000)).removeContainer(eq("used"), any(RemoveContainerParam.class), any(RemoveContainerParam.class));
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.docker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.ProgressHandler;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.ImageNotFoundException;
+import com.spotify.docker.client.messages.ImageInfo;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ImagePrefetcherTest {
+    private DockerClient client;
+    private List<Runnable> tasks;
+    private ImagePrefetcher prefetcher;
+
+    @BeforeEach
+    public void setup() {
+        client = mock(DockerClient.class);
+        tasks = new ArrayList<>();
+        prefetcher = new ImagePrefetcher("test", client, tasks::add);
+    }
+
+    private void runTasks() {
+        List<Runnable> toRun = new ArrayList<>(tasks);
+        tasks.clear();
+        toRun.forEach(Runnable::run);
+    }
+
+    @Test
+    public void shouldShareConcurrentPullsOfSameImage() throws Exception {
+        when(client.inspectImage("busybox")).thenThrow(new ImageNotFoundException("busybox"));
+
+        CompletableFuture<Void> prefetch = prefetcher.prefetch("busybox");
+        CompletableFuture<Void> pull = prefetcher.pull("busybox");
+        assertThat(pull, sameInstance(prefetch));
+        assertThat(tasks.size(), equalTo(1));
+
+        runTasks();
+        assertThat(prefetch.isDone(), is(true));
+        verify(client, times(1)).pull(eq("busybox"), any(ProgressHandler.class));
+        assertThat(prefetcher.getStats().getPulls(), equalTo(1L));
+        assertThat(prefetcher.getStats().getSharedPulls(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldNotPrefetchPresentImage() throws Exception {
+        when(client.inspectImage("busybox")).thenReturn(mock(ImageInfo.class));
+
+        prefetcher.prefetch("busybox");
+        runTasks();
+
+        verify(client, never()).pull(eq("busybox"), any(ProgressHandler.class));
+        assertThat(prefetcher.getStats().getSkipped(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldPullAgainAfterPullFinished() throws Exception {
+        prefetcher.pull("busybox");
+        runTasks();
+        prefetcher.pull("busybox");
+        runTasks();
+
+        verify(client, times(2)).pull(eq("busybox"), any(ProgressHandler.class));
+        assertThat(prefetcher.getStats().getSharedPulls(), equalTo(0L));
+    }
+
+    @Test
+    public void shouldForgetFailedPull() throws Exception {
+        doThrow(new DockerException("no such image")).when(client).pull(eq("nosuchimage"), any(ProgressHandler.class));
+
+        CompletableFuture<Void> failed = prefetcher.pull("nosuchimage");
+        runTasks();
+        assertThat(failed.isCompletedExceptionally(), is(true));
+        assertThat(prefetcher.getStats().getPullFailures(), equalTo(1L));
+
+        // nothing in progress, so nothing to wait for
+        prefetcher.awaitPull("nosuchimage");
+        assertThat(prefetcher.pull("nosuchimage"), is(not(sameInstance(failed))));
+    }
+
+    @Test
+    public void shouldRethrowPullFailure() throws Exception {
+        doThrow(new DockerException("no such image")).when(client).pull(eq("nosuchimage"), any(ProgressHandler.class));
+        prefetcher = new ImagePrefetcher("test", client, Runnable::run);
+
+        assertThrows(DockerException.class, () -> prefetcher.pullAndWait("nosuchimage"));
+    }
+}
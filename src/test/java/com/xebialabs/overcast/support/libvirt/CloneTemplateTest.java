@@ -0,0 +1,119 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.junit.jupiter.api.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.mockito.Mockito;
+
+import com.xebialabs.overcast.Resources;
+import com.xebialabs.overcast.support.libvirt.jdom.FilesystemXml;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasKey;
+import static org.mockito.Mockito.when;
+
+public class CloneTemplateTest {
+    private final Connect libvirt = Mockito.mock(Connect.class);
+
+    @Test
+    public void shouldRenderCloneXml() throws Exception {
+        CloneTemplate template = CloneTemplate.forDomain(domain("base-uuid", read("libvirt-xml/domain-with-filesystem.xml")));
+
+        Element metadata = Metadata.createCloningMetadata("domain-with-filesystem", new Date());
+        List<Filesystem> mappings = Collections.singletonList(new Filesystem("/mnt/other", "/vagrant", Filesystem.AccessMode.MAPPED, false));
+        String xml = template.render("clone&co", "2b1c0d6e-0000-4000-8000-000000000001", Collections.singletonList("/images/clone-01.qcow2"), metadata, mappings);
+
+        Document clone = JDomUtil.stringToDocument(xml);
+        Element root = clone.getRootElement();
+        assertThat(root.getChildText("name"), equalTo("clone&co"));
+        assertThat(root.getChildText("uuid"), equalTo("2b1c0d6e-0000-4000-8000-000000000001"));
+        assertThat(Metadata.fromXml(clone).getParentDomain(), equalTo("domain-with-filesystem"));
+        assertThat(root.getChild("devices").getChild("disk").getChild("source").getAttributeValue("file"), equalTo("/images/clone-01.qcow2"));
+        assertThat(root.getChild("devices").getChild("interface").getChild("mac"), nullValue());
+
+        Map<String, Filesystem> filesystems = FilesystemXml.getFilesystems(clone);
+        assertThat(filesystems, hasKey("/data"));
+        assertThat(filesystems.get("/vagrant").source, equalTo("/mnt/other"));
+        assertThat(filesystems.get("/vagrant").accessMode, equalTo(Filesystem.AccessMode.MAPPED));
+    }
+
+    @Test
+    public void shouldReuseTemplateUntilBaseDomainChanges() throws Exception {
+        String xml = read("libvirt-xml/simple-domain.xml");
+        CloneTemplate first = CloneTemplate.forDomain(domain("simple-uuid", xml));
+
+        assertThat(CloneTemplate.forDomain(domain("simple-uuid", xml)), sameInstance(first));
+        assertThat(CloneTemplate.forDomain(domain("simple-uuid", xml.replace("1048576", "2097152"))), not(sameInstance(first)));
+    }
+
+    @Test
+    public void shouldDropTemplateOfInvalidatedDomain() throws Exception {
+        String xml = read("libvirt-xml/simple-domain.xml");
+        CloneTemplate first = CloneTemplate.forDomain(domain("simple-uuid", xml));
+        String name = first.getBaseXml().getRootElement().getChildText("name");
+
+        CloneTemplate.invalidate(libvirt, name);
+        assertThat(CloneTemplate.forDomain(domain("simple-uuid", xml)), not(sameInstance(first)));
+    }
+
+    @Test
+    public void shouldKeepLimitedNumberOfTemplates() throws Exception {
+        String xml = read("libvirt-xml/simple-domain.xml");
+        CloneTemplate first = CloneTemplate.forDomain(domain("uuid-0", xml));
+        for (int i = 1; i <= CloneTemplate.MAX_TEMPLATES; i++) {
+            CloneTemplate.forDomain(domain("uuid-" + i, xml));
+        }
+
+        assertThat(CloneTemplate.forDomain(domain("uuid-0", xml)), not(sameInstance(first)));
+    }
+
+    @Test
+    public void shouldForgetTemplatesOfReleasedConnection() throws Exception {
+        String xml = read("libvirt-xml/simple-domain.xml");
+        CloneTemplate first = CloneTemplate.forDomain(domain("simple-uuid", xml));
+
+        CloneTemplate.release(libvirt);
+        assertThat(CloneTemplate.forDomain(domain("simple-uuid", xml)), not(sameInstance(first)));
+    }
+
+    private Domain domain(String uuid, String xml) throws Exception {
+        Domain domain = Mockito.mock(Domain.class);
+        when(domain.getConnect()).thenReturn(libvirt);
+        when(domain.getUUIDString()).thenReturn(uuid);
+        when(domain.getXMLDesc(0)).thenReturn(xml);
+        return domain;
+    }
+
+    private static String read(String resource) throws Exception {
+        return new String(Files.readAllBytes(Paths.get(Resources.getResource(resource).toURI())), StandardCharsets.UTF_8);
+    }
+}
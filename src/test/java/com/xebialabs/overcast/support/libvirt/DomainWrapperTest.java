@@ -0,0 +1,209 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo;
+import org.libvirt.DomainInfo.DomainState;
+import org.libvirt.Error;
+import org.libvirt.Error.ErrorNumber;
+import org.libvirt.LibvirtException;
+import org.libvirt.StoragePool;
+import org.libvirt.StorageVol;
+import org.libvirt.StorageVolInfo;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DomainWrapperTest {
+    private static final String DOMAIN_XML = "<domain type='kvm'>"
+        + "<name>base</name>"
+        + "<devices>"
+        + disk("vda", "/images/base-1.qcow2")
+        + disk("vdb", "/images/base-2.qcow2")
+        + disk("vdc", "/images/base-3.qcow2")
+        + "<disk type='block' device='cdrom'><driver name='qemu' type='raw'/><target dev='hdc' bus='ide'/></disk>"
+        + "</devices>"
+        + "</domain>";
+
+    private Connect libvirt;
+    private StoragePool pool;
+    private DomainWrapper base;
+
+    @BeforeEach
+    public void setUp() throws LibvirtException {
+        libvirt = Mockito.mock(Connect.class);
+        pool = Mockito.mock(StoragePool.class);
+        for (int i = 1; i <= 3; i++) {
+            StorageVol vol = volume("/images/base-" + i + ".qcow2");
+            when(vol.getInfo()).thenReturn(Mockito.mock(StorageVolInfo.class));
+            when(libvirt.storageVolLookupByPath("/images/base-" + i + ".qcow2")).thenReturn(vol);
+        }
+
+        Domain domain = Mockito.mock(Domain.class);
+        when(domain.getName()).thenReturn("base");
+        when(domain.getUUIDString()).thenReturn("5f0a6c52-8b1e-4c5e-9d0b-6a1f3c2e7d41");
+        when(domain.getXMLDesc(0)).thenReturn(DOMAIN_XML);
+        when(domain.getConnect()).thenReturn(libvirt);
+        base = new DomainWrapper(domain, JDomUtil.stringToDocument(DOMAIN_XML));
+    }
+
+    @Test
+    public void shouldCloneEveryDiskOntoItsOwnOverlay() throws LibvirtException {
+        for (int i = 1; i <= 3; i++) {
+            overlay(i);
+        }
+        Domain clone = Mockito.mock(Domain.class);
+        when(clone.getXMLDesc(0)).thenReturn("<domain type='kvm'><name>clone</name></domain>");
+        when(libvirt.domainDefineXML(anyString())).thenReturn(clone);
+
+        base.cloneWithBackingStore("clone");
+
+        ArgumentCaptor<String> xml = ArgumentCaptor.forClass(String.class);
+        verify(libvirt).domainDefineXML(xml.capture());
+        assertThat(xml.getValue(), containsString("/images/clone-01.qcow2"));
+        assertThat(xml.getValue(), containsString("/images/clone-02.qcow2"));
+        assertThat(xml.getValue(), containsString("/images/clone-03.qcow2"));
+    }
+
+    @Test
+    public void shouldRemoveCreatedOverlaysWhenOneFails() throws LibvirtException {
+        StorageVol first = overlay(1);
+        StorageVol third = overlay(3);
+        when(pool.storageVolCreateXML(contains("clone-02.qcow2"), eq(0))).thenThrow(LibvirtException.class);
+
+        assertThrows(LibvirtRuntimeException.class, () -> base.cloneWithBackingStore("clone"));
+
+        verify(first).delete(0);
+        verify(third).delete(0);
+        verify(libvirt, never()).domainDefineXML(anyString());
+    }
+
+    @Test
+    public void shouldCreateTransientCloneInOneCall() throws LibvirtException {
+        for (int i = 1; i <= 3; i++) {
+            overlay(i);
+        }
+        Domain clone = Mockito.mock(Domain.class);
+        when(clone.getXMLDesc(0)).thenReturn("<domain type='kvm'><name>clone</name></domain>");
+        when(libvirt.domainCreateXML(anyString(), eq(0))).thenReturn(clone);
+
+        base.cloneWithBackingStore("clone", Collections.emptyList(), true);
+
+        verify(libvirt, never()).domainDefineXML(anyString());
+        verify(clone, never()).create();
+    }
+
+    @Test
+    public void shouldDestroyTransientDomainWithoutUndefining() throws LibvirtException {
+        StorageVol overlay = overlay(1);
+        when(libvirt.storageVolLookupByPath("/images/clone-01.qcow2")).thenReturn(overlay);
+        Domain transientClone = Mockito.mock(Domain.class);
+        DomainInfo info = Mockito.mock(DomainInfo.class);
+        info.state = DomainState.VIR_DOMAIN_RUNNING;
+        when(transientClone.getInfo()).thenReturn(info);
+        when(transientClone.isPersistent()).thenReturn(0);
+        when(transientClone.getConnect()).thenReturn(libvirt);
+
+        String xml = "<domain type='kvm'><name>clone</name><devices>" + disk("vda", "/images/clone-01.qcow2") + "</devices></domain>";
+        new DomainWrapper(transientClone, JDomUtil.stringToDocument(xml)).destroyWithDisks();
+
+        verify(transientClone, never()).undefine(anyInt());
+        verify(transientClone).destroy();
+        verify(overlay).delete(0);
+    }
+
+    @Test
+    public void shouldRemoveOverlaysOfTransientCloneThatIsAlreadyGone() throws LibvirtException {
+        StorageVol overlay = overlay(1);
+        overlay(2);
+        overlay(3);
+        when(libvirt.storageVolLookupByPath("/images/clone-01.qcow2")).thenReturn(overlay);
+        Domain transientClone = Mockito.mock(Domain.class);
+        String xml = "<domain type='kvm'><name>clone</name><devices>" + disk("vda", "/images/clone-01.qcow2") + "</devices></domain>";
+        when(transientClone.getXMLDesc(0)).thenReturn(xml);
+        when(transientClone.getConnect()).thenReturn(libvirt);
+        when(libvirt.domainCreateXML(anyString(), eq(0))).thenReturn(transientClone);
+        DomainWrapper clone = base.cloneWithBackingStore("clone", Collections.emptyList(), true);
+
+        // the guest powered off, so libvirt forgot about the domain
+        LibvirtException noDomain = noSuchDomain();
+        when(transientClone.getInfo()).thenThrow(noDomain);
+        when(transientClone.isPersistent()).thenThrow(noDomain);
+        clone.destroyWithDisks();
+
+        verify(transientClone, never()).destroy();
+        verify(transientClone, never()).undefine(anyInt());
+        verify(overlay).delete(0);
+    }
+
+    @Test
+    public void shouldNotTreatVanishedPersistentDomainAsGone() throws LibvirtException {
+        Domain persistent = Mockito.mock(Domain.class);
+        when(persistent.getConnect()).thenReturn(libvirt);
+        LibvirtException noDomain = noSuchDomain();
+        when(persistent.getInfo()).thenThrow(noDomain);
+
+        DomainWrapper wrapper = new DomainWrapper(persistent, JDomUtil.stringToDocument("<domain type='kvm'><name>clone</name></domain>"));
+        assertThrows(LibvirtRuntimeException.class, wrapper::destroyWithDisks);
+    }
+
+    private static LibvirtException noSuchDomain() {
+        Error error = Mockito.mock(Error.class);
+        when(error.getCode()).thenReturn(ErrorNumber.VIR_ERR_NO_DOMAIN);
+        LibvirtException e = Mockito.mock(LibvirtException.class);
+        when(e.getError()).thenReturn(error);
+        return e;
+    }
+
+    private StorageVol overlay(int idx) throws LibvirtException {
+        String name = String.format("clone-%02d.qcow2", idx);
+        StorageVol vol = volume("/images/" + name);
+        when(pool.storageVolCreateXML(contains(name), eq(0))).thenReturn(vol);
+        return vol;
+    }
+
+    private StorageVol volume(String path) throws LibvirtException {
+        StorageVol vol = Mockito.mock(StorageVol.class);
+        when(vol.getName()).thenReturn(path.substring(path.lastIndexOf('/') + 1));
+        when(vol.getPath()).thenReturn(path);
+        when(vol.storagePoolLookupByVolume()).thenReturn(pool);
+        return vol;
+    }
+
+    private static String disk(String dev, String file) {
+        return "<disk type='file' device='disk'>"
+            + "<driver name='qemu' type='qcow2'/>"
+            + "<source file='" + file + "'/>"
+            + "<target dev='" + dev + "' bus='virtio'/>"
+            + "</disk>";
+    }
+}
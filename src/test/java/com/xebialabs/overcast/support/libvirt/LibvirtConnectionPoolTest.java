@@ -0,0 +1,157 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.mockito.Mockito;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LibvirtConnectionPoolTest {
+    private final List<Connect> opened = new ArrayList<>();
+    // every test uses its own URI, the pool is shared by the whole JVM
+    private final String uri = "test:///" + UUID.randomUUID();
+
+    @BeforeEach
+    public void setUp() {
+        LibvirtConnectionPool.connector = u -> {
+            Connect connect = Mockito.mock(Connect.class);
+            try {
+                when(connect.isAlive()).thenReturn(true);
+            } catch (LibvirtException e) {
+                throw new IllegalStateException(e);
+            }
+            synchronized (opened) {
+                opened.add(connect);
+            }
+            return connect;
+        };
+        LibvirtConnectionPool.idleTimeoutMillis = 200;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        LibvirtConnectionPool.connector = u -> LibvirtUtil.getConnection(u, false);
+        LibvirtConnectionPool.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(LibvirtConnectionPool.IDLE_TIMEOUT_SECONDS);
+    }
+
+    @Test
+    public void shouldShareOneConnectionPerUri() {
+        Connect first = LibvirtConnectionPool.acquire(uri);
+        Connect second = LibvirtConnectionPool.acquire(uri);
+        Connect other = LibvirtConnectionPool.acquire(uri + "-other");
+
+        assertThat(second, sameInstance(first));
+        assertThat(other, not(sameInstance(first)));
+        assertThat(opened.size(), equalTo(2));
+        LibvirtConnectionPool.release(uri);
+        LibvirtConnectionPool.release(uri);
+        LibvirtConnectionPool.release(uri + "-other");
+    }
+
+    @Test
+    public void shouldCloseConnectionOnlyWhenIdle() throws LibvirtException {
+        Connect connect = LibvirtConnectionPool.acquire(uri);
+        LibvirtConnectionPool.acquire(uri);
+        LibvirtConnectionPool.release(uri);
+
+        verify(connect, after(500).never()).close();
+
+        LibvirtConnectionPool.release(uri);
+        verify(connect, timeout(5000)).close();
+    }
+
+    @Test
+    public void shouldForgetStateOfClosedConnection() throws LibvirtException {
+        Connect connect = LibvirtConnectionPool.acquire(uri);
+        DomainStateWatcher watcher = DomainStateWatcher.forConnection(connect);
+        MetadataIndex metadataIndex = MetadataIndex.forConnection(connect);
+        VolumeIndex volumeIndex = VolumeIndex.forConnection(connect);
+        LibvirtConnectionPool.release(uri);
+        verify(connect, timeout(5000)).close();
+
+        assertThat(DomainStateWatcher.forConnection(connect), not(sameInstance(watcher)));
+        assertThat(MetadataIndex.forConnection(connect), not(sameInstance(metadataIndex)));
+        assertThat(VolumeIndex.forConnection(connect), not(sameInstance(volumeIndex)));
+        MetadataIndex.release(connect);
+        VolumeIndex.release(connect);
+        DomainStateWatcher.release(connect);
+    }
+
+    @Test
+    public void shouldKeepConnectionThatIsAcquiredAgainBeforeIdleClose() throws LibvirtException {
+        Connect connect = LibvirtConnectionPool.acquire(uri);
+        LibvirtConnectionPool.release(uri);
+        assertThat(LibvirtConnectionPool.acquire(uri), sameInstance(connect));
+
+        verify(connect, after(500).never()).close();
+        assertThat(opened.size(), equalTo(1));
+        LibvirtConnectionPool.release(uri);
+    }
+
+    @Test
+    public void shouldReopenIdleClosedConnection() throws LibvirtException {
+        Connect connect = LibvirtConnectionPool.acquire(uri);
+        LibvirtConnectionPool.release(uri);
+        verify(connect, timeout(5000)).close();
+
+        assertThat(LibvirtConnectionPool.acquire(uri), not(sameInstance(connect)));
+        assertThat(opened.size(), equalTo(2));
+        LibvirtConnectionPool.release(uri);
+    }
+
+    @Test
+    public void shouldReplaceDeadConnection() throws LibvirtException {
+        Connect dead = LibvirtConnectionPool.acquire(uri);
+        when(dead.isAlive()).thenReturn(false);
+
+        Connect current = LibvirtConnectionPool.revalidate(uri);
+        assertThat(current, not(sameInstance(dead)));
+        verify(dead).close();
+        assertThat(LibvirtConnectionPool.revalidate(uri), sameInstance(current));
+        verify(current, never()).close();
+        LibvirtConnectionPool.release(uri);
+    }
+
+    @Test
+    public void shouldRejectUseOfConnectionThatIsNotHeld() {
+        assertThrows(IllegalStateException.class, () -> LibvirtConnectionPool.release(uri));
+        assertThrows(IllegalStateException.class, () -> LibvirtConnectionPool.revalidate(uri));
+
+        LibvirtConnectionPool.acquire(uri);
+        LibvirtConnectionPool.release(uri);
+        assertThrows(IllegalStateException.class, () -> LibvirtConnectionPool.release(uri));
+        assertThrows(IllegalStateException.class, () -> LibvirtConnectionPool.revalidate(uri));
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.mockito.Mockito;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MetadataIndexTest {
+    private Connect libvirt;
+    private final Map<String, Domain> defined = new HashMap<>();
+
+    @BeforeEach
+    public void setUp() throws LibvirtException {
+        libvirt = Mockito.mock(Connect.class);
+        when(libvirt.listDefinedDomains()).thenAnswer(invocation -> defined.keySet().toArray(new String[0]));
+        when(libvirt.domainLookupByName(Mockito.anyString())).thenAnswer(invocation -> defined.get(invocation.<String>getArgument(0)));
+        when(libvirt.listDomains()).thenReturn(new int[0]);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        MetadataIndex.release(libvirt);
+        DomainStateWatcher.release(libvirt);
+    }
+
+    @Test
+    public void shouldIndexNewlyDefinedDomain() throws LibvirtException {
+        MetadataIndex index = MetadataIndex.forConnection(libvirt);
+        assertThat(index.findProvisionedDomain("base", "cmd", "sum"), nullValue());
+
+        Domain cached = define("cached-1", "uuid-1", provisioned("base", "cmd", "sum"));
+        assertThat(index.findProvisionedDomain("base", "cmd", "sum"), sameInstance(cached));
+    }
+
+    @Test
+    public void shouldRereadInvalidatedDomain() throws LibvirtException {
+        Domain cached = define("cached-1", "uuid-1", provisioned("base", "cmd", "old"));
+        MetadataIndex index = MetadataIndex.forConnection(libvirt);
+        assertThat(index.findProvisionedDomain("base", "cmd", "old"), sameInstance(cached));
+
+        when(cached.getXMLDesc(0)).thenReturn(xml("cached-1", provisioned("base", "cmd", "new")));
+        assertThat(index.findProvisionedDomain("base", "cmd", "new"), nullValue());
+        verify(cached, times(1)).getXMLDesc(0);
+
+        MetadataIndex.invalidate(libvirt, "cached-1");
+        assertThat(index.findProvisionedDomain("base", "cmd", "new"), sameInstance(cached));
+        assertThat(index.findProvisionedDomain("base", "cmd", "old"), nullValue());
+    }
+
+    @Test
+    public void shouldDropDomainRedefinedUnderNewUuid() throws LibvirtException {
+        define("cached-1", "uuid-1", provisioned("base", "cmd", "sum"));
+        MetadataIndex index = MetadataIndex.forConnection(libvirt);
+        index.findProvisionedDomain("base", "cmd", "sum");
+
+        Domain redefined = define("cached-1", "uuid-2", provisioned("base", "cmd", "sum"));
+        assertThat(index.findProvisionedDomain("base", "cmd", "sum"), nullValue());
+        // dropping it marked the domain as changed, so it is indexed again
+        assertThat(index.findProvisionedDomain("base", "cmd", "sum"), sameInstance(redefined));
+    }
+
+    @Test
+    public void shouldFindDomainsWithStaleChecksum() throws LibvirtException {
+        define("cached-1", "uuid-1", provisioned("base", "cmd", "old"));
+        define("cached-2", "uuid-2", provisioned("base", "cmd", "new"));
+        define("cached-3", "uuid-3", provisioned("base", "other-cmd", "old"));
+        define("cached-4", "uuid-4", provisioned("other-base", "cmd", "old"));
+        define("clone", "uuid-5", cloned("base"));
+        MetadataIndex index = MetadataIndex.forConnection(libvirt);
+
+        assertThat(index.findStaleDomains("base", "cmd", "new"), equalTo(Collections.singletonList("cached-1")));
+        assertThat(index.findStaleDomains("base", "cmd", "old"), equalTo(Collections.singletonList("cached-2")));
+    }
+
+    @Test
+    public void shouldFindRunningClonesById() throws LibvirtException {
+        Domain clone = running(1, "clone-1", cloned("base"));
+        running(2, "clone-2", cloned("other-base"));
+        running(3, "cached-1", provisioned("base", "cmd", "sum"));
+        when(libvirt.listDomains()).thenReturn(new int[] { 1, 2, 3 });
+        MetadataIndex index = MetadataIndex.forConnection(libvirt);
+
+        assertThat(index.findRunningClones("base"), equalTo(Collections.singletonList("clone-1")));
+        assertThat(index.findRunningClones("base"), equalTo(Collections.singletonList("clone-1")));
+        verify(clone, times(1)).getXMLDesc(0);
+
+        when(libvirt.listDomains()).thenReturn(new int[] { 2, 3 });
+        assertThat(index.findRunningClones("base"), equalTo(Collections.emptyList()));
+        assertThat(index.findRunningClones("other-base"), equalTo(asList("clone-2")));
+    }
+
+    private Domain define(String name, String uuid, String metadata) throws LibvirtException {
+        Domain domain = domain(name, uuid, metadata);
+        defined.put(name, domain);
+        return domain;
+    }
+
+    private Domain running(int id, String name, String metadata) throws LibvirtException {
+        Domain domain = domain(name, "uuid-" + name, metadata);
+        when(libvirt.domainLookupByID(id)).thenReturn(domain);
+        return domain;
+    }
+
+    private static Domain domain(String name, String uuid, String metadata) throws LibvirtException {
+        Domain domain = Mockito.mock(Domain.class);
+        when(domain.getName()).thenReturn(name);
+        when(domain.getUUIDString()).thenReturn(uuid);
+        when(domain.getXMLDesc(0)).thenReturn(xml(name, metadata));
+        return domain;
+    }
+
+    private static String xml(String name, String metadata) {
+        return "<domain type='kvm'><name>" + name + "</name><metadata>"
+            + "<overcast_metadata xmlns='" + Metadata.METADATA_NS_V1 + "'>" + metadata
+            + "<creation_time>1970-01-01T00:00:00Z</creation_time></overcast_metadata>"
+            + "</metadata></domain>";
+    }
+
+    private static String provisioned(String parent, String provisionedWith, String checksum) {
+        return cloned(parent) + "<provisioned_with>" + provisionedWith + "</provisioned_with>"
+            + "<provisioned_checksum>" + checksum + "</provisioned_checksum>";
+    }
+
+    private static String cloned(String parent) {
+        return "<parent_domain>" + parent + "</parent_domain>";
+    }
+}
@@ -17,6 +17,9 @@ package com.xebialabs.overcast.support.libvirt;
 
 import org.jdom2.Document;
 import org.junit.jupiter.api.Test;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.mockito.Mockito;
 
 import java.util.Date;
 
@@ -24,6 +27,7 @@ import static com.xebialabs.overcast.support.libvirt.JDomUtil.documentToRawStrin
 import static com.xebialabs.overcast.support.libvirt.JDomUtil.stringToDocument;
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.when;
 
 public class MetadataTest {
     private static final String XML_WITHOUT_METADATA = "<domain type='kvm'>"
@@ -152,4 +156,28 @@ public class MetadataTest {
         assertThat(metadata.getProvisionedChecksum(), equalTo("expire2"));
     }
 
+    @Test
+    public void shouldParseMetadataAsReturnedByLibvirt() {
+        // virDomainGetMetadata returns the element with the prefix it was stored with
+        String fragment = "<overcast:overcast_metadata xmlns:overcast=\"http://www.xebialabs.com/overcast/metadata/v1\">"
+                + "<overcast:parent_domain>basedom</overcast:parent_domain>"
+                + "<overcast:provisioned_with>provcmd</overcast:provisioned_with>"
+                + "<overcast:provisioned_checksum>expire</overcast:provisioned_checksum>"
+                + "<overcast:creation_time>1970-01-01T00:00:00Z</overcast:creation_time>"
+                + "</overcast:overcast_metadata>";
+        Metadata md = Metadata.fromElement(stringToDocument(fragment).getRootElement());
+        assertThat(md.getParentDomain(), equalTo("basedom"));
+        assertThat(md.getProvisionedWith(), equalTo("provcmd"));
+        assertThat(md.getProvisionedChecksum(), equalTo("expire"));
+    }
+
+    @Test
+    public void shouldReadMetadataFromDomainXmlWithoutNativeMetadata() throws LibvirtException {
+        Domain domain = Mockito.mock(Domain.class);
+        when(domain.getXMLDesc(0)).thenReturn(XML_WITH_METADATA);
+
+        Metadata md = Metadata.fromDomain(domain);
+        assertThat(md.getParentDomain(), equalTo("basedom"));
+        assertThat(md.isProvisioned(), equalTo(true));
+    }
 }
@@ -0,0 +1,115 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ProvisioningLeaseTest {
+    private static final String LEASE = ProvisioningLease.leaseName("base", "provision.sh", "tag");
+    private static final String LEASE_UUID = "2b8f1c3e-5d7a-4e9b-8c1f-0a3d5e7b9c21";
+
+    private Connect libvirt;
+    private Domain existing;
+
+    @BeforeEach
+    public void setUp() throws LibvirtException {
+        libvirt = Mockito.mock(Connect.class);
+        existing = Mockito.mock(Domain.class);
+        when(existing.getUUIDString()).thenReturn(LEASE_UUID);
+        when(libvirt.domainLookupByUUIDString(LEASE_UUID)).thenReturn(existing);
+    }
+
+    @Test
+    public void shouldDeriveLeaseNameFromKey() {
+        assertThat(LEASE, equalTo(ProvisioningLease.leaseName("base", "provision.sh", "tag")));
+        assertThat(LEASE, not(equalTo(ProvisioningLease.leaseName("base", "provision.sh", "other-tag"))));
+        assertThat(LEASE, not(equalTo(ProvisioningLease.leaseName("bas", "eprovision.sh", "tag"))));
+    }
+
+    @Test
+    public void shouldDefineLeaseDomainAndUndefineItOnClose() throws LibvirtException {
+        Domain defined = Mockito.mock(Domain.class);
+        when(libvirt.domainDefineXML(anyString())).thenReturn(defined);
+        when(libvirt.domainLookupByUUIDString(anyString())).thenReturn(defined);
+
+        ProvisioningLease lease = ProvisioningLease.tryAcquire(libvirt, LEASE, "kvm", 60_000);
+        assertThat(lease, notNullValue());
+
+        ArgumentCaptor<String> xml = ArgumentCaptor.forClass(String.class);
+        verify(libvirt).domainDefineXML(xml.capture());
+        assertThat(xml.getValue(), containsString("<domain type='kvm'>"));
+        assertThat(xml.getValue(), containsString("<name>" + LEASE + "</name>"));
+        assertThat(xml.getValue(), containsString(ProvisioningLease.LEASE_NS_V1));
+
+        lease.close();
+        verify(defined).undefine();
+    }
+
+    @Test
+    public void shouldNotAcquireLeaseHeldByAnotherProcess() throws LibvirtException {
+        leaseDefinedBy("build-1:42", System.currentTimeMillis() + 60_000);
+
+        assertThat(ProvisioningLease.tryAcquire(libvirt, LEASE, "kvm", 60_000), nullValue());
+        verify(existing, never()).undefine();
+    }
+
+    @Test
+    public void shouldRemoveExpiredLease() throws LibvirtException {
+        leaseDefinedBy("build-1:42", System.currentTimeMillis() - 1);
+
+        assertThat(ProvisioningLease.tryAcquire(libvirt, LEASE, "kvm", 60_000), nullValue());
+        verify(existing).undefine();
+    }
+
+    @Test
+    public void shouldNotRemoveDomainThatIsNotALease() throws LibvirtException {
+        when(libvirt.domainDefineXML(anyString())).thenThrow(LibvirtException.class);
+        when(libvirt.domainLookupByName(LEASE)).thenReturn(existing);
+        when(existing.getXMLDesc(0)).thenReturn("<domain type='kvm'><name>" + LEASE + "</name></domain>");
+
+        assertThat(ProvisioningLease.tryAcquire(libvirt, LEASE, "kvm", 60_000), nullValue());
+        verify(existing, never()).undefine();
+    }
+
+    private void leaseDefinedBy(String holder, long expires) throws LibvirtException {
+        when(libvirt.domainDefineXML(anyString())).thenThrow(LibvirtException.class);
+        when(libvirt.domainLookupByName(LEASE)).thenReturn(existing);
+        when(existing.getXMLDesc(0)).thenReturn("<domain type='kvm'>"
+            + "<name>" + LEASE + "</name>"
+            + "<metadata><lease:overcast_lease xmlns:lease='" + ProvisioningLease.LEASE_NS_V1 + "'>"
+            + "<lease:holder>" + holder + "</lease:holder>"
+            + "<lease:expires>" + expires + "</lease:expires>"
+            + "</lease:overcast_lease></metadata>"
+            + "</domain>");
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.libvirt;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.libvirt.StoragePool;
+import org.libvirt.StorageVol;
+import org.mockito.Mockito;
+
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class VolumeIndexTest {
+    private Connect libvirt;
+    private StoragePool pool;
+
+    @BeforeEach
+    public void setUp() throws LibvirtException {
+        libvirt = Mockito.mock(Connect.class);
+        pool = Mockito.mock(StoragePool.class);
+        when(libvirt.listStoragePools()).thenReturn(new String[] {"default"});
+        when(libvirt.storagePoolLookupByName("default")).thenReturn(pool);
+        when(pool.getName()).thenReturn("default");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        VolumeIndex.release(libvirt);
+    }
+
+    @Test
+    public void shouldLookUpVolumeByPathFirst() throws LibvirtException {
+        StorageVol vol = volume("a.qcow2");
+        when(libvirt.storageVolLookupByPath("/images/a.qcow2")).thenReturn(vol);
+
+        assertThat(VolumeIndex.forConnection(libvirt).findVolume("/images/a.qcow2"), sameInstance(vol));
+        verify(libvirt, never()).listStoragePools();
+    }
+
+    @Test
+    public void shouldListPoolsOnceForVolumesUnknownToLibvirt() throws LibvirtException {
+        StorageVol a = volume("a.qcow2");
+        StorageVol b = volume("b.qcow2");
+        when(pool.listVolumes()).thenReturn(new String[] {"a.qcow2", "b.qcow2"});
+
+        VolumeIndex index = VolumeIndex.forConnection(libvirt);
+        assertThat(index.findVolume("/images/a.qcow2"), sameInstance(a));
+        assertThat(index.findVolume("/images/b.qcow2"), sameInstance(b));
+        assertThat(index.findVolume("/images/a.qcow2"), sameInstance(a));
+
+        verify(libvirt, times(1)).listStoragePools();
+    }
+
+    @Test
+    public void shouldRebuildIndexWhenPathIsNotIndexed() throws LibvirtException {
+        volume("a.qcow2");
+        when(pool.listVolumes()).thenReturn(new String[] {"a.qcow2"});
+
+        VolumeIndex index = VolumeIndex.forConnection(libvirt);
+        assertThat(index.findVolume("/images/c.qcow2"), nullValue());
+
+        StorageVol c = volume("c.qcow2");
+        when(pool.listVolumes()).thenReturn(new String[] {"a.qcow2", "c.qcow2"});
+        assertThat(index.findVolume("/images/c.qcow2"), sameInstance(c));
+
+        verify(libvirt, times(2)).listStoragePools();
+    }
+
+    @Test
+    public void shouldTrackVolumesCreatedAndDeletedByOvercast() throws LibvirtException {
+        when(pool.listVolumes()).thenReturn(new String[] {});
+        VolumeIndex index = VolumeIndex.forConnection(libvirt);
+        assertThat(index.findVolume("/images/a.qcow2"), nullValue());
+
+        StorageVol a = volume("a.qcow2");
+        when(a.storagePoolLookupByVolume()).thenReturn(pool);
+        VolumeIndex.added(libvirt, a);
+        assertThat(index.findVolume("/images/a.qcow2"), sameInstance(a));
+        verify(libvirt, times(1)).listStoragePools();
+
+        VolumeIndex.removed(libvirt, "/images/a.qcow2");
+        assertThat(index.findVolume("/images/a.qcow2"), nullValue());
+        verify(libvirt, times(2)).listStoragePools();
+    }
+
+    private StorageVol volume(String name) throws LibvirtException {
+        StorageVol vol = Mockito.mock(StorageVol.class);
+        when(vol.getName()).thenReturn(name);
+        when(vol.getPath()).thenReturn("/images/" + name);
+        when(pool.storageVolLookupByName(name)).thenReturn(vol);
+        return vol;
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.DirectConnection;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ForwardingEngineTest {
+    private ForwardingEngine engine;
+    private SSHClient client;
+    // what the channel opened last runs when sshj handled a message for it
+    private volatile Runnable onEvent;
+
+    /** Stands in for the input stream of an SSH channel, which never blocks when data is available. */
+    private class RemoteInput extends InputStream {
+        private final BlockingQueue<Integer> bytes = new LinkedBlockingQueue<>();
+
+        void send(String data) {
+            for (byte b : data.getBytes(StandardCharsets.UTF_8)) {
+                bytes.add(b & 0xff);
+            }
+            onEvent.run();
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return bytes.take();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public int available() {
+            return bytes.size();
+        }
+    }
+
+    @BeforeEach
+    public void setup() throws IOException {
+        engine = new ForwardingEngine(1, 1, (sshClient, remoteHost, remotePort, onEvent) -> {
+            this.onEvent = onEvent;
+            return sshClient.newDirectConnection(remoteHost, remotePort);
+        });
+        client = mock(SSHClient.class);
+    }
+
+    private DirectConnection mockRemote(InputStream in, ByteArrayOutputStream out, long window) throws IOException {
+        DirectConnection remote = mock(DirectConnection.class);
+        when(remote.getInputStream()).thenReturn(in);
+        when(remote.getOutputStream()).thenReturn(out);
+        when(remote.isOpen()).thenReturn(true);
+        when(remote.getRemoteWinSize()).thenReturn(window);
+        when(client.newDirectConnection("localhost", 22)).thenReturn(remote);
+        return remote;
+    }
+
+    private static String read(Socket socket, int length) throws IOException {
+        byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) {
+            read += socket.getInputStream().read(data, read, length - read);
+        }
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(condition.getAsBoolean(), is(true));
+    }
+
+    @Test
+    public void shouldForwardBothWays() throws Exception {
+        RemoteInput remoteInput = new RemoteInput();
+        ByteArrayOutputStream remoteOutput = new ByteArrayOutputStream();
+        mockRemote(remoteInput, remoteOutput, ForwardingEngine.BUFFER_SIZE);
+
+        Tunnel tunnel = engine.open("test", client, new InetSocketAddress("localhost", 0), "localhost", 22);
+        try (Socket socket = new Socket("localhost", tunnel.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("ping".getBytes(StandardCharsets.UTF_8));
+            waitFor(() -> remoteOutput.toString().equals("ping"));
+
+            remoteInput.send("pong");
+            assertThat(read(socket, 4), equalTo("pong"));
+            assertThat(tunnel.getStats().getActiveConnections(), equalTo(1L));
+        }
+
+        TunnelStats stats = tunnel.getStats();
+        assertThat(stats.getBytesOut(), equalTo(4L));
+        assertThat(stats.getBytesIn(), equalTo(4L));
+        assertThat(stats.getConnections(), equalTo(1L));
+        tunnel.close();
+    }
+
+    @Test
+    public void shouldWriteNoMoreThanTheRemoteWindowAllows() throws Exception {
+        RemoteInput remoteInput = new RemoteInput();
+        ByteArrayOutputStream remoteOutput = new ByteArrayOutputStream();
+        AtomicLong window = new AtomicLong(2);
+        DirectConnection remote = mockRemote(remoteInput, remoteOutput, 0);
+        when(remote.getRemoteWinSize()).thenAnswer(invocation -> window.get());
+
+        Tunnel tunnel = engine.open("test", client, new InetSocketAddress("localhost", 0), "localhost", 22);
+        try (Socket socket = new Socket("localhost", tunnel.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("ping".getBytes(StandardCharsets.UTF_8));
+            waitFor(() -> remoteOutput.toString().equals("pi"));
+
+            // the worker keeps serving the other direction while the window is exhausted
+            window.set(0);
+            remoteInput.send("pong");
+            assertThat(read(socket, 4), equalTo("pong"));
+            assertThat(remoteOutput.toString(), equalTo("pi"));
+
+            // a window adjustment lets the rest through
+            window.set(ForwardingEngine.BUFFER_SIZE);
+            onEvent.run();
+            waitFor(() -> remoteOutput.toString().equals("ping"));
+        }
+        assertThat(tunnel.getStats().getBytesOut(), equalTo(4L));
+        tunnel.close();
+    }
+
+    @Test
+    public void shouldForwardRemoteDataOfIdleConnectionsRightAway() throws Exception {
+        RemoteInput remoteInput = new RemoteInput();
+        mockRemote(remoteInput, new ByteArrayOutputStream(), ForwardingEngine.BUFFER_SIZE);
+
+        Tunnel tunnel = engine.open("test", client, new InetSocketAddress("localhost", 0), "localhost", 22);
+        try (Socket socket = new Socket("localhost", tunnel.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            remoteInput.send("warmup");
+            assertThat(read(socket, 6), equalTo("warmup"));
+
+            long[] latencies = new long[20];
+            for (int i = 0; i < latencies.length; i++) {
+                // long enough for a polling worker to back off
+                Thread.sleep(50);
+                long start = System.nanoTime();
+                remoteInput.send("x");
+                assertThat(read(socket, 1), equalTo("x"));
+                latencies[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(latencies);
+            assertThat(TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length / 2]), lessThan(3L));
+        }
+        tunnel.close();
+    }
+
+    @Test
+    public void shouldCloseLocalConnectionWhenRemoteConnectFails() throws Exception {
+        when(client.newDirectConnection("localhost", 22)).thenThrow(new ConnectionException("refused"));
+
+        Tunnel tunnel = engine.open("test", client, new InetSocketAddress("localhost", 0), "localhost", 22);
+        try (Socket socket = new Socket("localhost", tunnel.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            assertThat(socket.getInputStream().read(), equalTo(-1));
+        }
+        waitFor(() -> tunnel.getStats().getActiveConnections() == 0);
+        assertThat(tunnel.getStats().getConnectFailures(), equalTo(1L));
+        tunnel.close();
+    }
+
+    @Test
+    public void shouldBindDistinctEphemeralPorts() throws Exception {
+        Tunnel first = engine.open("first", client, new InetSocketAddress("localhost", 0), "localhost", 22);
+        Tunnel second = engine.open("second", client, new InetSocketAddress("localhost", 0), "localhost", 22);
+
+        assertThat(first.getLocalPort(), not(equalTo(0)));
+        assertThat(second.getLocalPort(), not(equalTo(first.getLocalPort())));
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void shouldForgetClosedTunnel() throws Exception {
+        Tunnel tunnel = engine.open("test", client, new InetSocketAddress("localhost", 0), "localhost", 22);
+        assertThat(engine.getTunnels().size(), equalTo(1));
+
+        tunnel.close();
+        assertThat(tunnel.isClosed(), is(true));
+        assertThat(engine.getTunnels().size(), equalTo(0));
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.ssh;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.schmizz.sshj.SSHClient;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SshSessionRegistryTest {
+    private final List<SSHClient> created = new ArrayList<>();
+
+    @BeforeEach
+    public void setup() {
+        SshSessionRegistry.clientFactory = config -> {
+            SSHClient client = mock(SSHClient.class);
+            when(client.isConnected()).thenReturn(true);
+            when(client.isAuthenticated()).thenReturn(true);
+            created.add(client);
+            return client;
+        };
+    }
+
+    @AfterEach
+    public void restore() {
+        SshSessionRegistry.clientFactory = SshSessionRegistry::newClient;
+    }
+
+    private static SshSessionConfig config(String host, String username) {
+        SshSessionConfig config = new SshSessionConfig(host, 22, username);
+        config.setPassword("secret");
+        return config;
+    }
+
+    @Test
+    public void shouldShareSessionPerHostPortAndUser() throws Exception {
+        SSHClient first = SshSessionRegistry.acquire(config("jumpbox", "alice"));
+        SSHClient second = SshSessionRegistry.acquire(config("jumpbox", "alice"));
+        SSHClient other = SshSessionRegistry.acquire(config("jumpbox", "bob"));
+
+        assertThat(second, sameInstance(first));
+        assertThat(other, not(sameInstance(first)));
+        assertThat(created.size(), equalTo(2));
+        verify(first).authPassword("alice", "secret");
+
+        SshSessionRegistry.release(config("jumpbox", "alice"));
+        verify(first, never()).disconnect();
+        SshSessionRegistry.release(config("jumpbox", "alice"));
+        verify(first).disconnect();
+        SshSessionRegistry.release(config("jumpbox", "bob"));
+    }
+
+    @Test
+    public void shouldReconnectLostSession() throws Exception {
+        SSHClient first = SshSessionRegistry.acquire(config("lost", "alice"));
+        when(first.isConnected()).thenReturn(false);
+
+        SSHClient second = SshSessionRegistry.acquire(config("lost", "alice"));
+        assertThat(second, not(sameInstance(first)));
+
+        SshSessionRegistry.release(config("lost", "alice"));
+        SshSessionRegistry.release(config("lost", "alice"));
+        verify(second).disconnect();
+    }
+
+    @Test
+    public void shouldReplaceLostSessionForTunnels() throws Exception {
+        SSHClient first = SshSessionRegistry.acquire(config("tunneled", "alice"));
+        assertThat(SshSessionRegistry.current(config("tunneled", "alice")), sameInstance(first));
+
+        when(first.isConnected()).thenReturn(false);
+        SSHClient second = SshSessionRegistry.current(config("tunneled", "alice"));
+        assertThat(second, not(sameInstance(first)));
+        verify(first).disconnect();
+
+        SshSessionRegistry.release(config("tunneled", "alice"));
+        verify(second).disconnect();
+        assertThrows(IllegalStateException.class, () -> SshSessionRegistry.current(config("tunneled", "alice")));
+    }
+
+    @Test
+    public void shouldConfigureKeepAliveAndCompressionBeforeConnecting() {
+        SshSessionConfig config = new SshSessionConfig("remote", 22, "alice");
+        config.setCompression(true);
+
+        SSHClient client = SshSessionRegistry.newClient(config);
+        assertThat(client.getConnection().getKeepAlive().getKeepAliveInterval(), equalTo(SshSessionConfig.DEFAULT_KEEPALIVE_INTERVAL_SECONDS));
+        assertThat(client.getTransport().getConfig().getCompressionFactories().get(0).getName(), equalTo("zlib@openssh.com"));
+    }
+
+    @Test
+    public void shouldAuthenticateWithKey() throws Exception {
+        SshSessionConfig config = new SshSessionConfig("keyed", 2222, "alice");
+        config.setPrivateKeyFile("/home/alice/.ssh/id_rsa");
+
+        SSHClient client = SshSessionRegistry.acquire(config);
+        verify(client).connect("keyed", 2222);
+        verify(client).loadKeys("/home/alice/.ssh/id_rsa", (String) null);
+        verify(client, never()).authPassword("alice", (String) null);
+        SshSessionRegistry.release(config);
+    }
+
+    @Test
+    public void shouldRequirePasswordOrKey() {
+        assertThrows(IllegalArgumentException.class, () -> SshSessionRegistry.acquire(new SshSessionConfig("nokey", 22, "alice")));
+    }
+}
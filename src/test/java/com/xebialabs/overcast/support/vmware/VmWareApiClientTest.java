@@ -0,0 +1,88 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.vmware;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class VmWareApiClientTest {
+    private HttpServer server;
+    private VmWareApiClient client;
+    private volatile int sessionStatus;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/session", exchange -> {
+            if (sessionStatus == 200) {
+                respond(exchange, 200, "\"session-1\"");
+            } else {
+                respond(exchange, sessionStatus, "{\"error_type\":\"UNAUTHENTICATED\",\"messages\":[]}");
+            }
+        });
+        server.start();
+        client = new VmWareApiClient("http://localhost:" + server.getAddress().getPort(), false, false, "TLS", 5);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldCreateSession() {
+        sessionStatus = 200;
+
+        assertThat(client.createSession("hash"), equalTo("session-1"));
+    }
+
+    @Test
+    public void shouldFailToCreateSessionWithBadCredentials() {
+        sessionStatus = 401;
+
+        VmWareAuthenticationException e = assertThrows(VmWareAuthenticationException.class, () -> client.createSession("hash"));
+        assertThat(e.getMessage(), containsString("401"));
+    }
+
+    @Test
+    public void shouldFailToCreateSessionWhenVCenterFails() {
+        sessionStatus = 503;
+
+        assertThrows(VmWareAuthenticationException.class, () -> client.createSession("hash"));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
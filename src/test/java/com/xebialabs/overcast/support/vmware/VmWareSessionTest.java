@@ -0,0 +1,111 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.support.vmware;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class VmWareSessionTest {
+    private VmWareApiClient client;
+    private VmWareSession session;
+    private final List<String> calledWith = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        client = Mockito.mock(VmWareApiClient.class);
+        session = new VmWareSession(client, "hash");
+    }
+
+    /** A call that vCenter rejects when made with the expired session. */
+    private CompletableFuture<String> rejecting(String sessionId, String expired) {
+        calledWith.add(sessionId);
+        if (sessionId.equals(expired)) {
+            return failed(new VmWareSessionExpiredException("expired"));
+        }
+        return CompletableFuture.completedFuture("result with " + sessionId);
+    }
+
+    @Test
+    public void shouldRenewExpiredSessionAndCallAgain() {
+        when(client.createSessionAsync("hash")).thenReturn(CompletableFuture.completedFuture("s1"), CompletableFuture.completedFuture("s2"));
+
+        String result = session.call(id -> rejecting(id, "s1")).join();
+
+        assertThat(result, equalTo("result with s2"));
+        assertThat(calledWith, equalTo(List.of("s1", "s2")));
+        assertThat(session.getSessionId(), equalTo("s2"));
+        verify(client, times(2)).createSessionAsync("hash");
+    }
+
+    @Test
+    public void shouldRenewOnceForConcurrentCallersOfExpiredSession() {
+        CompletableFuture<String> first = new CompletableFuture<>();
+        when(client.createSessionAsync("hash")).thenReturn(first, CompletableFuture.completedFuture("s2"), CompletableFuture.completedFuture("s3"));
+
+        CompletableFuture<String> one = session.call(id -> rejecting(id, "s1"));
+        CompletableFuture<String> other = session.call(id -> rejecting(id, "s1"));
+        // both calls were made with the same session, which turns out to be expired
+        first.complete("s1");
+
+        assertThat(one.join(), equalTo("result with s2"));
+        assertThat(other.join(), equalTo("result with s2"));
+        verify(client, times(2)).createSessionAsync("hash");
+    }
+
+    @Test
+    public void shouldNotRetryOtherFailures() {
+        when(client.createSessionAsync("hash")).thenReturn(CompletableFuture.completedFuture("s1"));
+
+        CompletableFuture<String> result = session.call(id -> {
+            calledWith.add(id);
+            return failed(new IllegalStateException("not found"));
+        });
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> VmWareApiClient.await(result));
+        assertThat(e, instanceOf(IllegalStateException.class));
+        assertThat(calledWith, equalTo(List.of("s1")));
+        verify(client, times(1)).createSessionAsync("hash");
+    }
+
+    @Test
+    public void shouldFailCallWhenSessionCannotBeCreated() {
+        when(client.createSessionAsync("hash")).thenReturn(failed(new VmWareAuthenticationException("status 401")));
+
+        CompletableFuture<String> result = session.call(id -> rejecting(id, null));
+
+        assertThrows(VmWareAuthenticationException.class, () -> VmWareApiClient.await(result));
+        assertThat(calledWith.isEmpty(), equalTo(true));
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(t);
+        return f;
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.util;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class RetryCommandTest {
+
+    private static final Backoff NO_DELAY = Backoff.fixed(Duration.ZERO);
+
+    @Test
+    public void shouldRetryUntilSuccess() {
+        AtomicInteger calls = new AtomicInteger();
+        RetryCommand<Integer> command = new RetryCommand<Integer>().withBackoff(NO_DELAY);
+
+        int result = command.run(() -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new IllegalStateException("not yet");
+            }
+            return calls.get();
+        });
+
+        assertThat(result, is(3));
+        assertThat(command.getAttempts().size(), is(3));
+        assertThat(command.getAttempts().get(0).getFailure(), instanceOf(IllegalStateException.class));
+    }
+
+    @Test
+    public void shouldRetryUntilResultIsAccepted() {
+        AtomicInteger calls = new AtomicInteger();
+
+        int result = new RetryCommand<Integer>().withBackoff(NO_DELAY).until(i -> i >= 5).run(calls::incrementAndGet);
+
+        assertThat(result, is(5));
+    }
+
+    @Test
+    public void shouldGiveUpAfterMaxAttempts() {
+        AtomicInteger calls = new AtomicInteger();
+        RetryCommand<Void> command = new RetryCommand<Void>().withBackoff(NO_DELAY).withMaxAttempts(4);
+
+        RetryException e = assertThrows(RetryException.class, () -> command.run(() -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("never");
+        }));
+
+        assertThat(calls.get(), is(4));
+        assertThat(e.getAttempts().size(), is(4));
+        assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+    }
+
+    @Test
+    public void shouldGiveUpAtDeadline() {
+        RetryCommand<Boolean> command = new RetryCommand<Boolean>()
+            .withTimeout(Duration.ofMillis(200))
+            .withBackoff(Backoff.fixed(Duration.ofMillis(30)))
+            .until(b -> b);
+
+        long start = System.currentTimeMillis();
+        assertThrows(RetryException.class, () -> command.run(() -> false));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertThat(elapsed >= 200 && elapsed < 2000, is(true));
+    }
+
+    @Test
+    public void shouldOnlyRetryMatchingExceptions() {
+        AtomicInteger calls = new AtomicInteger();
+        RetryCommand<Void> command = new RetryCommand<Void>().withBackoff(NO_DELAY).retryOn(ConnectException.class);
+
+        assertThrows(IOException.class, () -> command.call(() -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new ConnectException("refused");
+            }
+            throw new IOException("broken");
+        }));
+
+        assertThat(calls.get(), is(3));
+    }
+
+    @Test
+    public void shouldRetryAsynchronously() {
+        AtomicInteger calls = new AtomicInteger();
+
+        CompletableFuture<Integer> result = new RetryCommand<Integer>().withBackoff(Backoff.fixed(Duration.ofMillis(10))).runAsync(() -> {
+            CompletableFuture<Integer> f = new CompletableFuture<>();
+            if (calls.incrementAndGet() < 3) {
+                f.completeExceptionally(new IllegalStateException("not yet"));
+            } else {
+                f.complete(calls.get());
+            }
+            return f;
+        });
+
+        assertThat(RetryCommand.await(result), equalTo(3));
+    }
+
+    @Test
+    public void shouldGrowExponentialBackoffUpToMax() {
+        Backoff backoff = Backoff.exponential(Duration.ofMillis(100), Duration.ofSeconds(1), 0);
+
+        assertThat(backoff.delayMillis(1), is(100L));
+        assertThat(backoff.delayMillis(2), is(200L));
+        assertThat(backoff.delayMillis(4), is(800L));
+        assertThat(backoff.delayMillis(5), is(1000L));
+        assertThat(backoff.delayMillis(100), is(1000L));
+    }
+}
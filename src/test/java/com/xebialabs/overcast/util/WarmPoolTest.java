@@ -0,0 +1,105 @@
+/**
+ *    Copyright 2012-2021 Digital.ai
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.xebialabs.overcast.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class WarmPoolTest {
+
+    private static class CountingFactory implements WarmPool.Factory<Integer> {
+        private final AtomicInteger created = new AtomicInteger();
+        private final AtomicInteger destroyed = new AtomicInteger();
+
+        @Override
+        public Integer create() {
+            return created.incrementAndGet();
+        }
+
+        @Override
+        public void destroy(Integer item) {
+            destroyed.incrementAndGet();
+        }
+    }
+
+    private static void waitForIdle(WarmPool<?> pool, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getIdleCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(pool.getIdleCount(), equalTo(count));
+    }
+
+    @Test
+    public void shouldMissWhenNotStarted() {
+        CountingFactory factory = new CountingFactory();
+        WarmPool<Integer> pool = new WarmPool<>("test", factory, 1, 2, 60000);
+
+        assertThat(pool.checkout(), nullValue());
+        assertThat(pool.getStats().getMisses(), equalTo(1L));
+        assertThat(factory.created.get(), equalTo(0));
+        pool.close();
+    }
+
+    @Test
+    public void shouldFillToHighWatermarkAndHandOutItems() throws InterruptedException {
+        CountingFactory factory = new CountingFactory();
+        WarmPool<Integer> pool = new WarmPool<>("test", factory, 1, 2, 60000);
+        pool.start();
+        waitForIdle(pool, 2);
+
+        assertThat(pool.checkout(), notNullValue());
+        assertThat(pool.getStats().getHits(), equalTo(1L));
+        assertThat(pool.getIdleCount(), equalTo(1));
+
+        // dropping below the low watermark refills up to the high watermark
+        assertThat(pool.checkout(), notNullValue());
+        waitForIdle(pool, 2);
+        assertThat(factory.created.get(), equalTo(4));
+        assertThat(pool.getStats().getRefills(), equalTo(4L));
+        pool.close();
+    }
+
+    @Test
+    public void shouldEvictExpiredItems() throws InterruptedException {
+        CountingFactory factory = new CountingFactory();
+        WarmPool<Integer> pool = new WarmPool<>("test", factory, 0, 1, 1);
+        pool.start();
+        Thread.sleep(50);
+
+        assertThat(pool.getStats().getEvictions() > 0, equalTo(true));
+        assertThat(factory.destroyed.get() > 0, equalTo(true));
+        pool.close();
+    }
+
+    @Test
+    public void shouldDestroyIdleItemsOnClose() throws InterruptedException {
+        CountingFactory factory = new CountingFactory();
+        WarmPool<Integer> pool = new WarmPool<>("test", factory, 1, 3, 60000);
+        pool.start();
+        waitForIdle(pool, 3);
+
+        pool.close();
+        assertThat(factory.destroyed.get(), equalTo(3));
+        assertThrows(IllegalStateException.class, pool::checkout);
+    }
+}